@@ -0,0 +1,79 @@
+package com.strumenta.starlasu.mapping
+
+import com.strumenta.starlasu.model.ASTNode
+import com.strumenta.starlasu.model.Source
+import com.strumenta.starlasu.transformation.TransformationContext
+import com.strumenta.starlasu.utils.CancellationToken
+import com.strumenta.starlasu.validation.Issue
+import org.antlr.v4.runtime.ParserRuleContext
+import org.antlr.v4.runtime.tree.ErrorNode
+import org.antlr.v4.runtime.tree.ParseTreeListener
+import org.antlr.v4.runtime.tree.TerminalNode
+import java.util.Collections
+import java.util.IdentityHashMap
+
+/**
+ * The context of a transformation performed while parsing by a [DirectASTBuilder]. It holds the nodes built from the
+ * rule contexts that the parser has already exited, and that the transformation rules of their parents have yet to
+ * use.
+ */
+open class DirectTransformationContext
+    @JvmOverloads
+    constructor(
+        issues: MutableList<Issue> = mutableListOf(),
+        source: Source? = null,
+        cancellationToken: CancellationToken? = null,
+    ) : TransformationContext(issues, null, source, cancellationToken) {
+        internal val prebuiltNodes = IdentityHashMap<ParserRuleContext, List<ASTNode>>()
+    }
+
+/**
+ * A parse listener that builds the AST while parsing, applying the rules of a [ParseTreeToASTTransformer] as soon as
+ * the parser exits each rule context, rather than waiting for the whole parse tree to be built. When the
+ * transformation rule of a context uses the contexts of its children, it gets the nodes already built from them.
+ *
+ * Once a context has been transformed, the children of its child contexts are discarded; the child contexts
+ * themselves are kept, with their start and stop tokens, because they're the origins of the corresponding nodes. So,
+ * at any time, only the parse subtrees that have not been transformed yet are in memory, rather than the whole parse
+ * tree. As a consequence:
+ * - transformation rules should only look at the children of their context and at their grandchildren;
+ * - the rules are applied to every context that has one, even if the rule of its parent does not use it;
+ * - contexts with errors, and contexts for which the parser does not notify the exit (e.g., the left operands in
+ *   left-recursive rules), are transformed as usual by the rules of their parents;
+ * - the errors in the discarded subtrees are not in the parse tree anymore after parsing, so [beforeDiscarding] is
+ *   given each context whose children are about to be discarded, e.g., to report them.
+ */
+class DirectASTBuilder
+    @JvmOverloads
+    constructor(
+        val transformer: ParseTreeToASTTransformer,
+        val context: DirectTransformationContext,
+        val beforeDiscarding: ((ParserRuleContext) -> Unit)? = null,
+    ) : ParseTreeListener {
+        private val transformed = Collections.newSetFromMap(IdentityHashMap<ParserRuleContext, Boolean>())
+
+        override fun visitTerminal(node: TerminalNode) {
+        }
+
+        override fun visitErrorNode(node: ErrorNode) {
+        }
+
+        override fun enterEveryRule(ctx: ParserRuleContext) {
+        }
+
+        override fun exitEveryRule(ctx: ParserRuleContext) {
+            if (ctx.exception != null || !transformer.hasTransformationRule(ctx)) {
+                return
+            }
+            val nodes = transformer.transformIntoNodes(ctx, context)
+            ctx.children?.forEach { child ->
+                if (child is ParserRuleContext && transformed.remove(child)) {
+                    context.prebuiltNodes.remove(child)
+                    beforeDiscarding?.invoke(child)
+                    child.children = null
+                }
+            }
+            context.prebuiltNodes[ctx] = nodes
+            transformed.add(ctx)
+        }
+    }
@@ -23,6 +23,32 @@ open class ParseTreeToASTTransformer
     constructor(
         faultTolerance: FaultTolerance = FaultTolerance.THROW_ONLY_ON_UNMAPPED,
     ) : ASTTransformer(faultTolerance) {
+        /**
+         * If not null, the nodes produced for each subtree of the parse tree are remembered, and reused when a subtree
+         * that did not change is transformed again, e.g., after an edit. See [TransformationMemo]. The memo is used
+         * only by [transformParseTree].
+         */
+        @Volatile
+        var memo: TransformationMemo? = null
+
+        /**
+         * Transforms a whole parse tree, like [transform]. If there is a [memo], this starts a new generation of it, so
+         * the subtrees of [parseTreeRoot] can reuse the nodes produced by the previous call.
+         *
+         * Other transformations bypass the memo, e.g., those of subtrees reparsed on their own by
+         * [com.strumenta.starlasu.parsing.StarlasuParser.parseIncrementally], since the nodes that they could reuse may
+         * still be part of the current AST. So do the transformations performed while parsing by a [DirectASTBuilder],
+         * which discards the parse subtrees that the memo would have to compare.
+         */
+        @JvmOverloads
+        fun transformParseTree(
+            parseTreeRoot: ParserRuleContext,
+            context: TransformationContext = TransformationContext(),
+        ): ASTNode? {
+            memo?.startGeneration(parseTreeRoot)
+            return transform(parseTreeRoot, context)
+        }
+
         /**
          * Performs the transformation of a node and, recursively, its descendants. In addition to the overridden method,
          * it also assigns the parseTreeNode to the AST node so that it can keep track of its position.
@@ -33,6 +59,13 @@ open class ParseTreeToASTTransformer
             context: TransformationContext,
             expectedType: KClass<out ASTNode>,
         ): List<ASTNode> {
+            if (source is ParserRuleContext && context is DirectTransformationContext) {
+                val prebuilt = context.prebuiltNodes.remove(source)
+                if (prebuilt != null) {
+                    prebuilt.forEach { it.parent = context.parent }
+                    return prebuilt
+                }
+            }
             if (source is ParserRuleContext && source.exception != null) {
                 if (faultTolerance == FaultTolerance.STRICT) {
                     throw RuntimeException("Failed to transform $source into $expectedType", source.exception)
@@ -48,6 +81,30 @@ open class ParseTreeToASTTransformer
                 }
                 return nodes
             }
+            val memo = this.memo
+            if (memo != null &&
+                source is ParserRuleContext &&
+                context !is DirectTransformationContext &&
+                memo.isInGeneration(source)
+            ) {
+                val reused = memo.reuse(source, context.source, context.issues)
+                if (reused != null) {
+                    reused.forEach { it.parent = context.parent }
+                    return reused
+                }
+                val issueCount = context.issues.size
+                val nodes = transformWithParseTreeNode(source, context, expectedType)
+                memo.record(source, nodes, context.issues.subList(issueCount, context.issues.size))
+                return nodes
+            }
+            return transformWithParseTreeNode(source, context, expectedType)
+        }
+
+        private fun transformWithParseTreeNode(
+            source: Any?,
+            context: TransformationContext,
+            expectedType: KClass<out ASTNode>,
+        ): List<ASTNode> {
             val transformed = super.transformIntoNodes(source, context, expectedType)
             return transformed
                 .map { node ->
@@ -62,6 +119,12 @@ open class ParseTreeToASTTransformer
                 }.flatten()
         }
 
+        /**
+         * Whether there is a rule to transform the given parse tree node, see [DirectASTBuilder].
+         */
+        internal fun hasTransformationRule(source: ParseTree): Boolean =
+            getCachedTransformationRule<Any, ASTNode>(source) != null
+
         override fun getSource(
             node: ASTNode,
             source: Any,
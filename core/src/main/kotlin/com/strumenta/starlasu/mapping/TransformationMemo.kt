@@ -0,0 +1,298 @@
+package com.strumenta.starlasu.mapping
+
+import com.strumenta.starlasu.model.ASTNode
+import com.strumenta.starlasu.model.Origin
+import com.strumenta.starlasu.model.Point
+import com.strumenta.starlasu.model.Position
+import com.strumenta.starlasu.model.Source
+import com.strumenta.starlasu.parsing.ParseTreeOrigin
+import com.strumenta.starlasu.transformation.FailingASTTransformation
+import com.strumenta.starlasu.transformation.MissingASTTransformation
+import com.strumenta.starlasu.traversing.walk
+import com.strumenta.starlasu.validation.Issue
+import org.antlr.v4.runtime.ParserRuleContext
+import org.antlr.v4.runtime.Token
+import org.antlr.v4.runtime.tree.ParseTree
+import org.antlr.v4.runtime.tree.TerminalNode
+import java.util.IdentityHashMap
+
+/**
+ * Remembers the nodes that a [ParseTreeToASTTransformer] produces for each subtree of the parse tree, so that, when the
+ * code is parsed and transformed again after an edit, the subtrees that did not change reuse the nodes produced the
+ * previous time, instead of being transformed again. See [ParseTreeToASTTransformer.memo].
+ *
+ * Subtrees are matched by a fingerprint of their structure and of the types and texts of their tokens; a candidate
+ * match is then checked token by token, including the positions of the tokens relative to the start of the subtree.
+ * The reused nodes get new origins pointing to the new parse tree, so their positions follow the edit; positions set
+ * explicitly, and the issues found while transforming the subtree, are shifted. Each previous subtree is reused at most
+ * once, so identical subtrees in the new parse tree never share nodes.
+ *
+ * Each call to [ParseTreeToASTTransformer.transformParseTree] starts a new generation, for its parse tree: only the
+ * nodes produced by the previous generation can be reused, and after that they belong to the new AST, so the previous
+ * AST must not be used anymore. The subtrees outside the parse tree of the current generation are neither recorded nor
+ * reused. Memoization is correct only if the rules produce the same nodes for the same subtree regardless of
+ * where it appears, i.e., they don't depend on the ancestors or siblings of their source.
+ */
+class TransformationMemo {
+    private class Entry(
+        val hash: Long,
+        val parseTree: ParserRuleContext,
+        val nodes: List<ASTNode>,
+        val issues: List<Issue>,
+    )
+
+    private var previous = HashMap<Long, MutableList<Entry>>()
+    private var previousByParseTree = IdentityHashMap<ParserRuleContext, Entry>()
+    private var current = HashMap<Long, MutableList<Entry>>()
+    private var currentByParseTree = IdentityHashMap<ParserRuleContext, Entry>()
+    private val hashes = IdentityHashMap<ParserRuleContext, Long>()
+    private var generationRoot: ParserRuleContext? = null
+    private val generationMembers = IdentityHashMap<ParserRuleContext, Boolean>()
+
+    /**
+     * How many subtrees have been reused in the current generation.
+     */
+    var reusedSubtrees: Int = 0
+        private set
+
+    /**
+     * Starts a new generation, for the parse tree rooted in [root]: from now on, only the nodes recorded since the
+     * previous call can be reused, and only by the subtrees of [root].
+     */
+    @Synchronized
+    fun startGeneration(root: ParserRuleContext) {
+        previous = current
+        previousByParseTree = currentByParseTree
+        current = HashMap()
+        currentByParseTree = IdentityHashMap()
+        hashes.clear()
+        generationRoot = root
+        generationMembers.clear()
+        generationMembers[root] = true
+        reusedSubtrees = 0
+    }
+
+    /**
+     * Forgets all the recorded nodes.
+     */
+    @Synchronized
+    fun clear() {
+        previous = HashMap()
+        previousByParseTree = IdentityHashMap()
+        current = HashMap()
+        currentByParseTree = IdentityHashMap()
+        hashes.clear()
+        generationRoot = null
+        generationMembers.clear()
+        reusedSubtrees = 0
+    }
+
+    /**
+     * Whether the given subtree is part of the parse tree of the current generation.
+     */
+    @Synchronized
+    internal fun isInGeneration(parseTree: ParserRuleContext): Boolean {
+        if (generationRoot == null) {
+            return false
+        }
+        val ancestors = mutableListOf<ParserRuleContext>()
+        var context: ParserRuleContext? = parseTree
+        while (context != null && !generationMembers.containsKey(context)) {
+            ancestors.add(context)
+            context = context.parent as ParserRuleContext?
+        }
+        val member = context != null && generationMembers[context]!!
+        ancestors.forEach { generationMembers[it] = member }
+        return member
+    }
+
+    @Synchronized
+    internal fun record(
+        parseTree: ParserRuleContext,
+        nodes: List<ASTNode>,
+        issues: List<Issue>,
+    ) {
+        val entry = Entry(hash(parseTree), parseTree, nodes, issues.toList())
+        current.getOrPut(entry.hash) { mutableListOf() }.add(entry)
+        currentByParseTree[parseTree] = entry
+    }
+
+    /**
+     * The nodes produced the previous time for a subtree equal to the given one, adapted to it, or null if there are
+     * none. The issues found the previous time are added to [issues].
+     */
+    @Synchronized
+    internal fun reuse(
+        parseTree: ParserRuleContext,
+        source: Source?,
+        issues: MutableList<Issue>,
+    ): List<ASTNode>? {
+        val candidates = previous[hash(parseTree)] ?: return null
+        for (entry in candidates) {
+            val mapping = IdentityHashMap<ParseTree, ParseTree>()
+            if (match(entry.parseTree, parseTree, entry.parseTree.start, parseTree.start, mapping)) {
+                adopt(entry, parseTree, source, mapping, issues)
+                reusedSubtrees++
+                return entry.nodes
+            }
+        }
+        return null
+    }
+
+    private fun adopt(
+        entry: Entry,
+        parseTree: ParserRuleContext,
+        source: Source?,
+        mapping: IdentityHashMap<ParseTree, ParseTree>,
+        issues: MutableList<Issue>,
+    ) {
+        val shift = PositionShift(entry.parseTree.start, parseTree.start, source)
+        entry.nodes.forEach { root ->
+            root.walk().forEach { node ->
+                val origin = node.origin
+                val remapped = remap(origin, mapping, source)
+                if (remapped !== origin) {
+                    val position = node.position
+                    node.origin = remapped
+                    if (position != null && position != origin?.position) {
+                        node.position = shift(position)
+                    }
+                } else if (origin == null) {
+                    node.position?.let { node.position = shift(it) }
+                }
+            }
+        }
+        issues.addAll(entry.issues.map { it.copy(position = it.position?.let { position -> shift(position) }) })
+        // The subtree and the subtrees nested in it now belong to the new parse tree, and they can be reused next time
+        mapping.forEach { (old, new) ->
+            if (old is ParserRuleContext) {
+                previousByParseTree.remove(old)?.let { nested ->
+                    previous[nested.hash]?.remove(nested)
+                    val nestedEntry =
+                        Entry(
+                            nested.hash,
+                            new as ParserRuleContext,
+                            nested.nodes,
+                            nested.issues.map { it.copy(position = it.position?.let { position -> shift(position) }) },
+                        )
+                    current.getOrPut(nestedEntry.hash) { mutableListOf() }.add(nestedEntry)
+                    currentByParseTree[nestedEntry.parseTree] = nestedEntry
+                }
+            }
+        }
+    }
+
+    private fun remap(
+        origin: Origin?,
+        mapping: IdentityHashMap<ParseTree, ParseTree>,
+        source: Source?,
+    ): Origin? =
+        when (origin) {
+            is ParseTreeOrigin -> mapping[origin.parseTree]?.let { ParseTreeOrigin(it, source) } ?: origin
+            is MissingASTTransformation -> {
+                val inner = remap(origin.origin, mapping, source)
+                if (inner === origin.origin) {
+                    origin
+                } else {
+                    MissingASTTransformation(
+                        inner,
+                        (origin.transformationSource as? ParseTree)?.let { mapping[it] } ?: origin.transformationSource,
+                        origin.expectedType,
+                        origin.message,
+                    )
+                }
+            }
+            is FailingASTTransformation -> {
+                val inner = remap(origin.origin, mapping, source)
+                if (inner === origin.origin) origin else FailingASTTransformation(inner, origin.message)
+            }
+            else -> origin
+        }
+
+    /**
+     * Checks that the two subtrees are equal, including the relative positions of their tokens, and maps each subtree
+     * of [old] to the corresponding subtree of [new].
+     */
+    private fun match(
+        old: ParseTree,
+        new: ParseTree,
+        oldStart: Token,
+        newStart: Token,
+        mapping: IdentityHashMap<ParseTree, ParseTree>,
+    ): Boolean {
+        if (old.javaClass != new.javaClass || old.childCount != new.childCount) {
+            return false
+        }
+        if (old is TerminalNode) {
+            val oldToken = old.symbol
+            val newToken = (new as TerminalNode).symbol
+            if (oldToken.type != newToken.type ||
+                oldToken.text != newToken.text ||
+                oldToken.line - oldStart.line != newToken.line - newStart.line ||
+                (oldToken.line == oldStart.line) != (newToken.line == newStart.line) ||
+                relativeColumn(oldToken, oldStart) != relativeColumn(newToken, newStart)
+            ) {
+                return false
+            }
+        } else if (old is ParserRuleContext && old.exception != null) {
+            return false
+        }
+        mapping[old] = new
+        for (i in 0 until old.childCount) {
+            if (!match(old.getChild(i), new.getChild(i), oldStart, newStart, mapping)) {
+                return false
+            }
+        }
+        return true
+    }
+
+    private fun relativeColumn(
+        token: Token,
+        start: Token,
+    ): Int =
+        if (token.line == start.line) {
+            token.charPositionInLine - start.charPositionInLine
+        } else {
+            token.charPositionInLine
+        }
+
+    /**
+     * A hash of the structure of the subtree and of the types and texts of its tokens, but not of their positions.
+     */
+    private fun hash(parseTree: ParseTree): Long =
+        when (parseTree) {
+            is TerminalNode -> parseTree.symbol.type * 31L + parseTree.symbol.text.hashCode()
+            is ParserRuleContext ->
+                hashes.getOrPut(parseTree) {
+                    var hash = parseTree.javaClass.name.hashCode().toLong()
+                    for (i in 0 until parseTree.childCount) {
+                        hash = hash * 1_000_003L + hash(parseTree.getChild(i))
+                    }
+                    hash
+                }
+            else -> parseTree.javaClass.name.hashCode().toLong()
+        }
+
+    /**
+     * Moves the positions in a subtree that starts at [oldStart] so that it starts at [newStart]: the lines are
+     * shifted, and so are the columns on the first line of the subtree.
+     */
+    private class PositionShift(
+        oldStart: Token,
+        newStart: Token,
+        val source: Source?,
+    ) {
+        private val startLine = oldStart.line
+        private val lineDelta = newStart.line - oldStart.line
+        private val columnDelta = newStart.charPositionInLine - oldStart.charPositionInLine
+
+        private fun shift(point: Point): Point =
+            if (point.line == startLine) {
+                Point(point.line + lineDelta, point.column + columnDelta)
+            } else {
+                Point(point.line + lineDelta, point.column)
+            }
+
+        operator fun invoke(position: Position): Position = Position(shift(position.start), shift(position.end), source)
+    }
+}
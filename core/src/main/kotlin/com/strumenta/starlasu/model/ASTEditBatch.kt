@@ -0,0 +1,268 @@
+package com.strumenta.starlasu.model
+
+import java.util.Collections
+import java.util.IdentityHashMap
+import kotlin.reflect.KMutableProperty1
+
+/**
+ * A change made by an [ASTEditBatch] to a containment of a node: starting at [index], the [removed] nodes were
+ * replaced by the [added] nodes. For a multiple containment, [index] is the position of the first added node in the
+ * list after the whole batch has been applied; for a single containment, it's always 0. The changes to a list are
+ * returned in the order of their index, so applying them in that order to a copy of the original list gives the
+ * edited list. Insertions before and after a node are separate changes, that don't include the node itself.
+ */
+data class ASTEdit(
+    val parent: ASTNode,
+    val containment: String,
+    val index: Int,
+    val removed: List<ASTNode>,
+    val added: List<ASTNode>,
+)
+
+/**
+ * Collects structural edits (replacements, removals and insertions relative to existing nodes) and applies them all
+ * at once. Calling [replaceWithSeveral], [removeFromList], [addSeveralBefore] or [addSeveralAfter] many times on the
+ * same list looks for the target node and shifts the elements of the list each time; instead, [apply] looks up the
+ * children of each parent only once, and rebuilds each list in a single pass, so the cost is linear in the size of the
+ * lists involved.
+ *
+ * As with the functions above, the targets must have their parent set (see [assignParents]), and they're recognized
+ * by identity. The edits refer to the tree as it is when [apply] is called: a node added by the batch cannot be the
+ * target of another edit in the same batch. Multiple insertions before (or after) the same target are applied in
+ * order.
+ *
+ * @param recordChanges whether [apply] should return the list of changes it made.
+ */
+class ASTEditBatch
+    @JvmOverloads
+    constructor(
+        val recordChanges: Boolean = false,
+    ) {
+        private class TargetEdits(
+            val target: ASTNode,
+        ) {
+            val before = mutableListOf<ASTNode>()
+            val after = mutableListOf<ASTNode>()
+            var replacement: List<ASTNode>? = null
+        }
+
+        /**
+         * The containments of a parent that hold the targets of some edits, found before changing anything.
+         */
+        private class ParentEdits(
+            val parent: ASTNode,
+        ) {
+            val lists = mutableListOf<Pair<String, MutableList<ASTNode>>>()
+            val singles = mutableListOf<Pair<KMutableProperty1<ASTNode, Any?>, TargetEdits>>()
+        }
+
+        private val edits = IdentityHashMap<ASTNode, TargetEdits>()
+
+        /**
+         * The number of nodes that are the target of some edit.
+         */
+        val size: Int
+            get() = edits.size
+
+        private fun editsOf(target: ASTNode): TargetEdits {
+            checkNotNull(target.parent) { "Parent not set" }
+            return edits.getOrPut(target) { TargetEdits(target) }
+        }
+
+        /**
+         * Replaces [target] with [replacement], which can be in a single or in a multiple containment.
+         */
+        fun replace(
+            target: ASTNode,
+            replacement: ASTNode,
+        ): ASTEditBatch = replaceWithSeveral(target, listOf(replacement))
+
+        /**
+         * Replaces [target], which must be in a multiple containment unless [newNodes] contains only one node, with
+         * [newNodes].
+         */
+        fun replaceWithSeveral(
+            target: ASTNode,
+            newNodes: List<ASTNode>,
+        ): ASTEditBatch {
+            val targetEdits = editsOf(target)
+            check(targetEdits.replacement == null) { "$target is already replaced or removed in this batch" }
+            targetEdits.replacement = newNodes.toList()
+            return this
+        }
+
+        /**
+         * Removes [target] from the list containing it.
+         */
+        fun remove(target: ASTNode): ASTEditBatch = replaceWithSeveral(target, emptyList())
+
+        /**
+         * Inserts [newNodes] before [target], in the list containing it.
+         */
+        fun addSeveralBefore(
+            target: ASTNode,
+            newNodes: List<ASTNode>,
+        ): ASTEditBatch {
+            editsOf(target).before.addAll(newNodes)
+            return this
+        }
+
+        /**
+         * Inserts [newNodes] after [target], in the list containing it.
+         */
+        fun addSeveralAfter(
+            target: ASTNode,
+            newNodes: List<ASTNode>,
+        ): ASTEditBatch {
+            editsOf(target).after.addAll(newNodes)
+            return this
+        }
+
+        /**
+         * Applies all the edits, updating the parents of the removed and added nodes, and empties the batch. All the
+         * targets are looked up before changing anything, so if this throws, the tree is left unchanged; the batch is
+         * emptied anyway.
+         *
+         * @return the changes made, if [recordChanges] is true, otherwise an empty list.
+         * @throws IllegalStateException if a target is not a child of its parent anymore, or if an insertion or a
+         * replacement with several nodes targets a node that is not in a [MutableList].
+         */
+        fun apply(): List<ASTEdit> {
+            try {
+                val byParent = IdentityHashMap<ASTNode, MutableList<TargetEdits>>()
+                edits.values.forEach { byParent.getOrPut(it.target.parent!!) { mutableListOf() }.add(it) }
+                val located = byParent.map { (parent, parentEdits) -> locate(parent, parentEdits) }
+                val changes = mutableListOf<ASTEdit>()
+                val applied = Collections.newSetFromMap(IdentityHashMap<ASTNode, Boolean>())
+                located.forEach { parentEdits ->
+                    parentEdits.singles.forEach { (property, targetEdits) ->
+                        applyToSingle(parentEdits.parent, property, targetEdits, changes)
+                    }
+                    parentEdits.lists.forEach { (containment, list) ->
+                        applyToList(parentEdits.parent, containment, list, applied, changes)
+                    }
+                }
+                return changes
+            } finally {
+                edits.clear()
+            }
+        }
+
+        /**
+         * Finds the containments of [parent] holding the targets of [parentEdits], without changing them.
+         *
+         * @throws IllegalStateException if a target cannot be found, or cannot be edited as requested.
+         */
+        @Suppress("UNCHECKED_CAST") // assumption: a MutableList with a Node in it is a MutableList<Node>
+        private fun locate(
+            parent: ASTNode,
+            parentEdits: List<TargetEdits>,
+        ): ParentEdits {
+            val result = ParentEdits(parent)
+            val found = Collections.newSetFromMap(IdentityHashMap<ASTNode, Boolean>())
+            for (property in parent.relevantMemberProperties()) {
+                if (found.size == parentEdits.size) {
+                    break
+                }
+                when (val value = property.get(parent)) {
+                    is MutableList<*> -> {
+                        var inList = false
+                        value.forEach { element ->
+                            if (element is ASTNode && edits.containsKey(element) && found.add(element)) {
+                                inList = true
+                            }
+                        }
+                        if (inList) {
+                            result.lists.add(property.name to value as MutableList<ASTNode>)
+                        }
+                    }
+                    is ASTNode -> {
+                        val targetEdits = edits[value] ?: continue
+                        val replacement = targetEdits.replacement
+                        val inserts = targetEdits.before.isNotEmpty() || targetEdits.after.isNotEmpty()
+                        if (replacement?.size != 1 || inserts) {
+                            throw IllegalStateException(
+                                "${property.name} in $parent is not a MutableList, it can only be replaced by one node",
+                            )
+                        }
+                        if (property !is KMutableProperty1<*, *>) {
+                            throw ImmutablePropertyException(property, parent)
+                        }
+                        result.singles.add(property as KMutableProperty1<ASTNode, Any?> to targetEdits)
+                        found.add(value)
+                    }
+                }
+            }
+            parentEdits.firstOrNull { it.target !in found }?.let {
+                throw IllegalStateException("Did not find ${it.target} in any MutableList in $parent.")
+            }
+            return result
+        }
+
+        private fun applyToSingle(
+            parent: ASTNode,
+            property: KMutableProperty1<ASTNode, Any?>,
+            targetEdits: TargetEdits,
+            changes: MutableList<ASTEdit>,
+        ) {
+            val replacement = targetEdits.replacement!!
+            property.set(parent, replacement[0])
+            targetEdits.target.parent = null
+            replacement[0].parent = parent
+            if (recordChanges) {
+                changes.add(ASTEdit(parent, property.name, 0, listOf(targetEdits.target), replacement))
+            }
+        }
+
+        /**
+         * Rebuilds the list, applying the edits targeting its elements that are not in [applied] yet.
+         */
+        private fun applyToList(
+            parent: ASTNode,
+            containment: String,
+            list: MutableList<ASTNode>,
+            applied: MutableSet<ASTNode>,
+            changes: MutableList<ASTEdit>,
+        ) {
+            val result = ArrayList<ASTNode>(list.size + 16)
+            for (element in list) {
+                val targetEdits = edits[element]
+                if (targetEdits == null || !applied.add(element)) {
+                    result.add(element)
+                    continue
+                }
+                insert(parent, containment, result, targetEdits.before, changes)
+                val replacement = targetEdits.replacement
+                if (replacement == null) {
+                    result.add(element)
+                } else {
+                    if (recordChanges) {
+                        changes.add(ASTEdit(parent, containment, result.size, listOf(element), replacement))
+                    }
+                    element.parent = null
+                    replacement.forEach { it.parent = parent }
+                    result.addAll(replacement)
+                }
+                insert(parent, containment, result, targetEdits.after, changes)
+            }
+            list.clear()
+            list.addAll(result)
+        }
+
+        private fun insert(
+            parent: ASTNode,
+            containment: String,
+            result: MutableList<ASTNode>,
+            newNodes: List<ASTNode>,
+            changes: MutableList<ASTEdit>,
+        ) {
+            if (newNodes.isEmpty()) {
+                return
+            }
+            if (recordChanges) {
+                changes.add(ASTEdit(parent, containment, result.size, emptyList(), newNodes.toList()))
+            }
+            newNodes.forEach { it.parent = parent }
+            result.addAll(newNodes)
+        }
+    }
@@ -75,4 +75,27 @@ interface ASTNode :
     fun getAttributeValue(name: String): Any?
 
     fun addAnnotation(instance: AnnotationInstance): Boolean
+
+    /**
+     * The data attached to this node for the given key, or null if there is none. Implementations that do not store
+     * attachments, unlike [BaseASTNode], always return null.
+     */
+    fun <T : Any> getAttachment(key: AttachmentKey<T>): T? = null
+
+    /**
+     * Attaches the given data to this node for the given key, replacing the previous one; null removes it. The
+     * attachments are not part of the model, and they're cleared when the node is removed from its parent.
+     * Implementations that do not store attachments, unlike [BaseASTNode], ignore the data.
+     *
+     * @return the data previously attached for the key, if any.
+     */
+    fun <T : Any> putAttachment(
+        key: AttachmentKey<T>,
+        value: T?,
+    ): T? = null
+
+    /**
+     * Removes all the data attached to this node.
+     */
+    fun clearAttachments() {}
 }
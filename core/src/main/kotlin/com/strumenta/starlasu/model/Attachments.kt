@@ -0,0 +1,54 @@
+package com.strumenta.starlasu.model
+
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A typed key to attach data computed by an analysis (e.g., the inferred type of an expression, or the scope of a
+ * block) to nodes, through [ASTNode.getAttachment] and [ASTNode.putAttachment].
+ *
+ * Each key gets a distinct, small [id], which is the index of its slot in the nodes: access costs like reading an
+ * array element. Keys are meant to be created once, e.g., as constants, not per node or per analysis run: each key
+ * created makes the slot arrays of the nodes using the later keys longer. Keys are compared by identity.
+ */
+class AttachmentKey<T : Any>(
+    val name: String,
+) {
+    val id: Int = nextAttachmentKeyId.getAndIncrement()
+
+    override fun toString(): String = "AttachmentKey($name)"
+}
+
+private val nextAttachmentKeyId = AtomicInteger()
+
+/**
+ * The attachments of a node, as an array indexed by [AttachmentKey.id], or null if the node has no attachments.
+ */
+internal fun Array<Any?>?.attachmentFor(key: AttachmentKey<*>): Any? =
+    if (this == null || key.id >= this.size) null else this[key.id]
+
+/**
+ * Sets the attachment for [key], returning the updated array, which is a new one if this one was too short.
+ */
+internal fun Array<Any?>?.withAttachment(
+    key: AttachmentKey<*>,
+    value: Any?,
+): Array<Any?>? {
+    if (this != null && key.id < this.size) {
+        this[key.id] = value
+        return this
+    }
+    if (value == null) {
+        return this
+    }
+    val attachments = this?.copyOf(key.id + 1) ?: arrayOfNulls(key.id + 1)
+    attachments[key.id] = value
+    return attachments
+}
+
+/**
+ * The data attached to this node for [key], computing and attaching it if it's not there yet.
+ */
+inline fun <T : Any> ASTNode.getOrPutAttachment(
+    key: AttachmentKey<T>,
+    compute: () -> T,
+): T = getAttachment(key) ?: compute().also { putAttachment(key, it) }
@@ -74,10 +74,22 @@ open class BaseASTNode() :
     override var origin: Origin? = null
 
     /**
-     * The parent node, if any.
+     * The parent node, if any. Removing the node from its parent, i.e., setting this to null, clears its attachments.
      */
     @property:Internal
     override var parent: ASTNode? = null
+        set(value) {
+            if (value == null && field != null) {
+                attachments = null
+            }
+            field = value
+        }
+
+    /**
+     * The data attached to this node, indexed by [AttachmentKey.id]; null until something is attached.
+     */
+    @Transient
+    private var attachments: Array<Any?>? = null
 
     /**
      * The position of this node in the source text.
@@ -221,4 +233,19 @@ open class BaseASTNode() :
         this.annotations.add(instance)
         return true
     }
+
+    override fun <T : Any> getAttachment(key: AttachmentKey<T>): T? = attachments.attachmentFor(key) as T?
+
+    override fun <T : Any> putAttachment(
+        key: AttachmentKey<T>,
+        value: T?,
+    ): T? {
+        val previous = attachments.attachmentFor(key) as T?
+        attachments = attachments.withAttachment(key, value)
+        return previous
+    }
+
+    override fun clearAttachments() {
+        attachments = null
+    }
 }
@@ -0,0 +1,181 @@
+package com.strumenta.starlasu.model
+
+import java.util.IdentityHashMap
+import kotlin.reflect.KClass
+import kotlin.reflect.KMutableProperty1
+import kotlin.reflect.KProperty1
+
+/**
+ * What [deepCopy] copies, besides the properties of the nodes.
+ *
+ * @param copyPositions whether the copies get the positions of the original nodes.
+ * @param copyOrigins whether the copies get the origins of the original nodes (which are shared, not copied).
+ * @param copyIds whether the copies get the IDs of the original nodes.
+ */
+data class DeepCopyOptions
+    @JvmOverloads
+    constructor(
+        val copyPositions: Boolean = true,
+        val copyOrigins: Boolean = false,
+        val copyIds: Boolean = false,
+    )
+
+/**
+ * Copies this node and all its descendants. Attributes are copied by value; mutable lists and sets are copied, so
+ * that changing the copy does not affect the original. References are copied too: when they refer to a node in the
+ * copied subtree, the copy refers to its copy, otherwise it refers to the same node as the original.
+ *
+ * The copies are instantiated through their primary constructor, and the properties that are not constructor
+ * parameters are set afterward, when they're mutable. The tree is visited iteratively, so deep trees don't overflow
+ * the stack.
+ */
+@JvmOverloads
+fun <T : ASTNode> T.deepCopy(options: DeepCopyOptions = DeepCopyOptions()): T {
+    // First, we collect the nodes in pre-order, reading their properties once
+    val nodes = ArrayList<ASTNode>()
+    val values = ArrayList<Array<Any?>>()
+    val visited = IdentityHashMap<ASTNode, Boolean>()
+    val stack = ArrayDeque<ASTNode>()
+    stack.addLast(this)
+    while (stack.isNotEmpty()) {
+        val node = stack.removeLast()
+        if (visited.put(node, true) != null) {
+            continue
+        }
+        val copier = copiers.get(node.javaClass)
+        val nodeValues = Array(copier.getters.size) { copier.getters[it](node) }
+        nodes.add(node)
+        values.add(nodeValues)
+        for (i in nodeValues.indices) {
+            when (copier.kinds[i]) {
+                CHILD -> (nodeValues[i] as ASTNode?)?.let { stack.addLast(it) }
+                CHILDREN -> (nodeValues[i] as Collection<*>?)?.forEach { if (it is ASTNode) stack.addLast(it) }
+            }
+        }
+    }
+    // Then, we copy them in reverse pre-order, so that the children are copied before their parent
+    val copies = IdentityHashMap<ASTNode, ASTNode>(nodes.size * 2)
+    val references = ArrayList<Pair<ReferenceByName<PossiblyNamed>, PossiblyNamed>>()
+    for (k in nodes.indices.reversed()) {
+        val node = nodes[k]
+        copies[node] = copiers.get(node.javaClass).copy(node, values[k], copies, references, options)
+    }
+    references.forEach { (reference, referred) ->
+        reference.referred = (copies[referred as? ASTNode] as PossiblyNamed?) ?: referred
+    }
+    return copies[this] as T
+}
+
+private const val ATTRIBUTE = 0
+private const val CHILD = 1
+private const val CHILDREN = 2
+
+/**
+ * How to copy the nodes of a class, with compiled accessors for its properties.
+ */
+private class NodeCopier(
+    kClass: KClass<out ASTNode>,
+) {
+    val properties = kClass.nodeOriginalProperties.toTypedArray() as Array<KProperty1<ASTNode, *>>
+    val getters = Array(properties.size) { NodeConstructorPlan.compiledGetter(properties[it]) }
+    val kinds =
+        IntArray(properties.size) {
+            val property = properties[it]
+            when {
+                !property.isContainment() -> ATTRIBUTE
+                PropertyDescription.multiple(property) -> CHILDREN
+                else -> CHILD
+            }
+        }
+    val constructorPlan by lazy { NodeConstructorPlan.ofPrimaryConstructor(kClass as KClass<ASTNode>) }
+
+    /**
+     * For each property, the corresponding parameter of the primary constructor, or -1.
+     */
+    val slots by lazy { IntArray(properties.size) { constructorPlan.slotOf(properties[it].name) } }
+
+    /**
+     * For each property that is not a constructor parameter, its setter, if it's mutable.
+     */
+    val setters by lazy {
+        Array(properties.size) {
+            val property = properties[it]
+            if (slots[it] < 0 && property is KMutableProperty1<*, *>) {
+                NodeConstructorPlan.compiledSetter(property)
+            } else {
+                null
+            }
+        }
+    }
+
+    fun copy(
+        node: ASTNode,
+        values: Array<Any?>,
+        copies: IdentityHashMap<ASTNode, ASTNode>,
+        references: MutableList<Pair<ReferenceByName<PossiblyNamed>, PossiblyNamed>>,
+        options: DeepCopyOptions,
+    ): ASTNode {
+        val copiedValues =
+            Array(values.size) { i ->
+                val value = values[i]
+                when (kinds[i]) {
+                    CHILD -> copies[value as ASTNode?]
+                    CHILDREN -> copyCollection(value as Collection<*>?) { if (it is ASTNode) copies[it] else it }
+                    else -> copyAttribute(value, references)
+                }
+            }
+        val arguments = constructorPlan.newArguments()
+        copiedValues.forEachIndexed { i, value ->
+            if (slots[i] >= 0) {
+                arguments[slots[i]] = value
+            }
+        }
+        val copy = constructorPlan.newInstance(arguments)
+        copiedValues.forEachIndexed { i, value ->
+            setters[i]?.invoke(copy, value)
+            when (kinds[i]) {
+                CHILD -> (value as ASTNode?)?.parent = copy
+                CHILDREN -> (value as Collection<*>?)?.forEach { (it as? ASTNode)?.parent = copy }
+            }
+        }
+        if (options.copyIds) {
+            copy.id = node.id
+        }
+        if (options.copyOrigins) {
+            copy.origin = node.origin
+        }
+        if (options.copyPositions && copy.position != node.position) {
+            copy.position = node.position
+        }
+        return copy
+    }
+
+    private fun copyAttribute(
+        value: Any?,
+        references: MutableList<Pair<ReferenceByName<PossiblyNamed>, PossiblyNamed>>,
+    ): Any? =
+        when (value) {
+            is ReferenceByName<*> -> {
+                val copy = ReferenceByName<PossiblyNamed>(value.name, null, value.identifier)
+                value.referred?.let { references.add(copy to it) }
+                copy
+            }
+            is MutableCollection<*> -> copyCollection(value) { copyAttribute(it, references) }
+            else -> value
+        }
+
+    private inline fun copyCollection(
+        value: Collection<*>?,
+        copyElement: (Any?) -> Any?,
+    ): Collection<*>? =
+        when (value) {
+            null -> null
+            is Set<*> -> value.mapTo(LinkedHashSet(value.size)) { copyElement(it) }
+            else -> value.mapTo(ArrayList(value.size)) { copyElement(it) }
+        }
+}
+
+private val copiers =
+    object : ClassValue<NodeCopier>() {
+        override fun computeValue(type: Class<*>): NodeCopier = NodeCopier(type.kotlin as KClass<out ASTNode>)
+    }
@@ -0,0 +1,140 @@
+package com.strumenta.starlasu.model
+
+import java.lang.reflect.Field
+import kotlin.properties.ReadWriteProperty
+import kotlin.reflect.KProperty
+
+/**
+ * A containment whose value can be computed on first access, typically by transforming the corresponding part of the
+ * parse tree only when someone reads it. A node class declares the containments that can be lazy by delegating them
+ * to an instance of this class:
+ *
+ * ```kotlin
+ * class MethodDeclaration(var name: String) : Node() {
+ *     var body: Block? by LazyChild(null)
+ *     var annotations: MutableList<Annotation> by LazyChild(mutableListOf())
+ * }
+ * ```
+ *
+ * Then, a transformation rule can mark them as lazy, see
+ * [com.strumenta.starlasu.transformation.TransformationRule.withLazyChild]. The value is computed the first time the
+ * property is read, including through [ASTNode.properties], the walkers (e.g.,
+ * [com.strumenta.starlasu.traversing.walk]) and anything built on them, such as exporting the AST. Setting the property
+ * discards the pending computation. Only [assignParents], [com.strumenta.starlasu.parsing.ASTFinalization] and the
+ * node count of the parsing metrics do not force the computation: the nodes computed later get their parent and are
+ * finalized anyway.
+ *
+ * The computation happens at most once, even if multiple threads read the property at the same time.
+ */
+class LazyChild<T>(
+    initialValue: T,
+) : ReadWriteProperty<ASTNode, T> {
+    @Volatile
+    private var value: T = initialValue
+
+    @Volatile
+    private var initializer: (() -> T)? = null
+
+    /**
+     * Whether the value is available without running a pending computation.
+     */
+    val isMaterialized: Boolean
+        get() = initializer == null
+
+    /**
+     * Replaces the value with the result of the given computation, which will run the first time the value is read.
+     */
+    fun defer(initializer: () -> T) {
+        synchronized(this) {
+            this.initializer = initializer
+        }
+    }
+
+    /**
+     * Runs the pending computation, if any, and returns the value.
+     */
+    fun materialize(): T {
+        if (initializer != null) {
+            synchronized(this) {
+                val initializer = this.initializer
+                if (initializer != null) {
+                    value = initializer()
+                    this.initializer = null
+                }
+            }
+        }
+        return value
+    }
+
+    /**
+     * Makes the pending computation, if any, pass its result to the given action before storing it. Does nothing if
+     * there is no pending computation.
+     */
+    internal fun afterMaterialization(action: (T) -> Unit) {
+        synchronized(this) {
+            val initializer = this.initializer ?: return
+            this.initializer = { initializer().also(action) }
+        }
+    }
+
+    override fun getValue(
+        thisRef: ASTNode,
+        property: KProperty<*>,
+    ): T = materialize()
+
+    override fun setValue(
+        thisRef: ASTNode,
+        property: KProperty<*>,
+        value: T,
+    ) {
+        synchronized(this) {
+            this.value = value
+            this.initializer = null
+        }
+    }
+
+    override fun toString(): String = if (isMaterialized) "LazyChild($value)" else "LazyChild(<pending>)"
+}
+
+/**
+ * For each node class, the fields holding the [LazyChild] delegates of its properties, by property name.
+ */
+private val lazyChildFields =
+    object : ClassValue<Map<String, Field>>() {
+        override fun computeValue(type: Class<*>): Map<String, Field> {
+            val fields = mutableMapOf<String, Field>()
+            var current: Class<*>? = type
+            while (current != null) {
+                current.declaredFields
+                    .filter { it.name.endsWith("\$delegate") && LazyChild::class.java.isAssignableFrom(it.type) }
+                    .forEach { field ->
+                        if (field.trySetAccessible()) {
+                            fields.putIfAbsent(field.name.removeSuffix("\$delegate"), field)
+                        }
+                    }
+                current = current.superclass
+            }
+            return fields
+        }
+    }
+
+/**
+ * The [LazyChild] delegate of the given property of this node, or null if the property is not delegated to one.
+ */
+fun ASTNode.lazyChild(propertyName: String): LazyChild<*>? =
+    lazyChildField(this.javaClass, propertyName)?.get(this) as LazyChild<*>?
+
+/**
+ * The [LazyChild] delegates of the properties of this node whose value has not been computed yet.
+ */
+internal fun ASTNode.pendingLazyChildren(): List<LazyChild<*>> =
+    lazyChildFields
+        .get(this.javaClass)
+        .values
+        .map { it.get(this) as LazyChild<*> }
+        .filter { !it.isMaterialized }
+
+internal fun lazyChildField(
+    nodeClass: Class<*>,
+    propertyName: String,
+): Field? = lazyChildFields.get(nodeClass)[propertyName]
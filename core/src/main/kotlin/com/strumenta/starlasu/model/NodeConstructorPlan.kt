@@ -0,0 +1,267 @@
+package com.strumenta.starlasu.model
+
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+import java.lang.reflect.Constructor
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.reflect.KClass
+import kotlin.reflect.KFunction
+import kotlin.reflect.KMutableProperty1
+import kotlin.reflect.KParameter
+import kotlin.reflect.KProperty1
+import kotlin.reflect.full.memberProperties
+import kotlin.reflect.full.primaryConstructor
+import kotlin.reflect.jvm.javaConstructor
+import kotlin.reflect.jvm.javaGetter
+import kotlin.reflect.jvm.javaSetter
+
+/**
+ * A precompiled way to invoke a constructor, typically of a node class, many times. Calling a constructor through
+ * Kotlin reflection (`callBy`) requires building a map of arguments and checking defaults and nullability on every
+ * call. Instead, a plan resolves the parameters to slots once, and invokes the constructor through a [MethodHandle]
+ * with an array of arguments, which the caller can reuse. Parameters left [ABSENT] take their default value, through
+ * the synthetic constructor that the Kotlin compiler generates for constructors with default arguments.
+ *
+ * When the constructor cannot be invoked that way (e.g., it is not accessible, or it has inline class parameters),
+ * the plan falls back to `callBy`.
+ *
+ * Plans are immutable and thread-safe. Obtain them with [of] or [ofPrimaryConstructor], which cache them.
+ */
+class NodeConstructorPlan<T : Any> private constructor(
+    val constructor: KFunction<T>,
+) {
+    val parameters: List<KParameter> = constructor.parameters
+
+    /**
+     * For each parameter, the property of the class with the same name, if any.
+     */
+    val properties: List<KProperty1<T, *>?>
+
+    /**
+     * For each parameter, a function reading the corresponding property of a node, if any. See [argumentsOf].
+     */
+    private val getters: Array<((Any) -> Any?)?>
+
+    private val slots: Map<String, Int>
+    private val optional = BooleanArray(parameters.size) { parameters[it].isOptional }
+
+    /**
+     * Invokes the constructor given all the arguments, as an array.
+     */
+    private val handle: MethodHandle?
+
+    /**
+     * Invokes the synthetic constructor with defaults, given the arguments followed by the masks of the parameters to
+     * default (one bit per parameter, 32 per mask) and null (for the DefaultConstructorMarker), as an array.
+     */
+    private val defaultsHandle: MethodHandle?
+    private val maskCount = (parameters.size + 31) / 32
+
+    /**
+     * The values to pass, together with the mask bit, for the parameters that take their default value.
+     */
+    private val placeholders: Array<Any?>
+
+    init {
+        val kClass = constructor.returnType.classifier as KClass<T>
+        val memberProperties = kClass.memberProperties
+        properties = parameters.map { p -> memberProperties.find { it.name == p.name } }
+        slots = parameters.mapIndexedNotNull { i, p -> p.name?.let { it to i } }.toMap()
+        getters = Array(parameters.size) { i -> properties[i]?.let { compiledGetter(it) } }
+        val javaConstructor =
+            if (parameters.all { it.kind == KParameter.Kind.VALUE }) {
+                constructor.javaConstructor?.takeIf { it.parameterCount == parameters.size }
+            } else {
+                null
+            }
+        handle = javaConstructor?.let { compile(it, parameters.size) }
+        placeholders = Array(parameters.size) { i -> javaConstructor?.parameterTypes?.get(i)?.let { zeroOf(it) } }
+        defaultsHandle =
+            if (javaConstructor != null && optional.any { it }) {
+                try {
+                    val types = javaConstructor.parameterTypes + Array(maskCount) { Int::class.java } + MARKER_CLASS
+                    compile(javaConstructor.declaringClass.getDeclaredConstructor(*types), types.size)
+                } catch (e: NoSuchMethodException) {
+                    null
+                }
+            } else {
+                null
+            }
+    }
+
+    /**
+     * The index of the parameter with the given name, or -1 if there is none.
+     */
+    fun slotOf(name: String): Int = slots[name] ?: -1
+
+    /**
+     * A new array of arguments, all [ABSENT].
+     */
+    fun newArguments(): Array<Any?> = arrayOfNulls<Any?>(parameters.size).also { it.fill(ABSENT) }
+
+    /**
+     * A new array of arguments, holding the values of the corresponding properties of the given node, so that
+     * [newInstance] would produce a copy of it. The parameters without a corresponding property are [ABSENT].
+     */
+    fun argumentsOf(node: T): Array<Any?> =
+        Array(parameters.size) { i ->
+            val getter = getters[i]
+            if (getter != null) getter(node) else ABSENT
+        }
+
+    /**
+     * Invokes the constructor with the given arguments, one per parameter, in order. Optional parameters can be
+     * [ABSENT]. The array is not retained, so it can be reused for the next invocation.
+     */
+    fun newInstance(arguments: Array<Any?>): T {
+        require(arguments.size == parameters.size) {
+            "Expected ${parameters.size} arguments for $constructor, got ${arguments.size}"
+        }
+        var absent = false
+        for (i in arguments.indices) {
+            if (arguments[i] === ABSENT) {
+                require(optional[i]) { "No argument provided for the required parameter ${parameters[i].name}" }
+                absent = true
+            }
+        }
+        return when {
+            !absent && handle != null -> handle.invoke(arguments) as T
+            absent && defaultsHandle != null -> defaultsHandle.invoke(withDefaults(arguments)) as T
+            else -> constructor.callBy(toMap(arguments))
+        }
+    }
+
+    private fun withDefaults(arguments: Array<Any?>): Array<Any?> {
+        val result = arrayOfNulls<Any?>(arguments.size + maskCount + 1)
+        val masks = IntArray(maskCount)
+        for (i in arguments.indices) {
+            if (arguments[i] === ABSENT) {
+                result[i] = placeholders[i]
+                masks[i / 32] = masks[i / 32] or (1 shl (i % 32))
+            } else {
+                result[i] = arguments[i]
+            }
+        }
+        masks.forEachIndexed { k, mask -> result[arguments.size + k] = mask }
+        return result
+    }
+
+    private fun toMap(arguments: Array<Any?>): Map<KParameter, Any?> {
+        val map = HashMap<KParameter, Any?>(arguments.size * 2)
+        arguments.forEachIndexed { i, value ->
+            if (value !== ABSENT) {
+                map[parameters[i]] = value
+            }
+        }
+        return map
+    }
+
+    companion object {
+        /**
+         * Marks an argument that is not provided, so that the parameter takes its default value.
+         */
+        @JvmField
+        val ABSENT: Any =
+            object {
+                override fun toString(): String = "<absent>"
+            }
+
+        private val MARKER_CLASS: Class<*> = Class.forName("kotlin.jvm.internal.DefaultConstructorMarker")
+        private val plans = ConcurrentHashMap<KFunction<*>, NodeConstructorPlan<*>>()
+        private val primaryPlans = ConcurrentHashMap<Class<*>, NodeConstructorPlan<*>>()
+
+        @JvmStatic
+        fun <T : Any> of(constructor: KFunction<T>): NodeConstructorPlan<T> =
+            plans.computeIfAbsent(constructor) { NodeConstructorPlan(constructor) } as NodeConstructorPlan<T>
+
+        /**
+         * @throws IllegalStateException if the class has no primary constructor.
+         */
+        @JvmStatic
+        fun <T : Any> ofPrimaryConstructor(kClass: KClass<T>): NodeConstructorPlan<T> =
+            primaryPlans.computeIfAbsent(kClass.java) {
+                val constructor =
+                    kClass.primaryConstructor ?: throw IllegalStateException("No primary constructor found for $kClass")
+                of(constructor)
+            } as NodeConstructorPlan<T>
+
+        private fun compile(
+            constructor: Constructor<*>,
+            arity: Int,
+        ): MethodHandle? =
+            try {
+                constructor.trySetAccessible()
+                MethodHandles
+                    .lookup()
+                    .unreflectConstructor(constructor)
+                    .asSpreader(Array<Any?>::class.java, arity)
+                    .asType(MethodType.methodType(Any::class.java, Array<Any?>::class.java))
+            } catch (e: IllegalAccessException) {
+                null
+            } catch (e: SecurityException) {
+                null
+            }
+
+        /**
+         * Reads the property through a [MethodHandle] on its getter rather than through Kotlin reflection, when
+         * possible.
+         */
+        internal fun compiledGetter(property: KProperty1<*, *>): (Any) -> Any? {
+            val getter =
+                property.javaGetter?.let {
+                    try {
+                        it.trySetAccessible()
+                        val handle = MethodHandles.lookup().unreflect(it)
+                        handle.asType(handle.type().generic())
+                    } catch (e: IllegalAccessException) {
+                        null
+                    } catch (e: SecurityException) {
+                        null
+                    }
+                }
+            return if (getter != null) {
+                { node -> getter.invoke(node) }
+            } else {
+                { node -> (property as KProperty1<Any, Any?>).get(node) }
+            }
+        }
+
+        /**
+         * Sets the property through a [MethodHandle] on its setter rather than through Kotlin reflection, when
+         * possible.
+         */
+        internal fun compiledSetter(property: KMutableProperty1<*, *>): (Any, Any?) -> Unit {
+            val setter =
+                property.javaSetter?.let {
+                    try {
+                        it.trySetAccessible()
+                        val handle = MethodHandles.lookup().unreflect(it)
+                        handle.asType(handle.type().generic())
+                    } catch (e: IllegalAccessException) {
+                        null
+                    } catch (e: SecurityException) {
+                        null
+                    }
+                }
+            return if (setter != null) {
+                { node, value -> setter.invoke(node, value) }
+            } else {
+                (property as KMutableProperty1<Any, Any?>)::set
+            }
+        }
+
+        private fun zeroOf(type: Class<*>): Any? =
+            when (type) {
+                Int::class.javaPrimitiveType -> 0
+                Long::class.javaPrimitiveType -> 0L
+                Boolean::class.javaPrimitiveType -> false
+                Char::class.javaPrimitiveType -> '\u0000'
+                Byte::class.javaPrimitiveType -> 0.toByte()
+                Short::class.javaPrimitiveType -> 0.toShort()
+                Float::class.javaPrimitiveType -> 0f
+                Double::class.javaPrimitiveType -> 0.0
+                else -> null
+            }
+    }
+}
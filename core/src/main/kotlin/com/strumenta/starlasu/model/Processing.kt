@@ -5,28 +5,23 @@ package com.strumenta.starlasu.model
 import com.strumenta.starlasu.traversing.defaultTreeWalker
 import com.strumenta.starlasu.traversing.searchByType
 import com.strumenta.starlasu.traversing.walk
-import com.strumenta.starlasu.traversing.walkChildren
 import java.util.IdentityHashMap
+import kotlin.reflect.KClass
 import kotlin.reflect.KFunction1
 import kotlin.reflect.KMutableProperty
-import kotlin.reflect.KParameter
+import kotlin.reflect.KMutableProperty1
 import kotlin.reflect.KProperty
-import kotlin.reflect.full.memberProperties
-import kotlin.reflect.full.primaryConstructor
+import kotlin.reflect.KProperty1
 
 /**
  * Sets or corrects the parent of all AST nodes.
  * Starlasu Kotlin does not see set/add/delete operations on the AST nodes,
  * so this function should be called manually after modifying the AST.
+ * The [LazyChild] containments that have not been computed yet are skipped, as their nodes get their parent when
+ * they're computed.
  */
 fun ASTNode.assignParents() {
-    this.walkChildren().forEach {
-        if (it == this) {
-            throw java.lang.IllegalStateException("A node cannot be parent of itself: $this")
-        }
-        it.parent = this
-        it.assignParents()
-    }
+    defaultTreeWalker.assignParents(this)
 }
 
 /**
@@ -297,45 +292,84 @@ inline fun <reified T : ASTNode> ASTNode.previousSibling(): ASTNode? {
     return null
 }
 
-// TODO reimplement using transformChildren
+/**
+ * Applies [operation] to each node of the tree, bottom-up, and returns the resulting tree.
+ *
+ * By default, the tree is updated persistently: a node is copied (through its primary constructor) only when some of
+ * its children change, and the subtrees that don't change are shared, by reference, between the original tree and
+ * the result. So, besides visiting the tree, the cost is proportional to the changed nodes and their ancestors. The
+ * shared nodes still have their parent in the original tree; call [assignParents] on the result if that matters.
+ *
+ * If [inPlace] is true, the changed children are instead replaced in their parents, as in [transformChildren], so the
+ * properties holding them must be mutable.
+ */
 fun Node.transformTree(
     operation: (Node) -> Node,
     inPlace: Boolean = false,
     mutationsCache: IdentityHashMap<Node, Node> = IdentityHashMap<Node, Node>(),
 ): Node {
-    if (inPlace) TODO()
-    mutationsCache.computeIfAbsent(this) { operation(this) }
-    val changes = mutableMapOf<String, Any>()
-    relevantMemberProperties().forEach { p ->
-        when (val v = p.get(this)) {
-            is Node -> {
-                val newValue = v.transformTree(operation, inPlace, mutationsCache)
-                if (newValue != v) changes[p.name] = newValue
-            }
+    val instanceToTransform =
+        if (inPlace) {
+            transformChildren { if (it is Node) it.transformTree(operation, true, mutationsCache) else it }
+            this
+        } else {
+            mapChildren { if (it is Node) it.transformTree(operation, false, mutationsCache) else it } as Node
+        }
+    return mutationsCache.computeIfAbsent(instanceToTransform) { operation(instanceToTransform) }
+}
 
-            is Collection<*> -> {
-                val newValue = v.map { if (it is Node) it.transformTree(operation, inPlace, mutationsCache) else it }
-                if (newValue != v) changes[p.name] = newValue
-            }
+/**
+ * The properties of a node class, with compiled getters, as used by [mapChildren] to look for children.
+ */
+private class CopyPlan(
+    kClass: KClass<out ASTNode>,
+) {
+    val properties = kClass.nodeOriginalProperties.toTypedArray() as Array<KProperty1<ASTNode, *>>
+    val getters = Array(properties.size) { NodeConstructorPlan.compiledGetter(properties[it]) }
+    val constructorPlan by lazy { NodeConstructorPlan.ofPrimaryConstructor(kClass as KClass<ASTNode>) }
+
+    /**
+     * For each property, the corresponding parameter of the primary constructor, or -1.
+     */
+    val slots by lazy { IntArray(properties.size) { constructorPlan.slotOf(properties[it].name) } }
+}
+
+private val copyPlans =
+    object : ClassValue<CopyPlan>() {
+        override fun computeValue(type: Class<*>): CopyPlan = CopyPlan(type.kotlin as KClass<out ASTNode>)
+    }
+
+/**
+ * Creates a copy of this node through its primary constructor, with the given values for some of its properties (by
+ * index in [CopyPlan.properties]; the others are [NodeConstructorPlan.ABSENT]). The properties that are not
+ * constructor parameters are set after construction. The copy keeps the origin and the position of this node.
+ */
+private fun <T : ASTNode> T.copyWith(
+    plan: CopyPlan,
+    changes: Array<Any?>,
+): T {
+    val constructorPlan = plan.constructorPlan as NodeConstructorPlan<T>
+    val arguments = constructorPlan.argumentsOf(this)
+    changes.forEachIndexed { i, value ->
+        if (value !== NodeConstructorPlan.ABSENT && plan.slots[i] >= 0) {
+            arguments[plan.slots[i]] = value
         }
     }
-    var instanceToTransform = this
-    if (changes.isNotEmpty()) {
-        val constructor = this.javaClass.kotlin.primaryConstructor!!
-        val params = mutableMapOf<KParameter, Any?>()
-        constructor.parameters.forEach { param ->
-            if (changes.containsKey(param.name)) {
-                params[param] = changes[param.name]
-            } else {
-                params[param] =
-                    this.javaClass.kotlin.memberProperties
-                        .find { param.name == it.name }!!
-                        .get(this)
-            }
+    val copy = constructorPlan.newInstance(arguments)
+    changes.forEachIndexed { i, value ->
+        if (value !== NodeConstructorPlan.ABSENT && plan.slots[i] < 0) {
+            val property =
+                plan.properties[i] as? KMutableProperty1<ASTNode, Any?>
+                    ?: throw ImmutablePropertyException(plan.properties[i], this)
+            property.set(copy, value)
         }
-        instanceToTransform = constructor.callBy(params)
     }
-    return mutationsCache.computeIfAbsent(instanceToTransform) { operation(instanceToTransform) }
+    copy.origin = origin
+    val position = position
+    if (copy.position != position) {
+        copy.position = position
+    }
+    return copy
 }
 
 class ImmutablePropertyException(
@@ -350,9 +384,10 @@ fun ASTNode.transformChildren(operation: (ASTNode) -> ASTNode) {
         when (val value = property.get(this)) {
             is Node -> {
                 val newValue = operation(value)
-                if (newValue != value) {
+                if (newValue !== value) {
                     if (property is KMutableProperty<*>) {
                         property.setter.call(this, newValue)
+                        value.detachFrom(this)
                         newValue.parent = this
                     } else {
                         throw ImmutablePropertyException(property, this)
@@ -366,9 +401,10 @@ fun ASTNode.transformChildren(operation: (ASTNode) -> ASTNode) {
                         val element = value[i]
                         if (element is Node) {
                             val newValue = operation(element)
-                            if (newValue != element) {
+                            if (newValue !== element) {
                                 if (value is MutableList<*>) {
                                     (value as MutableList<ASTNode>)[i] = newValue
+                                    element.detachFrom(this)
                                     newValue.parent = this
                                 } else {
                                     throw ImmutablePropertyException(property, element)
@@ -386,42 +422,55 @@ fun ASTNode.transformChildren(operation: (ASTNode) -> ASTNode) {
     }
 }
 
+/**
+ * Removes this node from [parent], which has just replaced it, clearing its attachments. The parent is left untouched
+ * if it is another node, e.g., because this node has been moved there.
+ */
+private fun ASTNode.detachFrom(parent: ASTNode) {
+    if (this.parent === parent) {
+        this.parent = null
+    }
+}
+
+/**
+ * Applies [operation] to each child of this node and returns a copy of this node with the resulting children, or
+ * this same node if [operation] returned each child unchanged. Children are compared by identity, and the copy is made
+ * through the primary constructor (see [transformTree]), sharing the children that did not change.
+ */
 fun ASTNode.mapChildren(operation: (ASTNode) -> ASTNode): ASTNode {
-    val changes = mutableMapOf<String, Any>()
-    relevantMemberProperties().forEach { property ->
-        when (val value = property.get(this)) {
-            is Node -> {
-                val newValue = operation(value)
-                if (newValue != value) {
-                    changes[property.name] = newValue
-                }
+    val plan = copyPlans.get(javaClass)
+    var changes: Array<Any?>? = null
+    for (i in plan.getters.indices) {
+        val value = plan.getters[i](this)
+        val newValue =
+            when (value) {
+                is Node -> operation(value)
+                is Collection<*> -> value.mapIfChanged(operation)
+                else -> value
             }
-
-            is Collection<*> -> {
-                val newValue = value.map { if (it is Node) operation(it) else it }
-                if (newValue != value) {
-                    changes[property.name] = newValue
-                }
+        if (newValue !== value) {
+            if (changes == null) {
+                changes = arrayOfNulls<Any?>(plan.getters.size).also { it.fill(NodeConstructorPlan.ABSENT) }
             }
+            changes[i] = newValue
         }
     }
-    var instanceToTransform = this
-    if (changes.isNotEmpty()) {
-        val constructor = this.javaClass.kotlin.primaryConstructor!!
-        val params = mutableMapOf<KParameter, Any?>()
-        constructor.parameters.forEach { param ->
-            if (changes.containsKey(param.name)) {
-                params[param] = changes[param.name]
-            } else {
-                params[param] =
-                    this.javaClass.kotlin.memberProperties
-                        .find { param.name == it.name }!!
-                        .get(this)
-            }
+    return if (changes == null) this else copyWith(plan, changes)
+}
+
+/**
+ * Maps the nodes in this collection, returning this same collection if none of them changes.
+ */
+private fun Collection<*>.mapIfChanged(operation: (ASTNode) -> ASTNode): Collection<*> {
+    var result: MutableList<Any?>? = null
+    forEachIndexed { i, element ->
+        val newElement = if (element is Node) operation(element) else element
+        if (result == null && newElement !== element) {
+            result = ArrayList<Any?>(size).also { list -> list.addAll(take(i)) }
         }
-        instanceToTransform = constructor.callBy(params)
+        result?.add(newElement)
     }
-    return instanceToTransform
+    return result ?: this
 }
 
 /**
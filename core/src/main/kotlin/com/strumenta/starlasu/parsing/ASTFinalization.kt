@@ -0,0 +1,200 @@
+package com.strumenta.starlasu.parsing
+
+import com.strumenta.starlasu.ids.NodeIdProvider
+import com.strumenta.starlasu.model.ASTNode
+import com.strumenta.starlasu.model.LazyChild
+import com.strumenta.starlasu.model.Source
+import com.strumenta.starlasu.model.pendingLazyChildren
+import com.strumenta.starlasu.traversing.defaultTreeWalker
+import com.strumenta.starlasu.validation.Issue
+
+/**
+ * An operation performed on each node of an AST by an [ASTFinalization], e.g., a validation.
+ */
+interface ASTFinalizationStep {
+    /**
+     * The name under which the time spent in this step is reported.
+     */
+    val name: String
+
+    /**
+     * Processes a single node. When this is invoked, the ancestors of the node have already been processed, and the
+     * parent of the node has already been assigned, if the finalization assigns parents.
+     */
+    fun process(
+        node: ASTNode,
+        issues: MutableList<Issue>,
+    )
+}
+
+/**
+ * Completes an AST after it has been built, by assigning parents, setting the source, removing the origins, assigning
+ * IDs and running additional [steps], in a single traversal of the tree rather than in one traversal per operation.
+ *
+ * Each node is processed before its children; on each node, the operations are performed in the order in which
+ * they're listed above. The [LazyChild] containments that have not been computed yet are not computed: their nodes are
+ * finalized when they're computed, and the issues found then are added to the list passed to [finalize].
+ *
+ * @param source if not null, the source to set on every node.
+ * @param removeOrigins whether to remove the origins of the nodes, i.e., the references to the parse tree. This also
+ * removes the positions of the nodes that don't have an explicit position.
+ * @param idProvider if not null, the provider of the IDs to assign to the nodes.
+ * @param overridingIDs whether to replace the IDs that are already assigned.
+ * @param measureTime whether to measure the time spent in each operation; see [finalize].
+ */
+class ASTFinalization
+    @JvmOverloads
+    constructor(
+        val assignParents: Boolean = true,
+        val source: Source? = null,
+        val removeOrigins: Boolean = false,
+        val idProvider: NodeIdProvider? = null,
+        val overridingIDs: Boolean = false,
+        val steps: List<ASTFinalizationStep> = emptyList(),
+        val measureTime: Boolean = false,
+    ) {
+        private val allSteps: Array<ASTFinalizationStep> =
+            (
+                listOfNotNull(
+                    source?.let { SetSourceStep(it) },
+                    if (removeOrigins) RemoveOriginsStep else null,
+                    idProvider?.let { AssignIDsStep(it, overridingIDs) },
+                ) + steps
+            ).toTypedArray()
+
+        /**
+         * True if this finalization does nothing, so there's no need to traverse the tree.
+         */
+        val isEmpty: Boolean
+            get() = !assignParents && allSteps.isEmpty()
+
+        /**
+         * Finalizes the tree rooted in [root]. The parent of [root] is left untouched.
+         * @return if [measureTime] is true, the time spent in each operation, in nanoseconds, keyed by the name of the
+         * operation (see [TRAVERSAL] and the other constants of the companion object), otherwise an empty map. The
+         * time spent listing the children of each node and assigning their parents is reported as [TRAVERSAL]. The
+         * time spent finalizing the lazy children computed later is not reported.
+         */
+        fun finalize(
+            root: ASTNode,
+            issues: MutableList<Issue>,
+        ): Map<String, Long> {
+            val times = LongArray(allSteps.size + 1)
+            val stack = ArrayDeque<ASTNode>()
+            stack.addLast(root)
+            while (stack.isNotEmpty()) {
+                val node = stack.removeLast()
+                for (i in allSteps.indices) {
+                    if (measureTime) {
+                        val start = System.nanoTime()
+                        allSteps[i].process(node, issues)
+                        times[i] += System.nanoTime() - start
+                    } else {
+                        allSteps[i].process(node, issues)
+                    }
+                }
+                val start = if (measureTime) System.nanoTime() else 0L
+                val children = defaultTreeWalker.walkChildrenToList(node, materializeLazyChildren = false)
+                for (i in children.size - 1 downTo 0) {
+                    val child = children[i]
+                    if (assignParents) {
+                        if (child == node) {
+                            throw IllegalStateException("A node cannot be parent of itself: $node")
+                        }
+                        child.parent = node
+                    }
+                    stack.addLast(child)
+                }
+                node.pendingLazyChildren().forEach { lazyChild ->
+                    lazyChild.afterMaterialization { value -> finalizeLazyChild(node, value, issues) }
+                }
+                if (measureTime) {
+                    times[allSteps.size] += System.nanoTime() - start
+                }
+            }
+            if (!measureTime) {
+                return emptyMap()
+            }
+            val result = LinkedHashMap<String, Long>()
+            result[TRAVERSAL] = times[allSteps.size]
+            allSteps.forEachIndexed { i, step -> result[step.name] = (result[step.name] ?: 0L) + times[i] }
+            return result
+        }
+
+        /**
+         * Finalizes the nodes computed by a [LazyChild] of [parent]. This can happen in any thread, so the issues are
+         * collected apart and then added to [issues] while holding its lock.
+         */
+        private fun finalizeLazyChild(
+            parent: ASTNode,
+            value: Any?,
+            issues: MutableList<Issue>,
+        ) {
+            val nodes =
+                when (value) {
+                    is ASTNode -> listOf(value)
+                    is Collection<*> -> value.filterIsInstance<ASTNode>()
+                    else -> emptyList()
+                }
+            val lazyIssues = mutableListOf<Issue>()
+            nodes.forEach { node ->
+                if (assignParents) {
+                    node.parent = parent
+                }
+                finalize(node, lazyIssues)
+            }
+            synchronized(issues) {
+                issues.addAll(lazyIssues)
+            }
+        }
+
+        companion object {
+            const val TRAVERSAL = "traversal"
+            const val SET_SOURCE = "setSource"
+            const val REMOVE_ORIGINS = "removeOrigins"
+            const val ASSIGN_IDS = "assignIDs"
+        }
+    }
+
+private class SetSourceStep(
+    val source: Source,
+) : ASTFinalizationStep {
+    override val name: String
+        get() = ASTFinalization.SET_SOURCE
+
+    override fun process(
+        node: ASTNode,
+        issues: MutableList<Issue>,
+    ) {
+        node.source = source
+    }
+}
+
+private object RemoveOriginsStep : ASTFinalizationStep {
+    override val name: String
+        get() = ASTFinalization.REMOVE_ORIGINS
+
+    override fun process(
+        node: ASTNode,
+        issues: MutableList<Issue>,
+    ) {
+        node.origin = null
+    }
+}
+
+private class AssignIDsStep(
+    val idProvider: NodeIdProvider,
+    val overriding: Boolean,
+) : ASTFinalizationStep {
+    override val name: String
+        get() = ASTFinalization.ASSIGN_IDS
+
+    override fun process(
+        node: ASTNode,
+        issues: MutableList<Issue>,
+    ) {
+        if (overriding || node.id == null) {
+            node.id = idProvider.id(node)
+        }
+    }
+}
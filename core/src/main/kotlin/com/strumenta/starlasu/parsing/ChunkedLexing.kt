@@ -0,0 +1,360 @@
+package com.strumenta.starlasu.parsing
+
+import com.strumenta.starlasu.model.Point
+import com.strumenta.starlasu.model.Position
+import com.strumenta.starlasu.validation.Issue
+import org.antlr.v4.runtime.CharStream
+import org.antlr.v4.runtime.CharStreams
+import org.antlr.v4.runtime.CommonToken
+import org.antlr.v4.runtime.CommonTokenFactory
+import org.antlr.v4.runtime.Lexer
+import org.antlr.v4.runtime.Token
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+
+/**
+ * Declares where the input of a lexer can be cut so that the pieces can be lexed independently, e.g., line starts
+ * outside strings or comments. At a safe lexing point the lexer is expected to be in its default mode, with an empty
+ * mode stack, and not in the middle of a token.
+ *
+ * The declaration does not have to be exact: [StarlasuANTLRLexer.lexInParallel] verifies every cut and re-lexes the
+ * regions around the cuts that turn out to be unsafe.
+ */
+fun interface SafeLexingPoints {
+    /**
+     * @return true if lexing can safely start at [offset] in [code]. The offset is always in `1 until code.length`.
+     */
+    fun isSafeLexingPoint(
+        code: String,
+        offset: Int,
+    ): Boolean
+
+    companion object {
+        /**
+         * Every line start is a safe lexing point.
+         */
+        @JvmField
+        val LINE_STARTS = SafeLexingPoints { code, offset -> code[offset - 1] == '\n' }
+    }
+}
+
+/**
+ * The state of a lexer right before it is asked for the next token.
+ */
+internal data class LexerCheckpoint(
+    val offset: Int,
+    val line: Int,
+    val column: Int,
+    val mode: Int,
+    val modeStack: List<Int>,
+)
+
+/**
+ * How to move tokens, issues and checkpoints of a chunk from chunk coordinates to input coordinates.
+ * Offsets are in code points and lines are counted on '\n' only, as ANTLR does.
+ */
+private class ChunkShift(
+    val offset: Int,
+    val lines: Int,
+    val columns: Int,
+) {
+    fun shift(point: Point): Point =
+        Point.intern(point.line + lines, if (point.line == 1) point.column + columns else point.column)
+
+    fun shift(token: Token) {
+        val commonToken = token as CommonToken
+        if (commonToken.line == 1) {
+            commonToken.charPositionInLine += columns
+        }
+        commonToken.line += lines
+        commonToken.startIndex += offset
+        commonToken.stopIndex += offset
+    }
+
+    fun shift(issue: Issue): Issue {
+        val position = issue.position ?: return issue
+        return issue.copy(position = Position(shift(position.start), shift(position.end), position.source))
+    }
+
+    fun checkpoint(lexer: Lexer): LexerCheckpoint {
+        val line = lexer.line
+        val column = lexer.charPositionInLine
+        return LexerCheckpoint(
+            lexer.inputStream.index() + offset,
+            line + lines,
+            if (line == 1) column + columns else column,
+            lexer._mode,
+            if (lexer._modeStack.isEmpty) emptyList() else lexer._modeStack.toArray().toList(),
+        )
+    }
+
+    companion object {
+        val NONE = ChunkShift(0, 0, 0)
+    }
+}
+
+private class LexedChunk<T : StarlasuToken>(
+    val tokens: List<Token>,
+    /**
+     * The converted tokens, aligned with [tokens]; null for the tokens excluded by the channel filter.
+     */
+    val converted: List<T?>,
+    val issues: List<Issue>,
+    /**
+     * Where to restart lexing to verify the end of this chunk, and the index of the first token lexed from there.
+     * We restart a couple of tokens before the end because the last tokens may have been cut short by the chunk end.
+     */
+    val restartCheckpoint: LexerCheckpoint,
+    val restartTokenIndex: Int,
+    /**
+     * The state of the lexer after the first token of the chunk. Together with the token, it tells us whether a
+     * sequential lexer reaching the same token is in sync with this chunk.
+     */
+    val afterFirstToken: LexerCheckpoint?,
+) {
+    val firstToken: Token?
+        get() = tokens.firstOrNull()
+}
+
+/**
+ * Lexes a string by cutting it into chunks at safe lexing points, lexing the chunks concurrently, and stitching the
+ * results back together. Each cut is verified by lexing again sequentially across it, starting from a couple of tokens
+ * before it; if the result differs from that of the chunks, we keep lexing sequentially until we are back in sync
+ * with the start of a later chunk.
+ *
+ * This assumes that the state of the lexer is fully described by its position, mode and mode stack, i.e., that lexer
+ * actions don't keep additional state across tokens.
+ */
+internal class ChunkedLexing<T : StarlasuToken>(
+    private val code: String,
+    private val tokenFactory: TokenFactory<T>,
+    private val newLexer: (CharStream, MutableList<Issue>) -> Lexer,
+    private val onlyFromDefaultChannel: Boolean,
+) {
+    fun lex(
+        safeLexingPoints: SafeLexingPoints,
+        chunkSize: Int,
+        executor: Executor,
+        tokens: MutableList<T>,
+        issues: MutableList<Issue>,
+    ) {
+        val futures =
+            chunkShifts(safeLexingPoints, chunkSize).map { (start, end, shift) ->
+                CompletableFuture.supplyAsync({ lexChunk(start, end, shift) }, executor)
+            }
+        stitch(futures.map { it.join() }, tokens, issues)
+    }
+
+    /**
+     * Finds the chunk boundaries, returning for each chunk its start and end (as string offsets) and its shift.
+     */
+    private fun chunkShifts(
+        safeLexingPoints: SafeLexingPoints,
+        chunkSize: Int,
+    ): List<Triple<Int, Int, ChunkShift>> {
+        val boundaries = mutableListOf(0)
+        var target = chunkSize
+        while (target < code.length) {
+            var offset = target
+            while (offset < code.length && !safeLexingPoints.isSafeLexingPoint(code, offset)) {
+                offset++
+            }
+            if (offset >= code.length) {
+                break
+            }
+            boundaries.add(offset)
+            target = offset + chunkSize
+        }
+        boundaries.add(code.length)
+
+        val result = mutableListOf<Triple<Int, Int, ChunkShift>>()
+        var codePoints = 0
+        var lines = 0
+        var lineStart = 0
+        for (i in 0 until boundaries.size - 1) {
+            val start = boundaries[i]
+            val shift = ChunkShift(codePoints, lines, code.codePointCount(lineStart, start))
+            result.add(Triple(start, boundaries[i + 1], shift))
+            for (k in start until boundaries[i + 1]) {
+                if (code[k] == '\n') {
+                    lines++
+                    lineStart = k + 1
+                }
+            }
+            codePoints += code.codePointCount(start, boundaries[i + 1])
+        }
+        return result
+    }
+
+    private fun lexChunk(
+        start: Int,
+        end: Int,
+        shift: ChunkShift,
+    ): LexedChunk<T> {
+        val issues = mutableListOf<Issue>()
+        val lexer = newLexer(CharStreams.fromString(code.substring(start, end)), issues)
+        // Tokens must carry their own text, as their indexes will no longer refer to the chunk
+        lexer.setTokenFactory(CommonTokenFactory(true))
+        val tokens = ArrayList<Token>()
+        val converted = ArrayList<T?>()
+        var beforeLast: LexerCheckpoint? = null
+        var beforeSecondToLast: LexerCheckpoint? = null
+        var afterFirstToken: LexerCheckpoint? = null
+        val chunkStart = shift.checkpoint(lexer)
+        while (true) {
+            val checkpoint = shift.checkpoint(lexer)
+            if (tokens.size == 1) {
+                afterFirstToken = checkpoint
+            }
+            val t = lexer.nextToken()
+            if (t == null || t.type == Token.EOF) {
+                break
+            }
+            shift.shift(t)
+            beforeSecondToLast = beforeLast
+            beforeLast = checkpoint
+            tokens.add(t)
+            converted.add(if (isIncluded(t)) tokenFactory.convertToken(t) else null)
+        }
+        return LexedChunk(
+            tokens,
+            converted,
+            issues.map { shift.shift(it) },
+            beforeSecondToLast ?: beforeLast ?: chunkStart,
+            maxOf(0, tokens.size - 2),
+            afterFirstToken,
+        )
+    }
+
+    private fun stitch(
+        chunks: List<LexedChunk<T>>,
+        tokens: MutableList<T>,
+        issues: MutableList<Issue>,
+    ) {
+        val lexerIssues = mutableListOf<Issue>()
+        val lexer by lazy { newLexer(CharStreams.fromString(code), lexerIssues) }
+        var i = 0
+        // When we resynchronize on the first token of a chunk, the issues before it have already been reported
+        var resumedAt: Point? = null
+        while (i < chunks.size) {
+            val chunk = chunks[i]
+            if (i == chunks.size - 1 || isSeamSafe(lexer, lexerIssues, chunk, chunks[i + 1])) {
+                addTokens(chunk, chunk.tokens.size, tokens)
+                chunk.issues.filterTo(issues) { resumedAt == null || !it.isBefore(resumedAt!!) }
+                resumedAt = null
+                i++
+            } else {
+                addTokens(chunk, chunk.restartTokenIndex, tokens)
+                val restartPoint = Point.intern(chunk.restartCheckpoint.line, chunk.restartCheckpoint.column)
+                chunk.issues.filterTo(issues) {
+                    (resumedAt == null || !it.isBefore(resumedAt!!)) && it.isBefore(restartPoint)
+                }
+                val resync = relex(lexer, chunks, i, tokens)
+                if (resync == null) {
+                    issues.addAll(lexerIssues)
+                    i = chunks.size
+                } else {
+                    val (next, point) = resync
+                    lexerIssues.filterTo(issues) { it.isBefore(point) }
+                    resumedAt = point
+                    i = next
+                }
+                lexerIssues.clear()
+            }
+        }
+    }
+
+    private fun isSeamSafe(
+        lexer: Lexer,
+        lexerIssues: MutableList<Issue>,
+        chunk: LexedChunk<T>,
+        next: LexedChunk<T>,
+    ): Boolean {
+        try {
+            lexer.restore(chunk.restartCheckpoint)
+            var index = chunk.restartTokenIndex
+            while (true) {
+                val t = lexer.nextToken()
+                if (t == null || t.type == Token.EOF) {
+                    return index == chunk.tokens.size && next.tokens.isEmpty()
+                }
+                if (index < chunk.tokens.size) {
+                    if (!isSameToken(t, chunk.tokens[index])) {
+                        return false
+                    }
+                    index++
+                } else {
+                    val first = next.firstToken ?: return false
+                    return isSameToken(t, first) && ChunkShift.NONE.checkpoint(lexer) == next.afterFirstToken
+                }
+            }
+        } finally {
+            lexerIssues.clear()
+        }
+    }
+
+    /**
+     * Lexes sequentially from the restart checkpoint of the chunk at [from], until reaching the first token of a later
+     * chunk in the same state as the lexer of that chunk.
+     * @return the index of that chunk and the start of its first token, or null if we reached the end of the input.
+     */
+    private fun relex(
+        lexer: Lexer,
+        chunks: List<LexedChunk<T>>,
+        from: Int,
+        tokens: MutableList<T>,
+    ): Pair<Int, Point>? {
+        lexer.restore(chunks[from].restartCheckpoint)
+        var next = from + 1
+        while (true) {
+            val t = lexer.nextToken()
+            if (t == null || t.type == Token.EOF) {
+                return null
+            }
+            while (next < chunks.size && (chunks[next].firstToken?.startIndex ?: -1) < t.startIndex) {
+                next++
+            }
+            if (next < chunks.size) {
+                val first = chunks[next].firstToken!!
+                if (isSameToken(t, first) && ChunkShift.NONE.checkpoint(lexer) == chunks[next].afterFirstToken) {
+                    return next to t.startPoint
+                }
+            }
+            if (isIncluded(t)) {
+                tokens.add(tokenFactory.convertToken(t))
+            }
+        }
+    }
+
+    private fun addTokens(
+        chunk: LexedChunk<T>,
+        count: Int,
+        tokens: MutableList<T>,
+    ) {
+        for (k in 0 until count) {
+            chunk.converted[k]?.let { tokens.add(it) }
+        }
+    }
+
+    private fun isIncluded(t: Token): Boolean = !onlyFromDefaultChannel || t.channel == Token.DEFAULT_CHANNEL
+
+    private fun isSameToken(
+        a: Token,
+        b: Token,
+    ): Boolean =
+        a.type == b.type && a.channel == b.channel && a.startIndex == b.startIndex && a.stopIndex == b.stopIndex
+
+    private fun Issue.isBefore(point: Point): Boolean = position?.start?.isBefore(point) ?: false
+}
+
+/**
+ * Brings the lexer back to the given state, so that the next token is lexed from there.
+ */
+internal fun Lexer.restore(checkpoint: LexerCheckpoint) {
+    reset()
+    inputStream.seek(checkpoint.offset)
+    line = checkpoint.line
+    charPositionInLine = checkpoint.column
+    _mode = checkpoint.mode
+    checkpoint.modeStack.forEach { _modeStack.push(it) }
+}
@@ -0,0 +1,203 @@
+package com.strumenta.starlasu.parsing
+
+import com.strumenta.starlasu.model.Point
+import org.antlr.v4.runtime.Parser
+import org.antlr.v4.runtime.atn.ATNState
+import org.antlr.v4.runtime.atn.BlockStartState
+import org.antlr.v4.runtime.atn.DecisionInfo
+import org.antlr.v4.runtime.atn.PlusBlockStartState
+import org.antlr.v4.runtime.atn.PlusLoopbackState
+import org.antlr.v4.runtime.atn.StarBlockStartState
+import org.antlr.v4.runtime.atn.StarLoopEntryState
+
+/**
+ * The statistics of a decision of the grammar, i.e., a point where the parser has to choose between alternatives,
+ * aggregated across all the inputs parsed while profiling.
+ *
+ * @param rule the name of the rule containing the decision.
+ * @param indexInRule the position of the decision among the decisions of its rule, starting from 0, in the order in
+ * which ANTLR numbers them (roughly, the order in which they appear in the rule).
+ * @param kind what the decision chooses, e.g., whether to iterate a loop again or which alternative of a block to take.
+ * @param timeInPrediction the time spent predicting, in nanoseconds.
+ * @param sllLookahead the tokens looked at in SLL mode.
+ * @param llFallbacks how many times SLL prediction failed and the parser fell back to full LL prediction, which is
+ * much slower.
+ * @param llLookahead the tokens looked at in LL mode.
+ * @param ambiguityExamples where some of the ambiguities have been found in the parsed inputs.
+ */
+data class DecisionStats(
+    val decision: Int,
+    val rule: String,
+    val indexInRule: Int,
+    val atnState: Int,
+    val kind: String,
+    val invocations: Long,
+    val timeInPrediction: Long,
+    val sllLookahead: Long,
+    val sllMaxLookahead: Long,
+    val llFallbacks: Long,
+    val llLookahead: Long,
+    val llMaxLookahead: Long,
+    val ambiguities: Long,
+    val contextSensitivities: Long,
+    val errors: Long,
+    val ambiguityExamples: List<Point>,
+) {
+    val location: String
+        get() = "$rule, decision #$indexInRule ($kind, ATN state $atnState)"
+}
+
+/**
+ * Collects the [DecisionInfo] produced by ANTLR's profiling simulator while parsing a corpus of inputs, to find the
+ * decisions of the grammar where the parser spends most of its time. See [StarlasuParser.decisionProfile] and
+ * [StarlasuParser.profileDecisions].
+ *
+ * Instances are thread-safe.
+ */
+class DecisionProfile
+    @JvmOverloads
+    constructor(
+        val maxAmbiguityExamples: Int = 3,
+    ) {
+        private val decisions = sortedMapOf<Int, DecisionStats>()
+
+        /**
+         * The number of inputs profiled.
+         */
+        var inputs: Int = 0
+            private set
+
+        /**
+         * Adds the information collected while parsing an input.
+         */
+        @Synchronized
+        fun add(
+            parser: Parser,
+            decisionInfo: Array<DecisionInfo>,
+        ) {
+            inputs++
+            decisionInfo.forEach { info ->
+                if (info.invocations == 0L) {
+                    return@forEach
+                }
+                val examples =
+                    info.ambiguities.take(maxAmbiguityExamples).mapNotNull { ambiguity ->
+                        parser.tokenStream
+                            ?.takeIf { ambiguity.startIndex in 0 until it.size() }
+                            ?.get(ambiguity.startIndex)
+                            ?.startPoint
+                    }
+                val previous = decisions[info.decision] ?: emptyStats(parser, info.decision)
+                decisions[info.decision] =
+                    previous.copy(
+                        invocations = previous.invocations + info.invocations,
+                        timeInPrediction = previous.timeInPrediction + info.timeInPrediction,
+                        sllLookahead = previous.sllLookahead + info.SLL_TotalLook,
+                        sllMaxLookahead = maxOf(previous.sllMaxLookahead, info.SLL_MaxLook),
+                        llFallbacks = previous.llFallbacks + info.LL_Fallback,
+                        llLookahead = previous.llLookahead + info.LL_TotalLook,
+                        llMaxLookahead = maxOf(previous.llMaxLookahead, info.LL_MaxLook),
+                        ambiguities = previous.ambiguities + info.ambiguities.size,
+                        contextSensitivities = previous.contextSensitivities + info.contextSensitivities.size,
+                        errors = previous.errors + info.errors.size,
+                        ambiguityExamples = (previous.ambiguityExamples + examples).take(maxAmbiguityExamples),
+                    )
+            }
+        }
+
+        /**
+         * The statistics of the decisions that have been invoked at least once, by decision number.
+         */
+        val decisionStats: List<DecisionStats>
+            @Synchronized
+            get() = decisions.values.toList()
+
+        /**
+         * The decisions that took most time, the most expensive first.
+         */
+        @JvmOverloads
+        fun hotspots(limit: Int = Int.MAX_VALUE): List<DecisionStats> =
+            decisionStats.sortedByDescending { it.timeInPrediction }.take(limit)
+
+        /**
+         * A human-readable table of the [hotspots], with times in microseconds.
+         */
+        @JvmOverloads
+        fun report(limit: Int = 20): String =
+            buildString {
+                val hotspots = hotspots(limit)
+                val totalTime = decisionStats.sumOf { it.timeInPrediction }.coerceAtLeast(1)
+                append("Decision profile of $inputs inputs").append(System.lineSeparator())
+                append(
+                    String.format(
+                        "%6s %12s %6s %10s %8s %8s %8s %6s  %s%n",
+                        "time%",
+                        "time(us)",
+                        "calls",
+                        "SLL look",
+                        "LL falls",
+                        "LL look",
+                        "ambig",
+                        "ctx",
+                        "location",
+                    ),
+                )
+                hotspots.forEach {
+                    append(
+                        String.format(
+                            "%6.1f %12.1f %6d %10d %8d %8d %8d %6d  %s%n",
+                            100.0 * it.timeInPrediction / totalTime,
+                            it.timeInPrediction / 1000.0,
+                            it.invocations,
+                            it.sllLookahead,
+                            it.llFallbacks,
+                            it.llLookahead,
+                            it.ambiguities,
+                            it.contextSensitivities,
+                            it.location,
+                        ),
+                    )
+                    if (it.ambiguityExamples.isNotEmpty()) {
+                        append("       ambiguous at ${it.ambiguityExamples.joinToString()}")
+                        append(System.lineSeparator())
+                    }
+                }
+            }
+
+        private fun emptyStats(
+            parser: Parser,
+            decision: Int,
+        ): DecisionStats {
+            val atn = parser.atn
+            val state = atn.decisionToState[decision]
+            val indexInRule = (0 until decision).count { atn.decisionToState[it].ruleIndex == state.ruleIndex }
+            return DecisionStats(
+                decision,
+                parser.ruleNames.getOrElse(state.ruleIndex) { "rule ${state.ruleIndex}" },
+                indexInRule,
+                state.stateNumber,
+                kindOf(state),
+                0,
+                0,
+                0,
+                0,
+                0,
+                0,
+                0,
+                0,
+                0,
+                0,
+                emptyList(),
+            )
+        }
+
+        private fun kindOf(state: ATNState): String =
+            when (state) {
+                is StarLoopEntryState -> if (state.isPrecedenceDecision) "left recursion" else "(...)* loop"
+                is PlusLoopbackState -> "(...)+ loop"
+                is StarBlockStartState -> "(...)* alternatives"
+                is PlusBlockStartState -> "(...)+ alternatives"
+                is BlockStartState -> "${state.numberOfTransitions} alternatives"
+                else -> "decision"
+            }
+    }
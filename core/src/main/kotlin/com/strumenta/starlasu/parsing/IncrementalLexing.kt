@@ -0,0 +1,232 @@
+package com.strumenta.starlasu.parsing
+
+import com.strumenta.starlasu.validation.Issue
+import org.antlr.v4.runtime.CharStream
+import org.antlr.v4.runtime.CharStreams
+import org.antlr.v4.runtime.CommonToken
+import org.antlr.v4.runtime.CommonTokenFactory
+import org.antlr.v4.runtime.Lexer
+import org.antlr.v4.runtime.Token
+
+/**
+ * The tokens that changed after an edit processed by an [IncrementalLexer]: the [removedCount] tokens starting at
+ * [startIndex] have been replaced by the [inserted] tokens. The tokens after them are the same as before, moved by
+ * [lineDelta] lines (their columns do not change).
+ *
+ * @param issues the issues found while lexing the [inserted] tokens.
+ */
+data class TokenChange<T : StarlasuToken>(
+    val startIndex: Int,
+    val removedCount: Int,
+    val inserted: List<T>,
+    val lineDelta: Int,
+    val issues: List<Issue>,
+)
+
+/**
+ * Keeps the tokens of some code up to date while the code is edited, as in an editor, re-lexing as little as
+ * possible. The state of the lexer (position, mode and mode stack) is recorded at the first token boundary of every
+ * line, which is not the line start when a token spans the line break, e.g., skipped whitespace including a newline
+ * and the indentation after it. After an edit, lexing restarts from the last checkpoint on a line before the line of
+ * the edit, and stops at the first checkpoint after the edit where the lexer is in the same state as it was in the
+ * previous run. From there on, the old tokens are reused.
+ *
+ * Like [StarlasuANTLRLexer.lexInParallel], this assumes that the state of the lexer is fully described by its
+ * position, mode and mode stack, i.e., that lexer actions don't keep additional state across tokens.
+ *
+ * Instances are not thread-safe. Create them with [StarlasuANTLRLexer.incrementalLexer].
+ */
+class IncrementalLexer<T : StarlasuToken> internal constructor(
+    code: String,
+    private val tokenFactory: TokenFactory<T>,
+    private val newLexer: (CharStream, MutableList<Issue>) -> Lexer,
+    private val onlyFromDefaultChannel: Boolean,
+) {
+    var code: String = code
+        private set
+
+    /**
+     * The issues found by the last lexing: the one of the whole code when this was created, then the one of the region
+     * re-lexed after the last edit.
+     */
+    var issues: List<Issue> = emptyList()
+        private set
+
+    /**
+     * The ANTLR tokens, excluding EOF. They carry their own text, so they stay valid across edits.
+     */
+    private val antlrTokens = ArrayList<Token>()
+
+    /**
+     * The state of the lexer at the first token boundary of each line that has one, sorted by offset. The checkpoint
+     * records the actual offset, line and column of the boundary.
+     */
+    private val lineCheckpoints = ArrayList<LineCheckpoint>()
+
+    private class LineCheckpoint(
+        val checkpoint: LexerCheckpoint,
+        val tokenIndex: Int,
+    )
+
+    init {
+        val lexerIssues = mutableListOf<Issue>()
+        val start = LineCheckpoint(LexerCheckpoint(0, 1, 0, Lexer.DEFAULT_MODE, emptyList()), 0)
+        val relexed = relex(lexer(code, lexerIssues), start, 0, 0, 0)
+        antlrTokens.addAll(relexed.tokens)
+        lineCheckpoints.addAll(relexed.lineCheckpoints)
+        issues = lexerIssues
+    }
+
+    /**
+     * The current tokens, converted by the token factory.
+     */
+    val tokens: List<T>
+        get() = antlrTokens.map { tokenFactory.convertToken(it) }
+
+    /**
+     * Applies the given edits, whose positions refer to the current [code], and re-lexes the code around them.
+     */
+    fun edit(edits: List<TextEdit>): TokenChange<T> {
+        if (edits.isEmpty()) {
+            return TokenChange(0, 0, emptyList(), 0, emptyList())
+        }
+        val offsets = CodeOffsets(code)
+        val editStart = edits.minOf { it.position.start }
+        val oldEnd = offsets.codePointOffset(edits.maxOf { it.position.end })
+        val newCode = code.applyEdits(edits)
+        val delta = newCode.codePointCount(0, newCode.length) - code.codePointCount(0, code.length)
+        val lineDelta = newCode.count { it == '\n' } - code.count { it == '\n' }
+
+        // The lexer may have looked ahead past the end of a token, so we restart from the line before the edit
+        val restart = lineCheckpoints.indexOfLast { it.checkpoint.line < editStart.line }.coerceAtLeast(0)
+        val lexerIssues = mutableListOf<Issue>()
+        val relexed = relex(lexer(newCode, lexerIssues), lineCheckpoints[restart], oldEnd + delta, delta, lineDelta)
+
+        val startIndex = lineCheckpoints[restart].tokenIndex
+        val resync = relexed.resync
+        val removedEnd = if (resync == null) antlrTokens.size else lineCheckpoints[resync].tokenIndex
+        val tail =
+            antlrTokens.subList(removedEnd, antlrTokens.size).map {
+                shift(it as CommonToken, delta, lineDelta)
+            }
+        val tailCheckpoints =
+            if (resync == null) {
+                emptyList()
+            } else {
+                val tokenDelta = relexed.tokens.size - (removedEnd - startIndex)
+                lineCheckpoints.subList(resync, lineCheckpoints.size).map {
+                    val checkpoint = it.checkpoint
+                    LineCheckpoint(
+                        checkpoint.copy(offset = checkpoint.offset + delta, line = checkpoint.line + lineDelta),
+                        it.tokenIndex + tokenDelta,
+                    )
+                }
+            }
+
+        antlrTokens.subList(startIndex, antlrTokens.size).clear()
+        antlrTokens.addAll(relexed.tokens)
+        antlrTokens.addAll(tail)
+        lineCheckpoints.subList(restart, lineCheckpoints.size).clear()
+        lineCheckpoints.addAll(relexed.lineCheckpoints)
+        lineCheckpoints.addAll(tailCheckpoints)
+        code = newCode
+        issues = lexerIssues
+        return TokenChange(
+            startIndex,
+            removedEnd - startIndex,
+            relexed.tokens.map { tokenFactory.convertToken(it) },
+            lineDelta,
+            lexerIssues,
+        )
+    }
+
+    private class Relexed(
+        val tokens: List<Token>,
+        val lineCheckpoints: List<LineCheckpoint>,
+        /**
+         * The index, in the old checkpoints, of the checkpoint where we got back in sync, or null if we reached EOF.
+         */
+        val resync: Int?,
+    )
+
+    /**
+     * Lexes from [restart] until a checkpoint at or after [newEnd] where the state of the lexer matches the one
+     * recorded at the corresponding old checkpoint, i.e., the one [delta] code points and [lineDelta] lines before.
+     * The columns must match too, so we never get back in sync on the line where the edit ends if the edit moved it.
+     */
+    private fun relex(
+        lexer: Lexer,
+        restart: LineCheckpoint,
+        newEnd: Int,
+        delta: Int,
+        lineDelta: Int,
+    ): Relexed {
+        lexer.restore(restart.checkpoint)
+        val tokens = ArrayList<Token>()
+        val newCheckpoints = ArrayList<LineCheckpoint>()
+        var lastCheckpointLine = restart.checkpoint.line - 1
+        while (true) {
+            if (lexer.line > lastCheckpointLine) {
+                lastCheckpointLine = lexer.line
+                val checkpoint = lexer.checkpoint()
+                if (checkpoint.offset >= newEnd && checkpoint.offset > restart.checkpoint.offset) {
+                    val old = findCheckpoint(checkpoint.offset - delta)
+                    if (old != null &&
+                        lineCheckpoints[old].checkpoint ==
+                        checkpoint.copy(offset = checkpoint.offset - delta, line = checkpoint.line - lineDelta)
+                    ) {
+                        return Relexed(tokens, newCheckpoints, old)
+                    }
+                }
+                newCheckpoints.add(LineCheckpoint(checkpoint, restart.tokenIndex + tokens.size))
+            }
+            val t = lexer.nextToken()
+            if (t == null || t.type == Token.EOF) {
+                return Relexed(tokens, newCheckpoints, null)
+            }
+            if (!onlyFromDefaultChannel || t.channel == Token.DEFAULT_CHANNEL) {
+                tokens.add(t)
+            }
+        }
+    }
+
+    private fun findCheckpoint(offset: Int): Int? =
+        lineCheckpoints.binarySearch { it.checkpoint.offset.compareTo(offset) }.takeIf { it >= 0 }
+
+    private fun lexer(
+        code: String,
+        issues: MutableList<Issue>,
+    ): Lexer {
+        val lexer = newLexer(CharStreams.fromString(code), issues)
+        // Tokens must carry their own text, as they outlive the code they were lexed from
+        lexer.setTokenFactory(CommonTokenFactory(true))
+        return lexer
+    }
+
+    /**
+     * Copies the token rather than moving it, as the old token may still be referenced by converted tokens.
+     */
+    private fun shift(
+        token: CommonToken,
+        delta: Int,
+        lineDelta: Int,
+    ): Token {
+        if (delta == 0 && lineDelta == 0) {
+            return token
+        }
+        val shifted = CommonToken(token)
+        shifted.line += lineDelta
+        shifted.startIndex += delta
+        shifted.stopIndex += delta
+        return shifted
+    }
+
+    private fun Lexer.checkpoint(): LexerCheckpoint =
+        LexerCheckpoint(
+            inputStream.index(),
+            line,
+            charPositionInLine,
+            _mode,
+            if (_modeStack.isEmpty) emptyList() else _modeStack.toArray().toList(),
+        )
+}
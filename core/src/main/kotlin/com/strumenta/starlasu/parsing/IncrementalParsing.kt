@@ -0,0 +1,236 @@
+package com.strumenta.starlasu.parsing
+
+import com.strumenta.starlasu.model.ASTNode
+import com.strumenta.starlasu.model.Point
+import com.strumenta.starlasu.model.Position
+import com.strumenta.starlasu.model.nodeProperties
+import com.strumenta.starlasu.validation.Issue
+import org.antlr.v4.runtime.CommonToken
+import org.antlr.v4.runtime.ParserRuleContext
+import org.antlr.v4.runtime.WritableToken
+import org.antlr.v4.runtime.tree.ParseTree
+import org.antlr.v4.runtime.tree.TerminalNode
+import kotlin.reflect.KMutableProperty
+
+/**
+ * A change to a piece of code: the text at [position] is replaced with [newText]. Insertions have a flat position,
+ * deletions have an empty [newText].
+ */
+data class TextEdit(
+    val position: Position,
+    val newText: String,
+)
+
+/**
+ * Applies the given edits, whose positions refer to this code. The edits must not overlap.
+ */
+fun String.applyEdits(edits: List<TextEdit>): String {
+    val offsets = CodeOffsets(this)
+    val sorted = edits.sortedBy { it.position.start }
+    for (i in 1 until sorted.size) {
+        require(!sorted[i].position.start.isBefore(sorted[i - 1].position.end)) {
+            "Overlapping edits: ${sorted[i - 1]} and ${sorted[i]}"
+        }
+    }
+    val result = StringBuilder(this)
+    sorted.asReversed().forEach {
+        result.replace(offsets.charOffset(it.position.start), offsets.charOffset(it.position.end), it.newText)
+    }
+    return result.toString()
+}
+
+/**
+ * Translates points into offsets in a piece of code. Columns are expressed in code points, as ANTLR does.
+ */
+internal class CodeOffsets(
+    private val code: String,
+) {
+    private val lineStarts: IntArray =
+        run {
+            val starts = ArrayList<Int>()
+            starts.add(0)
+            code.forEachIndexed { i, c ->
+                if (c == '\n') {
+                    starts.add(i + 1)
+                }
+            }
+            starts.toIntArray()
+        }
+
+    fun charOffset(point: Point): Int {
+        require(point.line <= lineStarts.size) { "$point is after the end of the code" }
+        return code.offsetByCodePoints(lineStarts[point.line - 1], point.column)
+    }
+
+    fun codePointOffset(point: Point): Int = code.codePointCount(0, charOffset(point))
+}
+
+/**
+ * How the points after a reparsed region move: the points on the line where the region ended move by
+ * [columns], and all the points after the region move by [lines].
+ */
+internal class RegionShift(
+    private val oldEnd: Point,
+    private val lines: Int,
+    private val columns: Int,
+    private val offset: Int,
+) {
+    fun isAfterRegion(point: Point): Boolean = !point.isBefore(oldEnd)
+
+    fun shift(point: Point): Point =
+        if (!isAfterRegion(point)) {
+            point
+        } else {
+            Point.intern(point.line + lines, if (point.line == oldEnd.line) point.column + columns else point.column)
+        }
+
+    fun shift(position: Position): Position = Position(shift(position.start), shift(position.end), position.source)
+
+    fun shift(token: CommonToken) {
+        // The text would otherwise be read from the old input, using the new indexes
+        token.text = token.text
+        if (token.line == oldEnd.line) {
+            token.charPositionInLine += columns
+        }
+        token.line += lines
+        token.startIndex += offset
+        token.stopIndex += offset
+    }
+
+    /**
+     * Shifts the tokens of the parse tree that come after [oldStopIndex], the stop index of the reparsed region.
+     */
+    fun shiftTokensAfter(
+        root: ParserRuleContext,
+        oldStopIndex: Int,
+    ) {
+        val stack = ArrayDeque<ParserRuleContext>()
+        stack.addLast(root)
+        while (stack.isNotEmpty()) {
+            val ctx = stack.removeLast()
+            ctx.children?.forEach { child ->
+                when (child) {
+                    is TerminalNode -> {
+                        val token = child.symbol
+                        if (token is CommonToken && token.startIndex > oldStopIndex) {
+                            shift(token)
+                        }
+                    }
+                    is ParserRuleContext -> {
+                        val stop = child.stop
+                        if (stop == null || stop.stopIndex > oldStopIndex) {
+                            stack.addLast(child)
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adapts issues found before the reparsing: the issues in the reparsed region are dropped, the ones after it are
+     * moved.
+     */
+    fun shift(
+        issues: List<Issue>,
+        regionStart: Point,
+    ): List<Issue> =
+        issues.mapNotNull { issue ->
+            val position = issue.position
+            when {
+                position == null -> issue
+                !regionStart.isBefore(position.end) -> issue
+                isAfterRegion(position.start) -> issue.copy(position = shift(position))
+                else -> null
+            }
+        }
+}
+
+/**
+ * Numbers the tokens of the parse tree in the order in which they appear, so that their token indexes are
+ * consistent after a region has been reparsed on its own. The tokens that are not in the parse tree, e.g., the hidden
+ * ones, are not counted.
+ */
+internal fun renumberTokens(root: ParserRuleContext) {
+    var index = 0
+    val stack = ArrayDeque<ParseTree>()
+    stack.addLast(root)
+    while (stack.isNotEmpty()) {
+        when (val tree = stack.removeLast()) {
+            is TerminalNode -> (tree.symbol as? WritableToken)?.tokenIndex = index++
+            is ParserRuleContext -> tree.children?.asReversed()?.forEach { stack.addLast(it) }
+        }
+    }
+}
+
+/**
+ * Replaces [oldContext] with [newContext] in the parse tree, including in the label fields of the parent context and
+ * in the start/stop tokens of the ancestors.
+ */
+internal fun replaceInParseTree(
+    oldContext: ParserRuleContext,
+    newContext: ParserRuleContext,
+) {
+    val parent = oldContext.parent as ParserRuleContext
+    val index = parent.children.indexOfFirst { it === oldContext }
+    parent.children[index] = newContext
+    newContext.setParent(parent)
+    parent.javaClass.fields.forEach { field ->
+        val value = field.get(parent)
+        if (value === oldContext) {
+            field.set(parent, newContext)
+        } else if (value is MutableList<*>) {
+            val i = value.indexOfFirst { it === oldContext }
+            if (i >= 0) {
+                @Suppress("UNCHECKED_CAST")
+                (value as MutableList<Any>)[i] = newContext
+            }
+        }
+    }
+    var ancestor: ParserRuleContext? = parent
+    while (ancestor != null) {
+        if (ancestor.start === oldContext.start) {
+            ancestor.start = newContext.start
+        }
+        if (ancestor.stop === oldContext.stop) {
+            ancestor.stop = newContext.stop
+        }
+        ancestor = ancestor.parent as ParserRuleContext?
+    }
+}
+
+/**
+ * Replaces the child [oldChild], compared by identity, with [newChild].
+ * @return false if [oldChild] could not be replaced, e.g., because it is in an immutable property.
+ */
+internal fun ASTNode.replaceChildByIdentity(
+    oldChild: ASTNode,
+    newChild: ASTNode,
+): Boolean {
+    try {
+        nodeProperties.forEach { property ->
+            val value = property.get(this)
+            if (value === oldChild) {
+                if (property !is KMutableProperty<*>) {
+                    return false
+                }
+                property.setter.call(this, newChild)
+                newChild.parent = this
+                return true
+            } else if (value is MutableList<*>) {
+                val index = value.indexOfFirst { it === oldChild }
+                if (index >= 0) {
+                    @Suppress("UNCHECKED_CAST")
+                    (value as MutableList<ASTNode>)[index] = newChild
+                    newChild.parent = this
+                    return true
+                }
+            }
+        }
+    } catch (e: IllegalArgumentException) {
+        return false
+    } catch (e: UnsupportedOperationException) {
+        return false
+    }
+    return false
+}
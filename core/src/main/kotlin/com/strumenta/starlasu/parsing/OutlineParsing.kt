@@ -0,0 +1,169 @@
+package com.strumenta.starlasu.parsing
+
+import com.strumenta.starlasu.model.ASTNode
+import com.strumenta.starlasu.model.LazyChild
+import com.strumenta.starlasu.model.Source
+import com.strumenta.starlasu.model.lazyChild
+import com.strumenta.starlasu.transformation.TransformationContext
+import com.strumenta.starlasu.utils.CancellationToken
+import com.strumenta.starlasu.validation.Issue
+import org.antlr.v4.runtime.CharStream
+import org.antlr.v4.runtime.CommonToken
+import org.antlr.v4.runtime.Token
+import org.antlr.v4.runtime.TokenFactory
+import org.antlr.v4.runtime.TokenSource
+import org.antlr.v4.runtime.tree.TerminalNode
+import java.util.ArrayDeque
+import kotlin.reflect.KProperty1
+
+/**
+ * How to parse only the outline of the code, e.g., the declarations but not the bodies of functions, with
+ * [StarlasuParser.parseOutline].
+ *
+ * @param entryRule the name of the rule to invoke instead of the root rule, if any; it is usually a variant of the root
+ * rule that accepts the skipped regions in place of the parts of the code that are not part of the outline.
+ * @param skippableRegions the regions of the code that are not parsed.
+ */
+class OutlineSpecification
+    @JvmOverloads
+    constructor(
+        val entryRule: String? = null,
+        val skippableRegions: List<SkippableRegion> = emptyList(),
+    )
+
+/**
+ * A balanced region of the code, delimited by two tokens (e.g., braces), that is not parsed in outline mode. The
+ * tokens of the region, delimiters included, are replaced with a single [SkippedRegionToken] of type
+ * [skippedTokenType], which should be declared in the grammar (e.g., in a `tokens { ... }` section) and accepted by the
+ * outline rules where the region may appear.
+ *
+ * @param rule the name of the rule that parses the region, delimiters included, when it is accessed.
+ * @param precededBy if not null, the region is skipped only if the default-channel token before it has one of these
+ * types, e.g., the closing parenthesis of a function signature.
+ */
+class SkippableRegion
+    @JvmOverloads
+    constructor(
+        val openTokenType: Int,
+        val closeTokenType: Int,
+        val skippedTokenType: Int,
+        val rule: String,
+        val precededBy: Set<Int>? = null,
+    )
+
+/**
+ * A token standing for a region of the code that was skipped in outline mode. It spans the whole region and keeps its
+ * tokens, so that the region can be parsed later without lexing it again.
+ */
+class SkippedRegionToken(
+    val region: SkippableRegion,
+    val skippedTokens: List<Token>,
+) : CommonToken(
+        org.antlr.v4.runtime.misc.Pair(skippedTokens.first().tokenSource, skippedTokens.first().inputStream),
+        region.skippedTokenType,
+        Token.DEFAULT_CHANNEL,
+        skippedTokens.first().startIndex,
+        skippedTokens.last().stopIndex,
+    ) {
+    init {
+        line = skippedTokens.first().line
+        charPositionInLine = skippedTokens.first().charPositionInLine
+    }
+}
+
+/**
+ * Replaces the tokens of the skippable regions with [SkippedRegionToken]s. When a region is not closed, its tokens are
+ * passed through unchanged.
+ */
+internal class SkippingTokenSource(
+    private val source: TokenSource,
+    regions: List<SkippableRegion>,
+) : TokenSource by source {
+    private val regionsByOpenType = regions.associateBy { it.openTokenType }
+    private val pending = ArrayDeque<Token>()
+    private var previousType = Token.INVALID_TYPE
+
+    override fun nextToken(): Token {
+        val token = if (pending.isEmpty()) nextRegionOrToken() else pending.removeFirst()
+        if (token.channel == Token.DEFAULT_CHANNEL) {
+            previousType = token.type
+        }
+        return token
+    }
+
+    private fun nextRegionOrToken(): Token {
+        val first = source.nextToken()
+        val region = regionsByOpenType[first.type]
+        if (region == null ||
+            first.channel != Token.DEFAULT_CHANNEL ||
+            (region.precededBy != null && previousType !in region.precededBy)
+        ) {
+            return first
+        }
+        val skipped = mutableListOf(first)
+        var depth = 1
+        while (depth > 0) {
+            val token = source.nextToken()
+            if (token.type == Token.EOF) {
+                pending.addAll(skipped.subList(1, skipped.size))
+                pending.add(token)
+                return first
+            }
+            skipped.add(token)
+            if (token.channel == Token.DEFAULT_CHANNEL) {
+                if (token.type == region.openTokenType) {
+                    depth++
+                } else if (token.type == region.closeTokenType) {
+                    depth--
+                }
+            }
+        }
+        return SkippedRegionToken(region, skipped)
+    }
+
+    override fun getTokenFactory(): TokenFactory<*> = source.tokenFactory
+
+    override fun getInputStream(): CharStream = source.inputStream
+}
+
+/**
+ * The context of the transformation of a parse tree obtained in outline mode. Transformation rules can use it to
+ * make the skipped regions lazy children of the nodes they produce.
+ */
+class OutlineTransformationContext internal constructor(
+    issues: MutableList<Issue>,
+    source: Source?,
+    cancellationToken: CancellationToken?,
+    private val parseRegion: (SkippedRegionToken, MutableList<Issue>) -> ASTNode?,
+) : TransformationContext(issues, null, source, cancellationToken) {
+    /**
+     * Makes the given child of [node] the result of parsing and transforming the skipped region represented by the
+     * given terminal node. The property must be delegated to a [LazyChild]: the region is parsed the first time the
+     * child is accessed, then the child gets [node] as its parent and the issues found meanwhile are added to the ones
+     * of this context.
+     */
+    fun lazyRegion(
+        node: ASTNode,
+        property: KProperty1<out ASTNode, ASTNode?>,
+        region: TerminalNode,
+    ) {
+        val token = region.symbol
+        require(token is SkippedRegionToken) { "$region is not a skipped region" }
+        @Suppress("UNCHECKED_CAST")
+        val lazyChild =
+            node.lazyChild(property.name) as LazyChild<ASTNode?>?
+                ?: throw IllegalStateException(
+                    "Child ${property.name} of ${node.nodeType} is not delegated to a LazyChild",
+                )
+        val issues = this.issues
+        lazyChild.defer {
+            val regionIssues = mutableListOf<Issue>()
+            val child = parseRegion(token, regionIssues)
+            child?.parent = node
+            synchronized(issues) {
+                issues.addAll(regionIssues)
+            }
+            child
+        }
+    }
+}
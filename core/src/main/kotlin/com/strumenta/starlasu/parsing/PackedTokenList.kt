@@ -0,0 +1,229 @@
+package com.strumenta.starlasu.parsing
+
+import com.strumenta.starlasu.model.Point
+import com.strumenta.starlasu.model.Position
+import org.antlr.v4.runtime.CharStream
+import org.antlr.v4.runtime.CharStreams
+import org.antlr.v4.runtime.Token
+import org.antlr.v4.runtime.misc.Interval
+import java.io.ObjectInputStream
+import java.io.ObjectOutputStream
+import java.io.Serializable
+
+/**
+ * A [StarlasuToken] obtained from a [PackedTokenList]. In addition to the category, position and text, it exposes
+ * the ANTLR token type and channel, and the indexes of the token in the input stream.
+ */
+class PackedStarlasuToken(
+    category: TokenCategory,
+    position: Position,
+    text: String?,
+    val type: Int,
+    val channel: Int,
+    val startIndex: Int,
+    val stopIndex: Int,
+) : StarlasuToken(category, position, text)
+
+/**
+ * A compact list of tokens. Instead of keeping one object graph per token (the ANTLR token, the category, the position
+ * and its points, the text), it stores the token type, category, channel, start/stop indexes and start/end points in
+ * primitive arrays. [StarlasuToken]s are created on demand, as views over those arrays, when the list is accessed;
+ * they're not cached, so accessing the same index twice returns two distinct, equivalent tokens.
+ *
+ * The text of the tokens is not stored: it is read from [charStream] when available, otherwise it is null. When the
+ * list is serialized, the text of the stream up to the end of the last token is serialized with it, so that the
+ * deserialized list can still return the text of the tokens.
+ *
+ * Tokens can only be appended, and the list is not thread-safe while it is being filled.
+ */
+class PackedTokenList
+    @JvmOverloads
+    constructor(
+        charStream: CharStream? = null,
+        initialCapacity: Int = 16,
+    ) : AbstractList<StarlasuToken>(),
+        RandomAccess,
+        Serializable {
+        /**
+         * The stream from which the text of the tokens is read, if any. After deserialization, it is a stream over the
+         * text that was serialized with the list.
+         */
+        @Transient
+        var charStream: CharStream? = charStream
+            private set
+
+        private var count = 0
+        private var types = IntArray(initialCapacity)
+        private var categoryIndexes = IntArray(initialCapacity)
+        private var channels = IntArray(initialCapacity)
+        private var startIndexes = IntArray(initialCapacity)
+        private var stopIndexes = IntArray(initialCapacity)
+        private var startLines = IntArray(initialCapacity)
+        private var startColumns = IntArray(initialCapacity)
+        private var endLines = IntArray(initialCapacity)
+        private var endColumns = IntArray(initialCapacity)
+
+        private val categories = mutableListOf<TokenCategory>()
+        private val categoryIndexByCategory = mutableMapOf<TokenCategory, Int>()
+
+        override val size: Int
+            get() = count
+
+        override fun get(index: Int): StarlasuToken {
+            checkIndex(index)
+            return PackedStarlasuToken(
+                categoryAt(index),
+                positionAt(index),
+                textAt(index),
+                types[index],
+                channels[index],
+                startIndexes[index],
+                stopIndexes[index],
+            )
+        }
+
+        /**
+         * Appends an ANTLR token, with the given category.
+         */
+        fun add(
+            token: Token,
+            category: TokenCategory,
+        ) {
+            val end = token.endPoint
+            add(
+                category,
+                token.line,
+                token.charPositionInLine,
+                end.line,
+                end.column,
+                token.type,
+                token.channel,
+                token.startIndex,
+                token.stopIndex,
+            )
+        }
+
+        /**
+         * Appends a token for which we only know the category and position, such as a token read from a serialized
+         * form.
+         */
+        fun add(
+            category: TokenCategory,
+            position: Position,
+        ) {
+            add(category, position.start.line, position.start.column, position.end.line, position.end.column)
+        }
+
+        @JvmOverloads
+        fun add(
+            category: TokenCategory,
+            startLine: Int,
+            startColumn: Int,
+            endLine: Int,
+            endColumn: Int,
+            type: Int = Token.INVALID_TYPE,
+            channel: Int = Token.DEFAULT_CHANNEL,
+            startIndex: Int = -1,
+            stopIndex: Int = -1,
+        ) {
+            ensureCapacity(count + 1)
+            types[count] = type
+            categoryIndexes[count] = categoryIndex(category)
+            channels[count] = channel
+            startIndexes[count] = startIndex
+            stopIndexes[count] = stopIndex
+            startLines[count] = startLine
+            startColumns[count] = startColumn
+            endLines[count] = endLine
+            endColumns[count] = endColumn
+            count++
+        }
+
+        fun typeAt(index: Int): Int = types[checkIndex(index)]
+
+        fun channelAt(index: Int): Int = channels[checkIndex(index)]
+
+        fun startIndexAt(index: Int): Int = startIndexes[checkIndex(index)]
+
+        fun stopIndexAt(index: Int): Int = stopIndexes[checkIndex(index)]
+
+        fun categoryAt(index: Int): TokenCategory = categories[categoryIndexes[checkIndex(index)]]
+
+        fun startLineAt(index: Int): Int = startLines[checkIndex(index)]
+
+        fun startColumnAt(index: Int): Int = startColumns[checkIndex(index)]
+
+        fun endLineAt(index: Int): Int = endLines[checkIndex(index)]
+
+        fun endColumnAt(index: Int): Int = endColumns[checkIndex(index)]
+
+        fun positionAt(index: Int): Position =
+            Position(
+                Point.intern(startLines[checkIndex(index)], startColumns[index]),
+                Point.intern(endLines[index], endColumns[index]),
+            )
+
+        fun textAt(index: Int): String? {
+            val stream = charStream ?: return null
+            val start = startIndexes[checkIndex(index)]
+            val stop = stopIndexes[index]
+            return if (start < 0 || stop < start - 1) null else stream.getText(Interval(start, stop))
+        }
+
+        private fun writeObject(output: ObjectOutputStream) {
+            output.defaultWriteObject()
+            val stream = charStream
+            var end = -1
+            for (i in 0 until count) {
+                if (startIndexes[i] >= 0) {
+                    end = maxOf(end, stopIndexes[i])
+                }
+            }
+            output.writeObject(if (stream == null || end < 0) null else stream.getText(Interval(0, end)))
+        }
+
+        private fun readObject(input: ObjectInputStream) {
+            input.defaultReadObject()
+            charStream = (input.readObject() as String?)?.let { CharStreams.fromString(it) }
+        }
+
+        /**
+         * Releases the unused capacity.
+         */
+        fun trimToSize() {
+            if (types.size > count) {
+                resize(count)
+            }
+        }
+
+        private fun categoryIndex(category: TokenCategory): Int =
+            categoryIndexByCategory.getOrPut(category) {
+                categories.add(category)
+                categories.size - 1
+            }
+
+        private fun checkIndex(index: Int): Int {
+            if (index < 0 || index >= count) {
+                throw IndexOutOfBoundsException("Index $index, size $count")
+            }
+            return index
+        }
+
+        private fun ensureCapacity(capacity: Int) {
+            if (capacity > types.size) {
+                resize(maxOf(capacity, types.size + (types.size shr 1), 16))
+            }
+        }
+
+        private fun resize(capacity: Int) {
+            types = types.copyOf(capacity)
+            categoryIndexes = categoryIndexes.copyOf(capacity)
+            channels = channels.copyOf(capacity)
+            startIndexes = startIndexes.copyOf(capacity)
+            stopIndexes = stopIndexes.copyOf(capacity)
+            startLines = startLines.copyOf(capacity)
+            startColumns = startColumns.copyOf(capacity)
+            endLines = endLines.copyOf(capacity)
+            endColumns = endColumns.copyOf(capacity)
+        }
+    }
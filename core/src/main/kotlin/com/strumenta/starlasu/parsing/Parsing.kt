@@ -65,7 +65,7 @@ open class CodeProcessingResult<D>(
 
 data class TokenCategory(
     val type: String,
-) {
+) : Serializable {
     companion object {
         val COMMENT = TokenCategory("Comment")
         val KEYWORD = TokenCategory("Keyword")
@@ -167,6 +167,8 @@ class FirstStageParsingResult<C : ParserRuleContext>(
  * @param code the processed source code.
  * @param firstStage the result of the first parsing stage (from source code to parse tree).
  * @param time the time spent in the entire parsing process.
+ * @param finalizationTimes the time spent in each operation of the finalization of the AST, in nanoseconds, if
+ * measured. See [ASTFinalization].
  */
 open class ParsingResult<RootNode : ASTNode>(
     issues: List<Issue>,
@@ -176,6 +178,7 @@ open class ParsingResult<RootNode : ASTNode>(
     val firstStage: FirstStageParsingResult<*>? = null,
     val time: Long? = null,
     source: Source? = null,
+    val finalizationTimes: Map<String, Long>? = null,
 ) : CodeProcessingResult<RootNode>(issues, root, code, source) {
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
@@ -198,6 +201,21 @@ open class ParsingResult<RootNode : ASTNode>(
     fun toResult(): Result<RootNode> = Result(issues, root)
 }
 
+/**
+ * A [ParsingResult] that also carries the tokens of the parsed code.
+ */
+class ParsingResultWithTokens<RootNode : ASTNode>(
+    issues: List<Issue>,
+    root: RootNode?,
+    val tokens: List<StarlasuToken>,
+    code: String? = null,
+    incompleteNode: ASTNode? = null,
+    firstStage: FirstStageParsingResult<*>? = null,
+    time: Long? = null,
+    source: Source? = null,
+    finalizationTimes: Map<String, Long>? = null,
+) : ParsingResult<RootNode>(issues, root, code, incompleteNode, firstStage, time, source, finalizationTimes)
+
 fun String.toStream(charset: Charset = Charsets.UTF_8) = ByteArrayInputStream(toByteArray(charset))
 
 interface StarlasuLexer<T : StarlasuToken> : Serializable {
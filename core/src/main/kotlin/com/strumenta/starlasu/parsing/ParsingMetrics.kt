@@ -0,0 +1,201 @@
+package com.strumenta.starlasu.parsing
+
+import java.util.EnumMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * The stages of the parsing pipeline of a [StarlasuParser], in the order in which they're executed.
+ */
+enum class ParsingStage {
+    LEXING,
+
+    /**
+     * The execution of the parser, including adaptive prediction. In [StarlasuParser.parse] the tokens have already
+     * been lexed; in [StarlasuParser.parseDirectly] and [StarlasuParser.parseOutline] this stage includes lexing, and,
+     * in the former, building the AST.
+     */
+    PARSING,
+    VERIFICATION,
+    TRANSFORMATION,
+    POST_PROCESSING,
+    FINALIZATION,
+}
+
+/**
+ * What happened in a stage of the parsing of a single input.
+ *
+ * @param nanos the time spent in the stage, in nanoseconds.
+ * @param tokenCount the number of tokens in the token stream at the end of the stage, if known.
+ * @param nodeCount the number of AST nodes produced by the [ParsingStage.TRANSFORMATION] stage; the AST is traversed
+ * only once, so this is not reported for the other stages. The lazy children that have not been computed yet are not
+ * counted.
+ * @param dfaStates the number of states in the DFA cache of the parser at the end of the stage, if known. It grows
+ * when the parser meets new input patterns, and it's reset when the caches are cleared.
+ */
+data class ParsingStageMetrics(
+    val stage: ParsingStage,
+    val nanos: Long,
+    val tokenCount: Int? = null,
+    val nodeCount: Int? = null,
+    val dfaStates: Int? = null,
+)
+
+/**
+ * Receives the metrics of each stage of each parsing performed by a [StarlasuParser], see
+ * [StarlasuParser.metricsListener]. Listeners are invoked on the parsing thread, so they should be fast and, if the
+ * parser is used by multiple threads, thread-safe.
+ */
+fun interface ParsingMetricsListener {
+    fun stageCompleted(metrics: ParsingStageMetrics)
+}
+
+/**
+ * A histogram of latencies, in nanoseconds, with a bounded relative error: values below 16 are counted exactly, and
+ * higher values are grouped into 8 buckets per power of two, so the percentiles are overestimated by at most 12.5%.
+ * Recording is lock-free and thread-safe.
+ */
+class LatencyHistogram {
+    private val counts = AtomicLongArray(BUCKETS)
+    private val total = AtomicLong()
+    private val sum = AtomicLong()
+    private val maximum = AtomicLong()
+
+    val count: Long
+        get() = total.get()
+
+    val max: Long
+        get() = maximum.get()
+
+    val mean: Double
+        get() = if (count == 0L) 0.0 else sum.get().toDouble() / count
+
+    fun record(nanos: Long) {
+        val value = nanos.coerceAtLeast(0)
+        counts.incrementAndGet(bucketOf(value))
+        total.incrementAndGet()
+        sum.addAndGet(value)
+        maximum.accumulateAndGet(value) { a, b -> maxOf(a, b) }
+    }
+
+    /**
+     * The value below which the given percentage of the recorded values fall, e.g., 99.0 for the 99th percentile.
+     */
+    fun percentile(percentage: Double): Long {
+        require(percentage in 0.0..100.0) { "The percentage should be between 0 and 100, was $percentage" }
+        val n = count
+        if (n == 0L) {
+            return 0
+        }
+        val rank = maxOf(1L, Math.ceil(percentage / 100.0 * n).toLong())
+        var seen = 0L
+        for (i in 0 until BUCKETS) {
+            seen += counts.get(i)
+            if (seen >= rank) {
+                return minOf(upperBoundOf(i), max)
+            }
+        }
+        return max
+    }
+
+    private companion object {
+        const val EXACT = 16
+        const val SUB_BUCKETS = 8
+        const val BUCKETS = EXACT + (63 - 4) * SUB_BUCKETS
+
+        fun bucketOf(value: Long): Int {
+            if (value < EXACT) {
+                return value.toInt()
+            }
+            val exponent = 63 - java.lang.Long.numberOfLeadingZeros(value)
+            val subBucket = (value ushr (exponent - 3)).toInt() and (SUB_BUCKETS - 1)
+            return EXACT + (exponent - 4) * SUB_BUCKETS + subBucket
+        }
+
+        fun upperBoundOf(bucket: Int): Long {
+            if (bucket < EXACT) {
+                return bucket.toLong()
+            }
+            val exponent = (bucket - EXACT) / SUB_BUCKETS + 4
+            val subBucket = (bucket - EXACT) % SUB_BUCKETS
+            val width = 1L shl (exponent - 3)
+            return (SUB_BUCKETS + subBucket) * width + width - 1
+        }
+    }
+}
+
+/**
+ * A [ParsingMetricsListener] that aggregates the latencies of each stage, across all the parsings, into
+ * [LatencyHistogram]s, and the counts of tokens and nodes into totals.
+ */
+class HistogramParsingMetrics : ParsingMetricsListener {
+    private val histograms = EnumMap<ParsingStage, LatencyHistogram>(ParsingStage::class.java)
+    private val tokens = AtomicLong()
+    private val nodes = AtomicLong()
+
+    init {
+        ParsingStage.values().forEach { histograms[it] = LatencyHistogram() }
+    }
+
+    /**
+     * The total number of tokens lexed.
+     */
+    val tokenCount: Long
+        get() = tokens.get()
+
+    /**
+     * The total number of nodes produced by the transformations.
+     */
+    val nodeCount: Long
+        get() = nodes.get()
+
+    override fun stageCompleted(metrics: ParsingStageMetrics) {
+        histograms[metrics.stage]!!.record(metrics.nanos)
+        if (metrics.stage == ParsingStage.LEXING) {
+            metrics.tokenCount?.let { tokens.addAndGet(it.toLong()) }
+        } else if (metrics.stage == ParsingStage.TRANSFORMATION) {
+            metrics.nodeCount?.let { nodes.addAndGet(it.toLong()) }
+        }
+    }
+
+    fun histogram(stage: ParsingStage): LatencyHistogram = histograms[stage]!!
+
+    /**
+     * Exports the statistics of each stage that has been measured at least once, in nanoseconds, keyed by stage and
+     * by statistic (count, mean, p50, p90, p99, max).
+     */
+    fun export(): Map<ParsingStage, Map<String, Number>> =
+        histograms
+            .filterValues { it.count > 0 }
+            .mapValues { (_, h) ->
+                linkedMapOf(
+                    "count" to h.count,
+                    "mean" to h.mean,
+                    "p50" to h.percentile(50.0),
+                    "p90" to h.percentile(90.0),
+                    "p99" to h.percentile(99.0),
+                    "max" to h.max,
+                )
+            }
+
+    /**
+     * A human-readable table of the statistics returned by [export], in microseconds.
+     */
+    fun report(): String =
+        buildString {
+            append(String.format("%-16s %10s", "stage", "count"))
+            STATISTICS.forEach { append(String.format(" %12s", it)) }
+            append(System.lineSeparator())
+            export().forEach { (stage, stats) ->
+                append(String.format("%-16s %10d", stage.name, stats["count"]))
+                STATISTICS.forEach {
+                    append(String.format(" %12.1f", stats[it]!!.toDouble() / 1000))
+                }
+                append(System.lineSeparator())
+            }
+        }
+
+    private companion object {
+        val STATISTICS = listOf("mean", "p50", "p90", "p99", "max")
+    }
+}
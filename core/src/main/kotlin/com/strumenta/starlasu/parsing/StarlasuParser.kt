@@ -1,35 +1,55 @@
 package com.strumenta.starlasu.parsing
 
+import com.strumenta.starlasu.mapping.DirectASTBuilder
+import com.strumenta.starlasu.mapping.DirectTransformationContext
+import com.strumenta.starlasu.mapping.ParseTreeToASTTransformer
+import com.strumenta.starlasu.model.ASTNode
 import com.strumenta.starlasu.model.FileSource
 import com.strumenta.starlasu.model.Node
+import com.strumenta.starlasu.model.Position
 import com.strumenta.starlasu.model.PropertyDescription
 import com.strumenta.starlasu.model.Source
 import com.strumenta.starlasu.model.assignParents
 import com.strumenta.starlasu.model.processProperties
 import com.strumenta.starlasu.transformation.ASTTransformer
 import com.strumenta.starlasu.transformation.TransformationContext
+import com.strumenta.starlasu.traversing.defaultTreeWalker
 import com.strumenta.starlasu.traversing.walk
+import com.strumenta.starlasu.utils.CancellationToken
+import com.strumenta.starlasu.utils.OperationCancelledException
 import com.strumenta.starlasu.validation.Issue
+import com.strumenta.starlasu.validation.IssueSeverity
 import com.strumenta.starlasu.validation.IssueType
+import org.antlr.v4.runtime.BufferedTokenStream
 import org.antlr.v4.runtime.CharStream
 import org.antlr.v4.runtime.CharStreams
+import org.antlr.v4.runtime.CommonTokenFactory
 import org.antlr.v4.runtime.CommonTokenStream
 import org.antlr.v4.runtime.Lexer
+import org.antlr.v4.runtime.ListTokenSource
 import org.antlr.v4.runtime.Parser
 import org.antlr.v4.runtime.ParserRuleContext
 import org.antlr.v4.runtime.Token
 import org.antlr.v4.runtime.TokenStream
+import org.antlr.v4.runtime.UnbufferedCharStream
 import org.antlr.v4.runtime.atn.ParserATNSimulator
 import org.antlr.v4.runtime.atn.PredictionContextCache
+import org.antlr.v4.runtime.atn.ProfilingATNSimulator
 import org.antlr.v4.runtime.misc.Interval
 import org.antlr.v4.runtime.tree.ParseTree
 import org.antlr.v4.runtime.tree.TerminalNode
 import java.io.File
 import java.io.FileInputStream
 import java.io.InputStream
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
 import java.nio.charset.Charset
+import java.util.IdentityHashMap
 import java.util.LinkedList
-import kotlin.reflect.full.memberFunctions
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.TimeUnit
 import kotlin.system.measureTimeMillis
 
 interface TokenFactory<T : StarlasuToken> {
@@ -42,6 +62,23 @@ open class ANTLRTokenFactory : TokenFactory<StarlasuANTLRToken> {
     override fun convertToken(t: Token): StarlasuANTLRToken = StarlasuANTLRToken(categoryOf(t), t)
 
     fun extractTokens(result: ParsingResult<*>): LexingResult<StarlasuANTLRToken>? {
+        val antlrTerminals = extractTerminals(result) ?: return null
+        val tokens = antlrTerminals.map { convertToken(it) }.toMutableList()
+        return LexingResult(result.issues, tokens, result.code, result.firstStage?.lexingTime, result.source)
+    }
+
+    /**
+     * Like [extractTokens], but the tokens are stored in a [PackedTokenList], which takes much less memory than a list
+     * of [StarlasuANTLRToken]s.
+     */
+    fun extractPackedTokens(result: ParsingResult<*>): LexingResult<StarlasuToken>? {
+        val antlrTerminals = extractTerminals(result) ?: return null
+        val tokens = PackedTokenList(antlrTerminals.firstOrNull()?.symbol?.inputStream, antlrTerminals.size)
+        antlrTerminals.forEach { tokens.add(it.symbol, categoryOf(it.symbol)) }
+        return LexingResult(result.issues, tokens, result.code, result.firstStage?.lexingTime, result.source)
+    }
+
+    private fun extractTerminals(result: ParsingResult<*>): List<TerminalNode>? {
         val antlrTerminals = mutableListOf<TerminalNode>()
 
         fun extractTokensFromParseTree(pt: ParseTree?) {
@@ -63,8 +100,7 @@ open class ANTLRTokenFactory : TokenFactory<StarlasuANTLRToken> {
         return if (ptRoot != null) {
             extractTokensFromParseTree(ptRoot)
             antlrTerminals.sortBy { it.symbol.tokenIndex }
-            val tokens = antlrTerminals.map { convertToken(it) }.toMutableList()
-            LexingResult(result.issues, tokens, result.code, result.firstStage?.lexingTime, result.source)
+            antlrTerminals
         } else {
             null
         }
@@ -90,6 +126,20 @@ abstract class StarlasuANTLRLexer<T : StarlasuToken>(
      */
     protected abstract fun createANTLRLexer(charStream: CharStream): Lexer
 
+    /**
+     * Creates the lexer used by [lexTo] and [lexAsSequence]. By default, it reads the input through an
+     * [UnbufferedCharStream] and lets tokens copy their text, so that memory does not grow with the size of the input.
+     * Override this if your lexer needs to look at the text of the input outside the current token.
+     */
+    protected open fun createStreamingANTLRLexer(
+        inputStream: InputStream,
+        charset: Charset = Charsets.UTF_8,
+    ): Lexer {
+        val lexer = createANTLRLexer(UnbufferedCharStream(inputStream, STREAMING_BUFFER_SIZE, charset))
+        lexer.setTokenFactory(CommonTokenFactory(true))
+        return lexer
+    }
+
     override fun lex(
         inputStream: InputStream,
         charset: Charset,
@@ -98,34 +148,222 @@ abstract class StarlasuANTLRLexer<T : StarlasuToken>(
     ): LexingResult<T> {
         val issues = mutableListOf<Issue>()
         val tokens = mutableListOf<T>()
-        var last: Token? = null
         val time =
             measureTimeMillis {
                 val lexer = createANTLRLexer(inputStream, charset)
                 attachListeners(lexer, issues)
-                do {
-                    val t = lexer.nextToken()
-                    if (t == null) {
-                        break
-                    } else {
-                        if (!onlyFromDefaultChannel || t.channel == Token.DEFAULT_CHANNEL) {
-                            if (t.type != Token.EOF) {
-                                tokens.add(tokenFactory.convertToken(t))
-                            }
-                            last = t
-                        }
-                    }
-                } while (t.type != Token.EOF)
+                lexTokens(lexer, issues, onlyFromDefaultChannel) { tokens.add(tokenFactory.convertToken(it)) }
+            }
 
-                if (last != null && last!!.type != Token.EOF) {
-                    val message = "The parser didn't consume the entire input"
-                    issues.add(Issue(IssueType.SYNTACTIC, message, position = last!!.endPoint.asPosition))
+        return LexingResult(issues, tokens, null, time, source)
+    }
+
+    /**
+     * Like [lex], but the tokens are stored in a [PackedTokenList], which takes much less memory than a list of
+     * converted tokens. The categories of the tokens are computed by the [tokenFactory].
+     */
+    @JvmOverloads
+    fun lexPacked(
+        inputStream: InputStream,
+        charset: Charset = Charsets.UTF_8,
+        onlyFromDefaultChannel: Boolean = true,
+        source: Source? = null,
+    ): LexingResult<StarlasuToken> {
+        val issues = mutableListOf<Issue>()
+        var tokens = PackedTokenList()
+        val time =
+            measureTimeMillis {
+                val lexer = createANTLRLexer(inputStream, charset)
+                attachListeners(lexer, issues)
+                tokens = PackedTokenList(lexer.inputStream)
+                lexTokens(lexer, issues, onlyFromDefaultChannel) {
+                    tokens.add(it, tokenFactory.categoryOf(it))
+                    true
                 }
+                tokens.trimToSize()
             }
+        return LexingResult(issues, tokens, null, time, source)
+    }
 
+    /**
+     * Like [lex], but the tokens are stored in a [PackedTokenList]. See [lexPacked].
+     */
+    @JvmOverloads
+    fun lexPacked(
+        code: String,
+        onlyFromDefaultChannel: Boolean = true,
+    ): LexingResult<StarlasuToken> =
+        lexPacked(code.byteInputStream(Charsets.UTF_8), Charsets.UTF_8, onlyFromDefaultChannel)
+
+    /**
+     * Performs lexing on the given stream, passing each token to [consumer] as soon as the ANTLR lexer produces it,
+     * instead of collecting all of them in a [LexingResult]. Issues are passed to [onIssue] as soon as they're found.
+     *
+     * The consumer can stop the process early by returning false.
+     *
+     * @return true if the entire input was lexed, false if the consumer stopped the process.
+     */
+    @JvmOverloads
+    fun lexTo(
+        inputStream: InputStream,
+        charset: Charset = Charsets.UTF_8,
+        onlyFromDefaultChannel: Boolean = true,
+        onIssue: (Issue) -> Unit = {},
+        consumer: (T) -> Boolean,
+    ): Boolean {
+        val issues = IssueForwardingList(onIssue)
+        val lexer = createStreamingANTLRLexer(inputStream, charset)
+        attachListeners(lexer, issues)
+        return lexTokens(lexer, issues, onlyFromDefaultChannel) { consumer(tokenFactory.convertToken(it)) }
+    }
+
+    /**
+     * Performs lexing on the given code, passing each token to [consumer] as soon as it is produced.
+     * See [lexTo].
+     */
+    @JvmOverloads
+    fun lexTo(
+        code: String,
+        onlyFromDefaultChannel: Boolean = true,
+        onIssue: (Issue) -> Unit = {},
+        consumer: (T) -> Boolean,
+    ): Boolean = lexTo(code.byteInputStream(Charsets.UTF_8), Charsets.UTF_8, onlyFromDefaultChannel, onIssue, consumer)
+
+    /**
+     * Performs lexing on the given stream lazily: tokens are produced only when the returned sequence is iterated, and
+     * they are not retained. Issues are passed to [onIssue] as soon as they're found.
+     *
+     * The sequence can be iterated only once, as it consumes the input stream.
+     */
+    @JvmOverloads
+    fun lexAsSequence(
+        inputStream: InputStream,
+        charset: Charset = Charsets.UTF_8,
+        onlyFromDefaultChannel: Boolean = true,
+        onIssue: (Issue) -> Unit = {},
+    ): Sequence<T> =
+        sequence {
+            val issues = IssueForwardingList(onIssue)
+            val lexer = createStreamingANTLRLexer(inputStream, charset)
+            attachListeners(lexer, issues)
+            var last: Token? = null
+            do {
+                val t = lexer.nextToken() ?: break
+                if (!onlyFromDefaultChannel || t.channel == Token.DEFAULT_CHANNEL) {
+                    last = t
+                    if (t.type != Token.EOF) {
+                        yield(tokenFactory.convertToken(t))
+                    }
+                }
+            } while (t.type != Token.EOF)
+            checkInputConsumed(last, issues)
+        }.constrainOnce()
+
+    /**
+     * Performs lexing on the given code lazily. See [lexAsSequence].
+     */
+    @JvmOverloads
+    fun lexAsSequence(
+        code: String,
+        onlyFromDefaultChannel: Boolean = true,
+        onIssue: (Issue) -> Unit = {},
+    ): Sequence<T> =
+        lexAsSequence(code.byteInputStream(Charsets.UTF_8), Charsets.UTF_8, onlyFromDefaultChannel, onIssue)
+
+    /**
+     * Where the input can be cut to be lexed in parallel by [lexInParallel]. If null, which is the default, the
+     * grammar declares no safe lexing points and [lexInParallel] lexes sequentially.
+     */
+    protected open val safeLexingPoints: SafeLexingPoints? = null
+
+    /**
+     * Performs lexing on the given code by cutting it into chunks of roughly [chunkSize] characters at
+     * [safeLexingPoints], lexing the chunks concurrently on [executor] and stitching the tokens back together, with
+     * the same positions they would have if the code was lexed sequentially. If a cut turns out not to be safe, the
+     * region around it is lexed again sequentially.
+     *
+     * This is useful for very large inputs only; small inputs, or lexers with no safe lexing points, are lexed
+     * sequentially as in [lex].
+     */
+    @JvmOverloads
+    fun lexInParallel(
+        code: String,
+        onlyFromDefaultChannel: Boolean = true,
+        safeLexingPoints: SafeLexingPoints? = this.safeLexingPoints,
+        chunkSize: Int = DEFAULT_LEXING_CHUNK_SIZE,
+        executor: Executor = ForkJoinPool.commonPool(),
+        source: Source? = null,
+    ): LexingResult<T> {
+        require(chunkSize > 0) { "The chunk size should be positive, was $chunkSize" }
+        if (safeLexingPoints == null || code.length <= chunkSize) {
+            return lex(code.byteInputStream(Charsets.UTF_8), Charsets.UTF_8, onlyFromDefaultChannel, source)
+        }
+        val issues = mutableListOf<Issue>()
+        val tokens = mutableListOf<T>()
+        val time =
+            measureTimeMillis {
+                val newLexer = { charStream: CharStream, lexerIssues: MutableList<Issue> ->
+                    val lexer = createANTLRLexer(charStream)
+                    attachListeners(lexer, lexerIssues)
+                    lexer
+                }
+                ChunkedLexing(code, tokenFactory, newLexer, onlyFromDefaultChannel)
+                    .lex(safeLexingPoints, chunkSize, executor, tokens, issues)
+            }
         return LexingResult(issues, tokens, null, time, source)
     }
 
+    /**
+     * Lexes the given code and returns an [IncrementalLexer], which keeps the tokens up to date as the code is edited,
+     * re-lexing only the lines around each edit.
+     */
+    @JvmOverloads
+    fun incrementalLexer(
+        code: String,
+        onlyFromDefaultChannel: Boolean = true,
+    ): IncrementalLexer<T> {
+        val newLexer = { charStream: CharStream, lexerIssues: MutableList<Issue> ->
+            val lexer = createANTLRLexer(charStream)
+            attachListeners(lexer, lexerIssues)
+            lexer
+        }
+        return IncrementalLexer(code, tokenFactory, newLexer, onlyFromDefaultChannel)
+    }
+
+    /**
+     * Pulls tokens from the lexer until either EOF is reached or [consumer] returns false.
+     * @return true if EOF was reached.
+     */
+    private inline fun lexTokens(
+        lexer: Lexer,
+        issues: MutableList<Issue>,
+        onlyFromDefaultChannel: Boolean,
+        consumer: (Token) -> Boolean,
+    ): Boolean {
+        var last: Token? = null
+        do {
+            val t = lexer.nextToken() ?: break
+            if (!onlyFromDefaultChannel || t.channel == Token.DEFAULT_CHANNEL) {
+                last = t
+                if (t.type != Token.EOF && !consumer(t)) {
+                    return false
+                }
+            }
+        } while (t.type != Token.EOF)
+        checkInputConsumed(last, issues)
+        return true
+    }
+
+    private fun checkInputConsumed(
+        last: Token?,
+        issues: MutableList<Issue>,
+    ) {
+        if (last != null && last.type != Token.EOF) {
+            val message = "The parser didn't consume the entire input"
+            issues.add(Issue(IssueType.SYNTACTIC, message, position = last.endPoint.asPosition))
+        }
+    }
+
     protected open fun attachListeners(
         lexer: Lexer,
         issues: MutableList<Issue>,
@@ -134,6 +372,93 @@ abstract class StarlasuANTLRLexer<T : StarlasuToken>(
     }
 }
 
+private const val STREAMING_BUFFER_SIZE = 4096
+
+/**
+ * A [ProfilingATNSimulator] which can also be cancelled, like a [CancellableParserATNSimulator].
+ */
+private class CancellableProfilingATNSimulator(
+    parser: Parser,
+    private val cancellationToken: CancellationToken?,
+) : ProfilingATNSimulator(parser) {
+    override fun adaptivePredict(
+        input: TokenStream,
+        decision: Int,
+        outerContext: ParserRuleContext?,
+    ): Int {
+        cancellationToken?.checkCancelled()
+        return super.adaptivePredict(input, decision, outerContext)
+    }
+}
+
+/**
+ * Checks a [CancellationToken] before each adaptive prediction, i.e., where ANTLR may spend a long time looking ahead.
+ */
+private class CancellableParserATNSimulator(
+    parser: Parser,
+    simulator: ParserATNSimulator,
+    private val cancellationToken: CancellationToken,
+) : ParserATNSimulator(parser, simulator.atn, simulator.decisionToDFA, simulator.sharedContextCache) {
+    init {
+        predictionMode = simulator.predictionMode
+    }
+
+    override fun adaptivePredict(
+        input: TokenStream,
+        decision: Int,
+        outerContext: ParserRuleContext?,
+    ): Int {
+        cancellationToken.checkCancelled()
+        return super.adaptivePredict(input, decision, outerContext)
+    }
+}
+
+/**
+ * The methods that invoke the rules of each parser class, by rule name. They're looked up only once per class, rather
+ * than every time a rule is invoked.
+ */
+private val ruleMethods =
+    object : ClassValue<ConcurrentHashMap<String, MethodHandle>>() {
+        override fun computeValue(type: Class<*>): ConcurrentHashMap<String, MethodHandle> = ConcurrentHashMap()
+    }
+
+private fun Parser.ruleMethod(ruleName: String): MethodHandle =
+    ruleMethods.get(javaClass).computeIfAbsent(ruleName) {
+        val method = javaClass.getMethod(it)
+        // The parser class is not necessarily public
+        method.trySetAccessible()
+        MethodHandles.lookup().unreflect(method)
+    }
+
+const val DEFAULT_LEXING_CHUNK_SIZE = 1024 * 1024
+
+/**
+ * A write-only list that forwards the issues added to it, so that listeners expecting a list of issues can report them
+ * incrementally.
+ */
+private class IssueForwardingList(
+    val onIssue: (Issue) -> Unit,
+) : AbstractMutableList<Issue>() {
+    override val size: Int
+        get() = 0
+
+    override fun get(index: Int): Issue = throw IndexOutOfBoundsException("Issues are forwarded, not stored")
+
+    override fun add(
+        index: Int,
+        element: Issue,
+    ) {
+        onIssue(element)
+    }
+
+    override fun removeAt(index: Int): Issue = throw IndexOutOfBoundsException("Issues are forwarded, not stored")
+
+    override fun set(
+        index: Int,
+        element: Issue,
+    ): Issue = throw IndexOutOfBoundsException("Issues are forwarded, not stored")
+}
+
 /**
  * A complete description of a multi-stage ANTLR-based parser, from source code to AST.
  *
@@ -160,16 +485,15 @@ abstract class StarlasuParser<R : Node, P : Parser, C : ParserRuleContext, T : S
      * parse only a portion of the input or a subset of the language, you have to override this method to invoke the
      * correct entry point.
      */
-    protected open fun invokeRootRule(parser: P): C? {
-        val entryPoint = parser::class.memberFunctions.find { it.name == parser.ruleNames[0] }
-        return entryPoint!!.call(parser) as C
-    }
+    protected open fun invokeRootRule(parser: P): C? = parser.ruleMethod(parser.ruleNames[0]).invoke(parser) as C?
 
     /**
      * Transforms a parse tree into an AST (second parsing stage). By default, it uses the AST transformer obtained by
-     * calling [setupASTTransformer]. However, if you want to use a different transformation strategy, you can override
-     * this method. In that case, remember to ensure that the resulting AST has parent nodes properly set, or call
-     * [assignParents] on it.
+     * calling [setupASTTransformer]; a [ParseTreeToASTTransformer] transforms the parse tree with
+     * [ParseTreeToASTTransformer.transformParseTree], so that its memo is used. However, if you want to use a
+     * different transformation strategy, you can override this method. In that case, remember to ensure that the
+     * resulting AST has parent nodes properly set, or call [assignParents] on it. If the transformation can take long,
+     * consider checking the [currentCancellationToken].
      */
     protected open fun parseTreeToAst(
         parseTreeRoot: C,
@@ -181,10 +505,23 @@ abstract class StarlasuParser<R : Node, P : Parser, C : ParserRuleContext, T : S
         if (transformer == null) {
             throw IllegalStateException("No AST transformer available, and parseTreeToAst not overridden.")
         } else {
-            return transformer.transform(parseTreeRoot, TransformationContext(issues = issues)) as R?
+            val context = TransformationContext(issues = issues, cancellationToken = currentCancellationToken)
+            return if (transformer is ParseTreeToASTTransformer) {
+                transformer.transformParseTree(parseTreeRoot, context) as R?
+            } else {
+                transformer.transform(parseTreeRoot, context) as R?
+            }
         }
     }
 
+    private val cancellationTokens = ThreadLocal<CancellationToken?>()
+
+    /**
+     * The token passed to [parse] by the current thread, if any, while the AST is being built.
+     */
+    protected val currentCancellationToken: CancellationToken?
+        get() = cancellationTokens.get()
+
     protected open fun setupASTTransformer(): ASTTransformer? = null
 
     protected open fun attachListeners(
@@ -203,7 +540,16 @@ abstract class StarlasuParser<R : Node, P : Parser, C : ParserRuleContext, T : S
     ): P {
         val lexer = createANTLRLexer(inputStream)
         attachListeners(lexer, issues)
-        val tokenStream = createTokenStream(lexer)
+        return createParser(createTokenStream(lexer), issues)
+    }
+
+    /**
+     * Creates the first-stage parser, reading from the given token stream.
+     */
+    protected open fun createParser(
+        tokenStream: TokenStream,
+        issues: MutableList<Issue>,
+    ): P {
         val parser: P = createANTLRParser(tokenStream)
         // Assign interpreter to avoid caching DFA states indefinitely across executions
         parser.interpreter =
@@ -234,6 +580,19 @@ abstract class StarlasuParser<R : Node, P : Parser, C : ParserRuleContext, T : S
             )
         }
 
+        verifyParseSubtree(issues, root)
+    }
+
+    /**
+     * Reports the recognition exceptions and the error nodes in the parse tree rooted in [root], as part of
+     * [verifyParseTree]. [parseDirectly] also calls this for the subtrees that it discards while parsing, with
+     * [includingRoot] false, since the root of a discarded subtree stays in the parse tree.
+     */
+    protected open fun verifyParseSubtree(
+        issues: MutableList<Issue>,
+        root: ParserRuleContext,
+        includingRoot: Boolean = true,
+    ) {
         root.processDescendantsAndErrors(
             {
                 if (it.exception != null) {
@@ -245,6 +604,7 @@ abstract class StarlasuParser<R : Node, P : Parser, C : ParserRuleContext, T : S
                 val message = "Error node found (token: ${it.symbol?.text})"
                 issues.add(Issue.syntactic(message, position = it.toPosition()))
             },
+            includingRoot,
         )
     }
 
@@ -270,30 +630,111 @@ abstract class StarlasuParser<R : Node, P : Parser, C : ParserRuleContext, T : S
         inputStream: CharStream,
         measureLexingTime: Boolean = false,
         source: Source? = null,
-    ): FirstStageParsingResult<C> {
+    ): FirstStageParsingResult<C> = parseFirstStage(inputStream, measureLexingTime, source, false, null).first
+
+    /**
+     * Executes the first stage of the parser, also returning the token stream that the parser consumed. If
+     * [fillTokenStream] is true, the stream is filled up to EOF, so that it contains all the tokens of the input,
+     * including those that come after the end of the root rule.
+     *
+     * If the [cancellationToken] is cancelled while parsing, the result has no parse tree and an issue reporting the
+     * cancellation. If a [profile] is given, the parser's decisions are profiled and the results are added to it.
+     */
+    private fun parseFirstStage(
+        inputStream: CharStream,
+        measureLexingTime: Boolean,
+        source: Source?,
+        fillTokenStream: Boolean,
+        cancellationToken: CancellationToken?,
+        profile: DecisionProfile? = decisionProfile,
+    ): Pair<FirstStageParsingResult<C>, TokenStream> {
         val issues = LinkedList<Issue>()
         var root: C?
         var lexingTime: Long? = null
+        lateinit var tokenStream: TokenStream
         val time =
             measureTimeMillis {
                 val parser = createParser(inputStream, issues)
                 countExecution(parser)
-                if (measureLexingTime) {
-                    val tokenStream = parser.inputStream
-                    if (tokenStream is CommonTokenStream) {
-                        lexingTime =
-                            measureTimeMillis {
-                                tokenStream.fill()
-                                tokenStream.seek(0)
-                            }
+                if (profile != null) {
+                    parser.interpreter = CancellableProfilingATNSimulator(parser, cancellationToken)
+                } else {
+                    installCancellationToken(parser, cancellationToken)
+                }
+                tokenStream = parser.inputStream
+                val metrics = metricsListener
+                if (measureLexingTime || metrics != null) {
+                    (tokenStream as? BufferedTokenStream)?.let {
+                        val lexingStart = System.nanoTime()
+                        it.fill()
+                        it.seek(0)
+                        val lexingNanos = System.nanoTime() - lexingStart
+                        if (measureLexingTime) {
+                            lexingTime = TimeUnit.NANOSECONDS.toMillis(lexingNanos)
+                        }
+                        metrics?.stageCompleted(ParsingStageMetrics(ParsingStage.LEXING, lexingNanos, it.size()))
                     }
                 }
-                root = invokeRootRule(parser)
+                var stageStart = System.nanoTime()
+                root =
+                    try {
+                        invokeRootRule(parser)
+                    } catch (e: OperationCancelledException) {
+                        issues.add(cancellationIssue(e, parser.currentToken?.startPoint?.asPosition))
+                        null
+                    }
+                profile?.add(parser, (parser.interpreter as ProfilingATNSimulator).decisionInfo)
+                metrics?.stageCompleted(
+                    ParsingStageMetrics(
+                        ParsingStage.PARSING,
+                        System.nanoTime() - stageStart,
+                        tokenStream.size(),
+                        dfaStates = parser.interpreter.decisionToDFA.sumOf { it.states.size },
+                    ),
+                )
                 if (root != null) {
+                    stageStart = System.nanoTime()
                     verifyParseTree(parser, issues, root!!)
+                    val verificationNanos = System.nanoTime() - stageStart
+                    metrics?.stageCompleted(ParsingStageMetrics(ParsingStage.VERIFICATION, verificationNanos))
+                }
+                if (fillTokenStream && root != null) {
+                    (tokenStream as? BufferedTokenStream)?.fill()
                 }
             }
-        return FirstStageParsingResult(issues, root, null, null, time, lexingTime, source)
+        return FirstStageParsingResult(issues, root, null, null, time, lexingTime, source) to tokenStream
+    }
+
+    /**
+     * Makes the parser check the given token, if any, before each adaptive prediction.
+     */
+    private fun installCancellationToken(
+        parser: P,
+        cancellationToken: CancellationToken?,
+    ) {
+        if (cancellationToken != null) {
+            parser.interpreter = CancellableParserATNSimulator(parser, parser.interpreter, cancellationToken)
+        }
+    }
+
+    /**
+     * Runs the parser through [invokeRule], like [runParser]. If the [cancellationToken] is cancelled while parsing,
+     * returns null and adds an issue reporting the cancellation.
+     */
+    private inline fun <T : ParserRuleContext> runCancellableParser(
+        parser: P,
+        issues: MutableList<Issue>,
+        metrics: ParsingMetricsListener?,
+        cancellationToken: CancellationToken?,
+        invokeRule: () -> T?,
+    ): T? {
+        installCancellationToken(parser, cancellationToken)
+        return try {
+            runParser(parser, metrics, invokeRule)
+        } catch (e: OperationCancelledException) {
+            issues.add(cancellationIssue(e, parser.currentToken?.startPoint?.asPosition))
+            null
+        }
     }
 
     @JvmOverloads
@@ -315,21 +756,135 @@ abstract class StarlasuParser<R : Node, P : Parser, C : ParserRuleContext, T : S
         source: Source?,
     ): ParsingResult<R> = parse(CharStreams.fromString(code), considerPosition, measureLexingTime, source)
 
+    /**
+     * Parses the given code. If a [cancellationToken] is given, it is checked while parsing and while transforming
+     * the parse tree into an AST; if it is cancelled, e.g., because its deadline has expired, the result has no AST
+     * and it contains an issue reporting the cancellation, instead of the parser running to completion.
+     */
     @JvmOverloads
     fun parse(
         inputStream: CharStream,
         considerPosition: Boolean = true,
         measureLexingTime: Boolean = false,
         source: Source? = null,
+        cancellationToken: CancellationToken? = null,
     ): ParsingResult<R> {
         val start = System.currentTimeMillis()
-        val firstStage = parseFirstStage(inputStream, measureLexingTime)
+        val firstStage = parseFirstStage(inputStream, measureLexingTime, null, false, cancellationToken).first
+        return parseSecondStage(inputStream, firstStage, considerPosition, source, start, cancellationToken)
+    }
+
+    @JvmOverloads
+    fun parse(
+        code: String,
+        cancellationToken: CancellationToken,
+        considerPosition: Boolean = true,
+        source: Source? = null,
+    ): ParsingResult<R> = parse(CharStreams.fromString(code), considerPosition, false, source, cancellationToken)
+
+    /**
+     * Parses the given code, like [parse], also returning its tokens. The tokens are taken from the token stream that
+     * the parser consumed, so the code is lexed only once.
+     * @param onlyFromDefaultChannel if false, also the tokens on hidden channels (e.g., whitespace and comments) are
+     * included.
+     */
+    @JvmOverloads
+    fun parseWithTokens(
+        inputStream: CharStream,
+        considerPosition: Boolean = true,
+        onlyFromDefaultChannel: Boolean = true,
+        source: Source? = null,
+        cancellationToken: CancellationToken? = null,
+    ): ParsingResultWithTokens<R> {
+        val start = System.currentTimeMillis()
+        val (firstStage, tokenStream) = parseFirstStage(inputStream, false, source, true, cancellationToken)
+        val tokens = extractTokens(tokenStream, onlyFromDefaultChannel)
+        val result = parseSecondStage(inputStream, firstStage, considerPosition, source, start, cancellationToken)
+        return ParsingResultWithTokens(
+            result.issues,
+            result.root,
+            tokens,
+            result.code,
+            result.incompleteNode,
+            firstStage,
+            System.currentTimeMillis() - start,
+            source,
+            result.finalizationTimes,
+        )
+    }
+
+    @JvmOverloads
+    fun parseWithTokens(
+        code: String,
+        considerPosition: Boolean = true,
+        onlyFromDefaultChannel: Boolean = true,
+        source: Source? = null,
+        cancellationToken: CancellationToken? = null,
+    ): ParsingResultWithTokens<R> =
+        parseWithTokens(
+            CharStreams.fromString(code),
+            considerPosition,
+            onlyFromDefaultChannel,
+            source,
+            cancellationToken,
+        )
+
+    /**
+     * Converts the tokens buffered in the given stream, without lexing the code again.
+     */
+    private fun extractTokens(
+        tokenStream: TokenStream,
+        onlyFromDefaultChannel: Boolean,
+    ): List<T> {
+        val tokens = ArrayList<T>(tokenStream.size())
+        for (i in 0 until tokenStream.size()) {
+            val t = tokenStream.get(i)
+            if (t.type != Token.EOF && (!onlyFromDefaultChannel || t.channel == Token.DEFAULT_CHANNEL)) {
+                tokens.add(tokenFactory.convertToken(t))
+            }
+        }
+        return tokens
+    }
+
+    private fun parseSecondStage(
+        inputStream: CharStream,
+        firstStage: FirstStageParsingResult<C>,
+        considerPosition: Boolean,
+        source: Source?,
+        start: Long,
+        cancellationToken: CancellationToken?,
+    ): ParsingResult<R> {
         val myIssues = firstStage.issues.toMutableList()
-        var ast = parseTreeToAst(firstStage.root!!, considerPosition, myIssues, source)
-        ast = if (ast == null) null else postProcessAst(ast, myIssues)
-        if (ast != null && !considerPosition) {
-            // Remove parseTreeNodes because they cause the position to be computed
-            ast.walk().forEach { it.origin = null }
+        var ast: R? = null
+        var finalizationTimes: Map<String, Long>? = null
+        if (firstStage.root != null) {
+            cancellationTokens.set(cancellationToken)
+            val metrics = metricsListener
+            try {
+                var stageStart = System.nanoTime()
+                ast = parseTreeToAst(firstStage.root, considerPosition, myIssues, source)
+                metrics?.stageCompleted(ParsingStage.TRANSFORMATION, stageStart, ast)
+                cancellationToken?.checkCancelled()
+                if (ast != null) {
+                    stageStart = System.nanoTime()
+                    ast = postProcessAst(ast, myIssues)
+                    metrics?.stageCompleted(ParsingStage.POST_PROCESSING, stageStart)
+                }
+                if (ast != null) {
+                    val finalization = createASTFinalization(considerPosition, source)
+                    if (!finalization.isEmpty) {
+                        cancellationToken?.checkCancelled()
+                        stageStart = System.nanoTime()
+                        finalizationTimes = finalization.finalize(ast, myIssues)
+                        metrics?.stageCompleted(ParsingStage.FINALIZATION, stageStart)
+                    }
+                }
+            } catch (e: OperationCancelledException) {
+                myIssues.add(cancellationIssue(e, null))
+                ast = null
+            } finally {
+                cancellationTokens.remove()
+            }
         }
         val now = System.currentTimeMillis()
         return ParsingResult(
@@ -340,9 +895,500 @@ abstract class StarlasuParser<R : Node, P : Parser, C : ParserRuleContext, T : S
             firstStage,
             now - start,
             source,
+            finalizationTimes,
         )
     }
 
+    /**
+     * Parses the given code like [parse], but builds the AST while parsing, using a [DirectASTBuilder] with the
+     * [ParseTreeToASTTransformer] returned by [setupASTTransformer]. The parse subtrees are discarded as soon as they
+     * have been transformed, so the whole parse tree and the whole AST are never in memory at the same time, and
+     * there is no separate traversal of the parse tree. See [DirectASTBuilder] for the constraints that this puts on
+     * the transformation rules.
+     *
+     * [parseTreeToAst] is not used in this mode, and [verifyParseTree] only sees what is left of the parse tree after
+     * parsing; the errors in the discarded subtrees are reported, while parsing, by [verifyParseSubtree].
+     *
+     * A [cancellationToken] is handled as in [parse].
+     */
+    @JvmOverloads
+    fun parseDirectly(
+        inputStream: CharStream,
+        source: Source? = null,
+        cancellationToken: CancellationToken? = null,
+    ): ParsingResult<R> {
+        val start = System.currentTimeMillis()
+        val transformer =
+            setupASTTransformer() as? ParseTreeToASTTransformer
+                ?: throw IllegalStateException("Building the AST while parsing requires a ParseTreeToASTTransformer")
+        val issues = LinkedList<Issue>()
+        val transformationIssues = mutableListOf<Issue>()
+        val context = DirectTransformationContext(transformationIssues, source, cancellationToken)
+        var root: C?
+        val metrics = metricsListener
+        val firstStageTime =
+            measureTimeMillis {
+                val parser = createParser(inputStream, issues)
+                countExecution(parser)
+                parser.addParseListener(
+                    DirectASTBuilder(transformer, context) { verifyParseSubtree(issues, it, includingRoot = false) },
+                )
+                root = runCancellableParser(parser, issues, metrics, cancellationToken) { invokeRootRule(parser) }
+                if (root != null) {
+                    verifyParseTree(parser, issues, root!!, metrics)
+                }
+            }
+        val firstStage = FirstStageParsingResult(issues, root, null, null, firstStageTime, null, source)
+        val myIssues = issues.toMutableList()
+        val (processedAst, finalizationTimes) =
+            transformAndFinalize(myIssues, source, metrics, cancellationToken) {
+                try {
+                    @Suppress("UNCHECKED_CAST")
+                    root?.let { transformer.transform(it, context) as R? }
+                } finally {
+                    // Including the issues of the nodes built while parsing, even if the parser was cancelled
+                    myIssues.addAll(transformationIssues)
+                }
+            }
+        return ParsingResult(
+            myIssues,
+            processedAst,
+            inputStream.getText(Interval(0, inputStream.index() + 1)),
+            null,
+            firstStage,
+            System.currentTimeMillis() - start,
+            source,
+            finalizationTimes,
+        )
+    }
+
+    /**
+     * Runs the parser through [invokeRule], reporting the [ParsingStage.PARSING] stage to [metrics].
+     */
+    private inline fun <T : ParserRuleContext> runParser(
+        parser: P,
+        metrics: ParsingMetricsListener?,
+        invokeRule: () -> T?,
+    ): T? {
+        val stageStart = System.nanoTime()
+        val root = invokeRule()
+        metrics?.stageCompleted(
+            ParsingStageMetrics(
+                ParsingStage.PARSING,
+                System.nanoTime() - stageStart,
+                parser.tokenStream.size(),
+                dfaStates = parser.interpreter.decisionToDFA.sumOf { it.states.size },
+            ),
+        )
+        return root
+    }
+
+    private fun verifyParseTree(
+        parser: P,
+        issues: MutableList<Issue>,
+        root: ParserRuleContext,
+        metrics: ParsingMetricsListener?,
+    ) {
+        val stageStart = System.nanoTime()
+        verifyParseTree(parser, issues, root)
+        metrics?.stageCompleted(ParsingStage.VERIFICATION, stageStart)
+    }
+
+    /**
+     * The common end of [parseDirectly] and [parseOutline]: obtains the AST with [transform], invokes [postProcessAst]
+     * and performs the [ASTFinalization], reporting the three stages to [metrics]. The [cancellationToken] is
+     * checked between the stages, and it is the [currentCancellationToken] during them; if it is cancelled, the
+     * result has no AST and an issue reporting the cancellation is added.
+     */
+    private inline fun transformAndFinalize(
+        issues: MutableList<Issue>,
+        source: Source?,
+        metrics: ParsingMetricsListener?,
+        cancellationToken: CancellationToken?,
+        transform: () -> R?,
+    ): Pair<R?, Map<String, Long>?> {
+        cancellationTokens.set(cancellationToken)
+        try {
+            var stageStart = System.nanoTime()
+            val ast = transform()
+            metrics?.stageCompleted(ParsingStage.TRANSFORMATION, stageStart, ast)
+            if (ast == null) {
+                return null to null
+            }
+            cancellationToken?.checkCancelled()
+            stageStart = System.nanoTime()
+            val processedAst = postProcessAst(ast, issues)
+            metrics?.stageCompleted(ParsingStage.POST_PROCESSING, stageStart)
+            var finalizationTimes: Map<String, Long>? = null
+            val finalization = createASTFinalization(true, source)
+            if (!finalization.isEmpty) {
+                cancellationToken?.checkCancelled()
+                stageStart = System.nanoTime()
+                finalizationTimes = finalization.finalize(processedAst, issues)
+                metrics?.stageCompleted(ParsingStage.FINALIZATION, stageStart)
+            }
+            return processedAst to finalizationTimes
+        } catch (e: OperationCancelledException) {
+            issues.add(cancellationIssue(e, null))
+            return null to null
+        } finally {
+            cancellationTokens.remove()
+        }
+    }
+
+    @JvmOverloads
+    fun parseDirectly(
+        code: String,
+        source: Source? = null,
+        cancellationToken: CancellationToken? = null,
+    ): ParsingResult<R> = parseDirectly(CharStreams.fromString(code), source, cancellationToken)
+
+    /**
+     * Returns the finalization to perform on the AST after [parseTreeToAst] and [postProcessAst], in a single
+     * traversal of the tree. By default, it only removes the origins of the nodes when positions are not considered,
+     * as they would cause the positions to be computed. Override this to also assign parents, set the source, assign
+     * IDs, or validate the AST, instead of traversing the tree again after parsing.
+     */
+    protected open fun createASTFinalization(
+        considerPosition: Boolean,
+        source: Source?,
+    ): ASTFinalization = ASTFinalization(assignParents = false, removeOrigins = !considerPosition)
+
+    /**
+     * The rules that [parseIncrementally] can reparse in isolation, as indexes in the rule names of the parser. Such
+     * rules must be invocable without arguments, and the lexer must be in its default mode at their start, e.g.,
+     * statements or declarations. By default, there are none, so the whole code is always reparsed.
+     */
+    protected open val reparseableRules: Set<Int> = emptySet()
+
+    /**
+     * Invokes the rule with the given index, for [parseIncrementally] and [parseOutline]. By default, it invokes the
+     * method of the parser with the same name as the rule.
+     */
+    protected open fun invokeRule(
+        parser: P,
+        ruleIndex: Int,
+    ): ParserRuleContext? = parser.ruleMethod(parser.ruleNames[ruleIndex]).invoke(parser) as ParserRuleContext?
+
+    /**
+     * Transforms a subtree of the parse tree into an AST node, for [parseIncrementally] and the regions skipped by
+     * [parseOutline]. By default, it uses the AST
+     * transformer obtained by calling [setupASTTransformer]; if there is none, incremental parsing is not possible.
+     * The transformation checks the [currentCancellationToken], if any.
+     */
+    protected open fun transformSubtree(
+        parseTree: ParserRuleContext,
+        issues: MutableList<Issue>,
+        source: Source?,
+    ): ASTNode? {
+        val context =
+            TransformationContext(issues = issues, source = source, cancellationToken = currentCancellationToken)
+        return setupASTTransformer()?.transform(parseTree, context)
+    }
+
+    /**
+     * Parses the code obtained by applying the given edits to the code of a previous result, reparsing only the
+     * smallest region that contains the edits and starts with one of the [reparseableRules]. The AST of the previous
+     * result is updated in place: the nodes outside that region are kept, their positions are moved according to
+     * the edits, and the node obtained from the region replaces the old one. Therefore, the previous result must not
+     * be used anymore.
+     *
+     * When that is not possible, e.g., because there are no reparseable rules around the edits, the region cannot
+     * be parsed on its own, or the previous result lacks its parse tree or its code, the whole code is parsed again.
+     *
+     * Note that [postProcessAst] is not invoked on the reparsed region, while the [ASTFinalization] is performed on
+     * the new subtree. Nodes whose position does not come from the parse tree are moved only if they have no origin.
+     *
+     * If a [cancellationToken] is given, it is checked while reparsing the region and while transforming it, and then
+     * passed to [parse] if the whole code is parsed again. If it is cancelled before the AST of the previous result
+     * is updated, the result has no AST and an issue reporting the cancellation, while the previous result is left
+     * untouched and can still be used.
+     */
+    @JvmOverloads
+    fun parseIncrementally(
+        previous: ParsingResult<R>,
+        edits: List<TextEdit>,
+        considerPosition: Boolean = true,
+        cancellationToken: CancellationToken? = null,
+    ): ParsingResult<R> {
+        val start = System.currentTimeMillis()
+        val code = previous.code ?: throw IllegalArgumentException("The previous result does not include the code")
+        if (edits.isEmpty()) {
+            return previous
+        }
+        val newCode = code.applyEdits(edits)
+        val result =
+            if (considerPosition) {
+                try {
+                    reparseRegion(previous, code, edits, newCode, start, cancellationToken)
+                } catch (e: OperationCancelledException) {
+                    val issues = listOf(cancellationIssue(e, null))
+                    val time = System.currentTimeMillis() - start
+                    return ParsingResult(issues, null, newCode, null, null, time, previous.source)
+                }
+            } else {
+                null
+            }
+        return result
+            ?: parse(CharStreams.fromString(newCode), considerPosition, false, previous.source, cancellationToken)
+    }
+
+    /**
+     * Reparses the region around the edits, see [parseIncrementally]. The [cancellationToken] is checked only until
+     * the AST of the previous result starts being updated.
+     */
+    private fun reparseRegion(
+        previous: ParsingResult<R>,
+        code: String,
+        edits: List<TextEdit>,
+        newCode: String,
+        start: Long,
+        cancellationToken: CancellationToken?,
+    ): ParsingResult<R>? {
+        val root = previous.root ?: return null
+        val parseTreeRoot = previous.firstStage?.root ?: return null
+        val offsets = CodeOffsets(code)
+        val editStart = edits.minOf { offsets.codePointOffset(it.position.start) }
+        val editEnd = edits.maxOf { offsets.codePointOffset(it.position.end) }
+        val delta =
+            edits.sumOf {
+                it.newText.codePointCount(0, it.newText.length) -
+                    (offsets.codePointOffset(it.position.end) - offsets.codePointOffset(it.position.start))
+            }
+
+        // We look for the innermost reparseable context containing the edits, that produced exactly one AST node
+        val nodesByParseTree = IdentityHashMap<ParseTree, ASTNode?>()
+        val explicitlyPositioned = mutableListOf<ASTNode>()
+        root.walk().forEach { node ->
+            val origin = node.origin
+            if (origin is ParseTreeOrigin) {
+                nodesByParseTree[origin.parseTree] = if (nodesByParseTree.containsKey(origin.parseTree)) null else node
+            } else if (origin == null && node.position != null) {
+                explicitlyPositioned.add(node)
+            }
+        }
+        var context = innermostContextContaining(parseTreeRoot, editStart, editEnd)
+        while (context != null &&
+            (context.ruleIndex !in reparseableRules || nodesByParseTree[context] == null)
+        ) {
+            context = context.parent as ParserRuleContext?
+        }
+        if (context == null || context === parseTreeRoot) {
+            return null
+        }
+        val oldNode = nodesByParseTree[context]!!
+        val parentNode = oldNode.parent ?: return null
+
+        // We parse the region, starting the lexer where the context started
+        val issues = mutableListOf<Issue>()
+        val charStream = CharStreams.fromString(newCode)
+        val parser = createParser(charStream, issues)
+        countExecution(parser)
+        installCancellationToken(parser, cancellationToken)
+        val tokenStream = parser.tokenStream as? BufferedTokenStream ?: return null
+        val lexer = tokenStream.tokenSource as? Lexer ?: return null
+        lexer.reset()
+        charStream.seek(context.start.startIndex)
+        lexer.line = context.start.line
+        lexer.charPositionInLine = context.start.charPositionInLine
+        tokenStream.tokenSource = lexer
+        parser.reset()
+        val newContext = invokeRule(parser, context.ruleIndex) ?: return null
+        val oldStop = context.stop
+        if (issues.isNotEmpty() || newContext.exception != null || newContext.stop == null ||
+            newContext.stop.stopIndex != oldStop.stopIndex + delta
+        ) {
+            return null
+        }
+        // The new node gets the same source as the rest of the AST, which depends on how it was built
+        cancellationTokens.set(cancellationToken)
+        val newNode =
+            try {
+                transformSubtree(newContext, issues, oldNode.source) ?: return null
+            } finally {
+                cancellationTokens.remove()
+            }
+        if (!parentNode.replaceChildByIdentity(oldNode, newNode)) {
+            return null
+        }
+        oldNode.parent = null
+
+        // From now on, we update the previous parse tree and AST
+        val oldEnd = oldStop.endPoint
+        val newEnd = newContext.stop.endPoint
+        val shift = RegionShift(oldEnd, newEnd.line - oldEnd.line, newEnd.column - oldEnd.column, delta)
+        shift.shiftTokensAfter(parseTreeRoot, oldStop.stopIndex)
+        replaceInParseTree(context, newContext)
+        // The tokens of the region were numbered from 0, so they would be mixed with the others when sorted
+        renumberTokens(parseTreeRoot)
+        explicitlyPositioned.forEach { node ->
+            val position = node.position!!
+            if (shift.isAfterRegion(position.start)) {
+                node.position = shift.shift(position)
+            }
+        }
+        newNode.assignParents()
+        val finalization = createASTFinalization(true, previous.source)
+        if (!finalization.isEmpty) {
+            finalization.finalize(newNode, issues)
+        }
+
+        val regionStart = context.start.startPoint
+        val firstStageIssues = shift.shift(previous.firstStage!!.issues, regionStart)
+        val firstStage =
+            FirstStageParsingResult(firstStageIssues, parseTreeRoot, newCode, null, null, null, previous.source)
+        return ParsingResult(
+            shift.shift(previous.issues, regionStart) + issues,
+            root,
+            newCode,
+            previous.incompleteNode.let { if (it === oldNode) newNode else it },
+            firstStage,
+            System.currentTimeMillis() - start,
+            previous.source,
+        )
+    }
+
+    /**
+     * Reports the metrics of a stage that started at [stageStart]. If an AST is given, its nodes are counted, except
+     * the ones of the lazy children that have not been computed yet.
+     */
+    private fun ParsingMetricsListener.stageCompleted(
+        stage: ParsingStage,
+        stageStart: Long,
+        ast: ASTNode? = null,
+    ) {
+        val nanos = System.nanoTime() - stageStart
+        val nodeCount = ast?.let { defaultTreeWalker.walk(it, materializeLazyChildren = false).count() }
+        stageCompleted(ParsingStageMetrics(stage, nanos, nodeCount = nodeCount))
+    }
+
+    private fun cancellationIssue(
+        exception: OperationCancelledException,
+        position: Position?,
+    ): Issue = Issue.syntactic("Parsing stopped: ${exception.message}", IssueSeverity.ERROR, position)
+
+    private fun innermostContextContaining(
+        root: ParserRuleContext,
+        startIndex: Int,
+        endIndex: Int,
+    ): ParserRuleContext? {
+        fun contains(context: ParserRuleContext): Boolean {
+            val start = context.start
+            val stop = context.stop
+            return start != null && stop != null && start.startIndex < startIndex && endIndex <= stop.stopIndex
+        }
+        if (!contains(root)) {
+            return null
+        }
+        var context = root
+        while (true) {
+            context = context.children?.firstOrNull { it is ParserRuleContext && contains(it) } as ParserRuleContext?
+                ?: return context
+        }
+    }
+
+    /**
+     * How [parseOutline] parses the code. If null, which is the default, the grammar declares no outline and
+     * [parseOutline] parses the whole code.
+     */
+    protected open val outlineSpecification: OutlineSpecification? = null
+
+    /**
+     * Parses only the outline of the given code, as declared by the [outlineSpecification]: the skippable regions are
+     * lexed but not parsed, and the [entry rule][OutlineSpecification.entryRule] is invoked in place of the root rule.
+     * The AST is obtained with the transformer returned by [setupASTTransformer], using an
+     * [OutlineTransformationContext]: the rules of the nodes containing skipped regions can make them
+     * [lazy children][OutlineTransformationContext.lazyRegion], which are parsed only when accessed, e.g., when the
+     * body of a function is needed. They get their parent, are finalized and report their issues in the
+     * [ParsingResult] as they're parsed.
+     *
+     * [parseTreeToAst] is not used in this mode. The root of the [first stage][ParsingResult.firstStage] is the context
+     * of the entry rule, which is not a [C] when the entry rule is not the root rule, so the first stage is a
+     * [FirstStageParsingResult] of [ParserRuleContext].
+     *
+     * A [cancellationToken] is handled as in [parse], but it is not checked when the skipped regions are parsed later.
+     */
+    @JvmOverloads
+    fun parseOutline(
+        inputStream: CharStream,
+        source: Source? = null,
+        cancellationToken: CancellationToken? = null,
+    ): ParsingResult<R> {
+        val outline =
+            outlineSpecification ?: return parse(inputStream, source = source, cancellationToken = cancellationToken)
+        val start = System.currentTimeMillis()
+        val transformer =
+            setupASTTransformer()
+                ?: throw IllegalStateException("Parsing the outline requires an AST transformer")
+        val issues = LinkedList<Issue>()
+        var root: ParserRuleContext?
+        val metrics = metricsListener
+        val firstStageTime =
+            measureTimeMillis {
+                val lexer = createANTLRLexer(inputStream)
+                attachListeners(lexer, issues)
+                val tokenStream = CommonTokenStream(SkippingTokenSource(lexer, outline.skippableRegions))
+                val parser = createParser(tokenStream, issues)
+                countExecution(parser)
+                val entryRule = ruleIndex(parser, outline.entryRule ?: parser.ruleNames[0])
+                root =
+                    runCancellableParser(parser, issues, metrics, cancellationToken) {
+                        invokeRule(parser, entryRule)
+                    }
+                if (root != null) {
+                    verifyParseTree(parser, issues, root!!, metrics)
+                }
+            }
+        val firstStage: FirstStageParsingResult<ParserRuleContext> =
+            FirstStageParsingResult(issues, root, null, null, firstStageTime, null, source)
+        val myIssues = issues.toMutableList()
+        val context =
+            OutlineTransformationContext(myIssues, source, cancellationToken) { token, regionIssues ->
+                parseRegion(token, regionIssues, source)
+            }
+        val (processedAst, finalizationTimes) =
+            transformAndFinalize(myIssues, source, metrics, cancellationToken) {
+                @Suppress("UNCHECKED_CAST")
+                root?.let { transformer.transform(it, context) as R? }
+            }
+        return ParsingResult(
+            myIssues,
+            processedAst,
+            inputStream.getText(Interval(0, inputStream.index() + 1)),
+            null,
+            firstStage,
+            System.currentTimeMillis() - start,
+            source,
+            finalizationTimes,
+        )
+    }
+
+    @JvmOverloads
+    fun parseOutline(
+        code: String,
+        source: Source? = null,
+        cancellationToken: CancellationToken? = null,
+    ): ParsingResult<R> = parseOutline(CharStreams.fromString(code), source, cancellationToken)
+
+    /**
+     * Parses a region skipped by [parseOutline], reusing its tokens.
+     */
+    private fun parseRegion(
+        token: SkippedRegionToken,
+        issues: MutableList<Issue>,
+        source: Source?,
+    ): ASTNode? {
+        val parser = createParser(CommonTokenStream(ListTokenSource(token.skippedTokens)), issues)
+        val context = invokeRule(parser, ruleIndex(parser, token.region.rule)) ?: return null
+        verifyParseTree(parser, issues, context)
+        return transformSubtree(context, issues, source)
+    }
+
+    private fun ruleIndex(
+        parser: P,
+        ruleName: String,
+    ): Int = parser.ruleIndexMap[ruleName] ?: throw IllegalArgumentException("Unknown rule: $ruleName")
+
     // Makes it more convenient to invoke from Java. We can't use @JvmOverloads because:
     // - it has no effect on methods with no default values for arguments
     // - an overriding method can't specify default values
@@ -376,6 +1422,36 @@ abstract class StarlasuParser<R : Node, P : Parser, C : ParserRuleContext, T : S
         ast?.assignParents()
     }
 
+    /**
+     * If not null, the decisions made by the parser in [parse] and [parseFirstStage] are profiled, and the results
+     * are collected in this profile. Profiling slows down parsing considerably; see also [profileDecisions].
+     */
+    @Volatile
+    var decisionProfile: DecisionProfile? = null
+
+    /**
+     * Parses the given inputs (only the first stage) with a profiling simulator, to find which decisions of the grammar
+     * are the most expensive ones, e.g., using [DecisionProfile.report].
+     */
+    @JvmOverloads
+    fun profileDecisions(
+        inputs: Iterable<CharStream>,
+        profile: DecisionProfile = DecisionProfile(),
+    ): DecisionProfile {
+        inputs.forEach { parseFirstStage(it, false, null, false, null, profile) }
+        return profile
+    }
+
+    /**
+     * If not null, it receives the metrics of each stage of [parse], [parseWithTokens], [parseDirectly] and
+     * [parseOutline], measured in nanoseconds. Counting the nodes of the AST requires traversing it once after the
+     * transformation, so this has a cost. [parseIncrementally] reports the metrics only when it falls back to parsing
+     * the whole code; the regions that it reparses, and the regions parsed lazily after [parseOutline], are not
+     * reported.
+     */
+    @Volatile
+    var metricsListener: ParsingMetricsListener? = null
+
     protected fun shouldWeClearCaches(): Boolean = executionsToNextCacheClean <= 0
 
     protected var executionCounter = 0
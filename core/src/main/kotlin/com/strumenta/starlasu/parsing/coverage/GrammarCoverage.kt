@@ -0,0 +1,272 @@
+package com.strumenta.starlasu.parsing.coverage
+
+import com.strumenta.starlasu.traversing.mutableStackOf
+import org.antlr.v4.runtime.Parser
+import org.antlr.v4.runtime.ParserRuleContext
+import org.antlr.v4.runtime.Vocabulary
+import org.antlr.v4.runtime.atn.ATN
+import org.antlr.v4.runtime.atn.AtomTransition
+import org.antlr.v4.runtime.atn.RuleTransition
+import org.antlr.v4.runtime.atn.SetTransition
+import org.antlr.v4.runtime.tree.ErrorNode
+import org.antlr.v4.runtime.tree.ParseTreeListener
+import org.antlr.v4.runtime.tree.TerminalNode
+import java.util.BitSet
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/**
+ * EXPERIMENTAL. Computes the same estimate of the coverage of a grammar as [CoverageListener], with the same paths,
+ * uncovered paths and percentage, but it scales to large corpora: paths are interned once per grammar, in a trie
+ * shared by all the collectors, so a collector only keeps two bitsets of path ids, one for the paths that it knows
+ * (covered or not) and one for the covered ones. Following a token or entering a rule costs a lookup in the trie, and,
+ * as in [CoverageListener], the uncovered paths are expanded from the ATN only the first time they are met.
+ *
+ * A single instance is not thread-safe; use one per thread, created with [newCollector], and [merge] them at the end,
+ * which costs a bitwise OR. [ConcurrentGrammarCoverage] does that for you. Since the uncovered paths are expanded only
+ * the first time they are met, merging the collectors can report a few more paths than parsing all the examples with a
+ * single collector.
+ */
+class GrammarCoverage private constructor(
+    private val layout: CoverageLayout,
+) : ParseTreeListener {
+    constructor(atn: ATN, ruleNames: Array<String>, vocabulary: Vocabulary) :
+        this(CoverageLayout(atn, ruleNames, vocabulary))
+
+    constructor(parser: Parser) : this(parser.atn, parser.ruleNames, parser.vocabulary)
+
+    /**
+     * A path on the stack, like [Path] in [CoverageListener]: [rule] is its last rule element, and [states] are the ATN
+     * states already expanded for it.
+     */
+    private class Frame(
+        var path: Int,
+        var lastElement: Int,
+        val rule: Int,
+        val states: BitSet,
+    )
+
+    private val knownPaths = BitSet()
+    private val coveredPaths = BitSet()
+    private val stack = mutableStackOf<Frame>()
+
+    var parser: Parser? = null
+        private set
+
+    /**
+     * Creates an empty collector for the same grammar, sharing the paths interned so far.
+     */
+    fun newCollector(): GrammarCoverage = GrammarCoverage(layout)
+
+    fun listenTo(parser: Parser) {
+        this.parser?.removeParseListener(this)
+        this.parser = parser
+        parser.addParseListener(this)
+    }
+
+    /**
+     * Adds the coverage recorded by another collector for the same grammar.
+     */
+    fun merge(other: GrammarCoverage): GrammarCoverage {
+        require(other.layout === layout) { "Cannot merge the coverage of different grammars" }
+        synchronized(this) {
+            knownPaths.or(other.knownPaths)
+            coveredPaths.or(other.coveredPaths)
+        }
+        return this
+    }
+
+    override fun visitTerminal(node: TerminalNode) {
+        val frame = stack.peek() ?: return
+        frame.path = layout.child(frame.path, node.symbol.type)
+        frame.lastElement = node.symbol.type
+        cover(frame.path)
+    }
+
+    override fun visitErrorNode(node: ErrorNode) {}
+
+    override fun enterEveryRule(ctx: ParserRuleContext) {
+        addUncoveredPaths(ctx.invokingState)
+        val caller = stack.peek()
+        val element = ruleElement(ctx.ruleIndex)
+        if (caller?.lastElement != element) {
+            cover(layout.child(caller?.path ?: ROOT, element))
+            val path = layout.child(ROOT, element)
+            stack.push(Frame(path, element, ctx.ruleIndex, caller?.states?.clone() as BitSet? ?: BitSet()))
+            addUncoveredPaths()
+            cover(path)
+        } else {
+            addUncoveredPaths()
+        }
+    }
+
+    override fun exitEveryRule(ctx: ParserRuleContext) {
+        if (stack.peek()?.rule == ctx.ruleIndex) {
+            stack.pop()
+        }
+    }
+
+    private fun cover(path: Int) {
+        knownPaths.set(path)
+        coveredPaths.set(path)
+    }
+
+    /**
+     * Adds the paths following the transitions from [state], as [CoverageListener] does.
+     */
+    private fun addUncoveredPaths(state: Int = parser?.state ?: -1) {
+        val frame = stack.peek() ?: return
+        if (state < 0 || frame.states.get(state)) {
+            return
+        }
+        frame.states.set(state)
+        layout.atn.states[state].transitions.forEach {
+            when (it) {
+                is RuleTransition -> {
+                    if (frame.lastElement != ruleElement(it.ruleIndex)) {
+                        addUncoveredPath(ruleElement(it.ruleIndex), it.target.stateNumber)
+                    }
+                }
+                is AtomTransition -> addUncoveredPath(it.label, it.target.stateNumber)
+                is SetTransition -> {
+                    it.set.intervals.forEach { interval ->
+                        for (i in interval.a..interval.b) {
+                            addUncoveredPath(i, it.target.stateNumber)
+                        }
+                    }
+                }
+                else -> addUncoveredPaths(it.target.stateNumber)
+            }
+        }
+    }
+
+    private fun addUncoveredPath(
+        element: Int,
+        nextState: Int,
+    ) {
+        val frame = stack.peek()
+        val path = layout.child(frame.path, element)
+        if (knownPaths.get(path)) {
+            return
+        }
+        knownPaths.set(path)
+        val states = frame.states.clone() as BitSet
+        val next =
+            if (element < -1) {
+                Frame(layout.child(ROOT, element), element, ruleOf(element), states)
+            } else {
+                Frame(path, element, frame.rule, states)
+            }
+        stack.push(next)
+        try {
+            addUncoveredPaths(nextState)
+        } finally {
+            stack.pop()
+        }
+    }
+
+    /**
+     * The paths found so far, each one mapped to whether it is covered.
+     */
+    @Synchronized
+    fun paths(): Map<List<String>, Boolean> {
+        val paths = LinkedHashMap<List<String>, Boolean>()
+        var path = knownPaths.nextSetBit(0)
+        while (path >= 0) {
+            paths[layout.elementsOf(path)] = coveredPaths.get(path)
+            path = knownPaths.nextSetBit(path + 1)
+        }
+        return paths
+    }
+
+    fun uncoveredPathStrings(maxLength: Int = Int.MAX_VALUE): List<String> =
+        paths().filter { !it.value && it.key.size <= maxLength }.keys.map { it.joinToString(" > ") }
+
+    fun percentage(): Double {
+        val paths = paths()
+        return if (paths.isEmpty()) 0.0 else (1.0 - paths.values.count { !it }.toDouble() / paths.size) * 100.0
+    }
+}
+
+/**
+ * The id of the empty path, in the trie of a [CoverageLayout].
+ */
+private const val ROOT = 0
+
+/**
+ * Path elements are encoded as the token type for tokens (which is at least [org.antlr.v4.runtime.Token.EOF]), and as a
+ * negative number below that for rules.
+ */
+private fun ruleElement(ruleIndex: Int): Int = -ruleIndex - 2
+
+private fun ruleOf(element: Int): Int = -element - 2
+
+/**
+ * Collects the coverage of a grammar across threads, e.g., in a service that parses files in parallel: each thread
+ * records the coverage in its own [GrammarCoverage], with no synchronization, and [merged] combines them.
+ */
+class ConcurrentGrammarCoverage(
+    private val prototype: GrammarCoverage,
+) {
+    private val collectors = ConcurrentLinkedQueue<GrammarCoverage>()
+    private val collector = ThreadLocal.withInitial { prototype.newCollector().also { collectors.add(it) } }
+
+    /**
+     * Records the coverage of the given parser, which must be used by the current thread.
+     */
+    fun listenTo(parser: Parser) {
+        collector.get().listenTo(parser)
+    }
+
+    /**
+     * Merges the coverage recorded by all the threads. It should be called when no parser is running.
+     */
+    fun merged(): GrammarCoverage {
+        val result = prototype.newCollector()
+        collectors.forEach { result.merge(it) }
+        return result
+    }
+}
+
+/**
+ * The information about a grammar shared by the collectors of its coverage: the ATN, and a trie that assigns an id to
+ * each path, so that a path is a single int rather than a list of elements.
+ */
+private class CoverageLayout(
+    val atn: ATN,
+    val ruleNames: Array<String>,
+    val vocabulary: Vocabulary,
+) {
+    private val ids = ConcurrentHashMap<Long, Int>()
+    private val parents = mutableListOf(-1)
+    private val elements = mutableListOf(0)
+
+    /**
+     * The id of the path made of the path [parent] followed by [element].
+     */
+    fun child(
+        parent: Int,
+        element: Int,
+    ): Int {
+        val key = (parent.toLong() shl 32) or (element.toLong() and 0xFFFFFFFFL)
+        return ids[key] ?: synchronized(this) {
+            ids.getOrPut(key) {
+                parents.add(parent)
+                elements.add(element)
+                parents.size - 1
+            }
+        }
+    }
+
+    @Synchronized
+    fun elementsOf(path: Int): List<String> {
+        val names = mutableListOf<String>()
+        var current = path
+        while (current != ROOT) {
+            val element = elements[current]
+            names.add(if (element < -1) ruleNames[ruleOf(element)] else vocabulary.getSymbolicName(element).toString())
+            current = parents[current]
+        }
+        return names.asReversed()
+    }
+}
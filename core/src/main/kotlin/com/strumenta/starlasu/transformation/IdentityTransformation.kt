@@ -2,11 +2,10 @@ package com.strumenta.starlasu.transformation
 
 import com.strumenta.starlasu.mapping.translateList
 import com.strumenta.starlasu.model.ASTNode
+import com.strumenta.starlasu.model.NodeConstructorPlan
 import java.lang.reflect.ParameterizedType
 import kotlin.reflect.KClass
-import kotlin.reflect.KParameter
 import kotlin.reflect.full.isSubclassOf
-import kotlin.reflect.full.memberProperties
 import kotlin.reflect.full.primaryConstructor
 import kotlin.reflect.jvm.javaType
 
@@ -16,59 +15,119 @@ val IDENTTITY_TRANSFORMATION: (
     expectedType: KClass<out ASTNode>,
     astTransformer: ASTTransformer,
 ) -> List<ASTNode> = {
+    source: Any?,
+    context: TransformationContext,
+    _: KClass<out ASTNode>,
+    astTransformer: ASTTransformer,
+    ->
+    identityTransformation(source, context, astTransformer, share = false)
+}
+
+/**
+ * Like [IDENTTITY_TRANSFORMATION], but a node is copied only if some of its children are transformed into different
+ * nodes; otherwise, the node itself is returned, so that the subtrees that no rule changes are shared, by reference,
+ * between the source and the result. Then, the transformation costs in proportion to the changed nodes and their
+ * ancestors, rather than to the whole tree. The shared nodes keep their parent in the source tree; call
+ * [com.strumenta.starlasu.model.assignParents] on the result if that matters.
+ */
+val SHARING_IDENTITY_TRANSFORMATION: (
     source: Any?,
     context: TransformationContext,
     expectedType: KClass<out ASTNode>,
     astTransformer: ASTTransformer,
+) -> List<ASTNode> = {
+    source: Any?,
+    context: TransformationContext,
+    _: KClass<out ASTNode>,
+    astTransformer: ASTTransformer,
     ->
+    identityTransformation(source, context, astTransformer, share = true)
+}
+
+/**
+ * How to copy the nodes of a class in an identity transformation: which constructor parameters are children, to be
+ * transformed, and which are lists of children.
+ */
+private class IdentityPlan(
+    kClass: KClass<out ASTNode>,
+) {
+    val constructorPlan: NodeConstructorPlan<ASTNode>
+    val isNode: BooleanArray
+    val isNodeList: BooleanArray
+
+    init {
+        val primaryConstructor =
+            kClass.primaryConstructor
+                ?: throw IllegalStateException(
+                    "No primary constructor found for $kClass: cannot apply " +
+                        "identity transformation",
+                )
+        constructorPlan = NodeConstructorPlan.of(primaryConstructor) as NodeConstructorPlan<ASTNode>
+        val parameters = constructorPlan.parameters
+        parameters.forEachIndexed { i, parameter ->
+            if (constructorPlan.properties[i] == null) {
+                throw IllegalStateException("Cannot find property named as parameter $parameter")
+            }
+        }
+        isNode =
+            BooleanArray(parameters.size) {
+                (parameters[it].type.classifier as KClass<*>).isSubclassOf(ASTNode::class)
+            }
+        isNodeList =
+            BooleanArray(parameters.size) {
+                // mt is ParameterizedType && mt.rawType == List::class.java -> mutableListOf<Any>()
+                val mt = parameters[it].type.javaType
+                mt is ParameterizedType &&
+                    mt.rawType == List::class.java &&
+                    (mt.actualTypeArguments.first() as? Class<*>)?.kotlin?.isSubclassOf(ASTNode::class) == true
+            }
+    }
+}
+
+private val identityPlans =
+    object : ClassValue<IdentityPlan>() {
+        override fun computeValue(type: Class<*>): IdentityPlan = IdentityPlan(type.kotlin as KClass<out ASTNode>)
+    }
+
+private fun identityTransformation(
+    source: Any?,
+    context: TransformationContext,
+    astTransformer: ASTTransformer,
+    share: Boolean,
+): List<ASTNode> =
     when (source) {
         null -> {
             emptyList()
         }
 
         is ASTNode -> {
-            val kClass = source.javaClass.kotlin
-            val primaryConstructor =
-                kClass.primaryConstructor
-                    ?: throw IllegalStateException(
-                        "No primary constructor found for $kClass: cannot apply " +
-                            "identity transformation",
-                    )
-            val params = mutableMapOf<KParameter, Any?>()
-            primaryConstructor.parameters.forEach { parameter ->
-                val mt = parameter.type.javaType
-                val correspondingProperty =
-                    source.javaClass.kotlin.memberProperties.find {
-                        it.name == parameter.name
-                    } ?: throw IllegalStateException(
-                        "Cannot find property named as parameter $parameter",
-                    )
-                val originalValue = correspondingProperty.get(source)
-                // mt is ParameterizedType && mt.rawType == List::class.java -> mutableListOf<Any>()
-                when {
-                    (parameter.type.classifier as KClass<*>).isSubclassOf(ASTNode::class) -> {
-                        params[parameter] = astTransformer.transform(originalValue, context)
-                    }
-
-                    mt is ParameterizedType &&
-                        mt.rawType == List::class.java &&
-                        (mt.actualTypeArguments.first() as? Class<*>)?.kotlin?.isSubclassOf(ASTNode::class) == true -> {
-                        params[parameter] =
-                            astTransformer.translateList<ASTNode>(originalValue as List<ASTNode>, context)
-                    }
-
-                    else -> params[parameter] = originalValue
+            val plan = identityPlans.get(source.javaClass)
+            val arguments = plan.constructorPlan.argumentsOf(source)
+            var changed = false
+            for (i in arguments.indices) {
+                val originalValue = arguments[i]
+                if (plan.isNode[i]) {
+                    arguments[i] = astTransformer.transform(originalValue, context)
+                    changed = changed || arguments[i] !== originalValue
+                } else if (plan.isNodeList[i]) {
+                    val list = astTransformer.translateList<ASTNode>(originalValue as List<ASTNode>, context)
+                    arguments[i] = list
+                    changed = changed ||
+                        list.size != originalValue.size ||
+                        list.indices.any { list[it] !== originalValue[it] }
                 }
             }
-
-            val newInstance = primaryConstructor.callBy(params) as ASTNode
-            newInstance.parent = context.parent
-            newInstance.origin = source
-            listOf(newInstance)
+            if (share && !changed) {
+                listOf(source)
+            } else {
+                val newInstance = plan.constructorPlan.newInstance(arguments)
+                newInstance.parent = context.parent
+                newInstance.origin = source
+                listOf(newInstance)
+            }
         }
 
         else -> {
             throw IllegalArgumentException("An Identity Transformation expect to receive a ASTNode")
         }
     }
-}
@@ -0,0 +1,26 @@
+package com.strumenta.starlasu.transformation
+
+import java.util.concurrent.ForkJoinPool
+import kotlin.reflect.KClass
+
+/**
+ * Configures an [ASTTransformer] to transform independent subtrees concurrently, see
+ * [ASTTransformer.parallelTransformation]. When the transformer meets a list of children with at least [minForks]
+ * sources that are instances of one of the [forkAt] classes (e.g., the contexts of the top-level statements of a
+ * compilation unit), it transforms each of them in a separate fork-join task, with its own [TransformationContext].
+ * The issues found by each task are then added to the original context in document order, so the resulting AST and
+ * issues are the same as those of a sequential transformation.
+ *
+ * The rules of the transformer must not depend on the order in which sibling subtrees are transformed, and they
+ * should not share mutable state, apart from the context. Transformations using a subclass of
+ * [TransformationContext] are always sequential, because we don't know how to split it.
+ */
+class ParallelTransformation
+    @JvmOverloads
+    constructor(
+        val forkAt: Set<KClass<*>>,
+        val pool: ForkJoinPool = ForkJoinPool.commonPool(),
+        val minForks: Int = 2,
+    ) {
+        fun isForkPoint(source: Any): Boolean = forkAt.any { it.isInstance(source) }
+    }
@@ -1,22 +1,39 @@
 package com.strumenta.starlasu.transformation
 
 import com.strumenta.starlasu.model.ASTNode
+import com.strumenta.starlasu.model.LazyChild
+import com.strumenta.starlasu.model.NodeConstructorPlan
 import com.strumenta.starlasu.model.Origin
 import com.strumenta.starlasu.model.PropertyDescription
 import com.strumenta.starlasu.model.asContainment
 import com.strumenta.starlasu.model.children
+import com.strumenta.starlasu.model.lazyChild
+import com.strumenta.starlasu.model.nodeProperties
 import com.strumenta.starlasu.model.processProperties
 import com.strumenta.starlasu.model.withOrigin
+import com.strumenta.starlasu.utils.OperationCancelledException
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.reflect.AccessibleObject
+import java.lang.reflect.Field
+import java.lang.reflect.Method
+import java.util.Collections
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.reflect.KClass
 import kotlin.reflect.KMutableProperty1
 import kotlin.reflect.KParameter
 import kotlin.reflect.KProperty1
-import kotlin.reflect.full.createInstance
 import kotlin.reflect.full.createType
 import kotlin.reflect.full.isSubclassOf
 import kotlin.reflect.full.memberFunctions
 import kotlin.reflect.full.memberProperties
 import kotlin.reflect.full.superclasses
+import kotlin.reflect.jvm.javaField
+import kotlin.reflect.jvm.javaGetter
+import kotlin.reflect.jvm.javaMethod
 
 class ConfigurationException(
     message: String,
@@ -54,11 +71,54 @@ class TransformationRule<Source, Output : ASTNode>(
         ASTTransformer,
         TransformationRule<Source, Output>,
     ) -> List<Output>,
-    var children: MutableMap<String, ChildTransformationRule<Source, *, *>?> = mutableMapOf(),
-    var finalizer: (Output, TransformationContext) -> Unit = { _, _ -> },
-    var childrenPolicy: ChildrenPolicy = ChildrenPolicy.SET_AFTER_CONSTRUCTION,
-    var customConstructor: Boolean = true,
+    children: MutableMap<String, ChildTransformationRule<Source, *, *>?> = mutableMapOf(),
+    finalizer: (Output, TransformationContext) -> Unit = { _, _ -> },
+    childrenPolicy: ChildrenPolicy = ChildrenPolicy.SET_AFTER_CONSTRUCTION,
+    customConstructor: Boolean = true,
 ) {
+    var children: MutableMap<String, ChildTransformationRule<Source, *, *>?> = children
+        set(value) {
+            checkNotFrozen()
+            field = value
+        }
+
+    var finalizer: (Output, TransformationContext) -> Unit = finalizer
+        set(value) {
+            checkNotFrozen()
+            field = value
+        }
+
+    var childrenPolicy: ChildrenPolicy = childrenPolicy
+        set(value) {
+            checkNotFrozen()
+            field = value
+        }
+
+    var customConstructor: Boolean = customConstructor
+        set(value) {
+            checkNotFrozen()
+            field = value
+        }
+
+    /**
+     * Whether the transformer owning this rule has been frozen (see [ASTTransformer.freeze]), after which the rule
+     * cannot be configured anymore.
+     */
+    var isFrozen: Boolean = false
+        private set
+
+    /**
+     * The class and the node type of the nodes produced by this rule, when the transformer instantiates them itself.
+     */
+    internal var target: KClass<out ASTNode>? = null
+    internal var nodeType: String? = null
+
+    /**
+     * For each class of the nodes produced by this rule, the children to set after construction, see
+     * [ASTTransformer.setChildren]. They're computed the first time a node of that class is produced.
+     */
+    internal val childPlans = ConcurrentHashMap<Class<*>, Array<ChildPlan>>()
+
     companion object {
         fun <Source, Output : ASTNode> single(
             singleConstructor: (
@@ -106,7 +166,7 @@ class TransformationRule<Source, Output : ASTNode>(
     ): TransformationRule<Source, Output> =
         withChild(
             get = { source -> source.sourceAccessor() },
-            set = (targetProperty as KMutableProperty1<Any, Any?>)::set,
+            set = NodeConstructorPlan.compiledSetter(targetProperty),
             targetProperty.name,
             scopedToType,
             getPropertyType(targetProperty),
@@ -132,12 +192,29 @@ class TransformationRule<Source, Output : ASTNode>(
     ): TransformationRule<Source, Output> =
         withChild(
             get = { source -> source.sourceAccessor() },
-            set = (targetProperty as KMutableProperty1<Any, Any?>)::set,
+            set = NodeConstructorPlan.compiledSetter(targetProperty),
             targetProperty.name,
             null,
             getPropertyType(targetProperty),
         )
 
+    /**
+     * Specify how to convert a child that is transformed only when it's first accessed, rather than together with its
+     * parent. The target property must be delegated to a [LazyChild], which holds the source of the child until then.
+     */
+    fun withLazyChild(
+        targetProperty: KMutableProperty1<out Any, *>,
+        sourceAccessor: Source.() -> Any?,
+    ): TransformationRule<Source, Output> =
+        withChild(
+            get = { source -> source.sourceAccessor() },
+            set = NodeConstructorPlan.compiledSetter(targetProperty),
+            targetProperty.name,
+            null,
+            getPropertyType(targetProperty),
+            lazy = true,
+        )
+
     /**
      * Specify how to convert a child. The value obtained from the conversion can only be used
      * as a constructor parameter when instantiating the parent. It cannot be used to set the value after
@@ -188,11 +265,16 @@ class TransformationRule<Source, Output : ASTNode>(
         name: String,
         scopedToType: KClass<*>? = null,
         childType: KClass<out ASTNode> = ASTNode::class,
+        lazy: Boolean = false,
     ): TransformationRule<Source, Output> {
+        checkNotFrozen()
         if (childrenPolicy == ChildrenPolicy.SKIP) {
             throw ConfigurationException("Children are configured to be skipped, calling withChild is illegal")
         }
         val prefix = if (scopedToType != null) scopedToType.qualifiedName + "#" else ""
+        if (lazy && set == null) {
+            throw ConfigurationException("Child $name is lazy, but it has no setter")
+        }
         if (set == null) {
             if (customConstructor) {
                 throw ConfigurationException("A custom constructor was provided, but child $name has no setter")
@@ -202,16 +284,19 @@ class TransformationRule<Source, Output : ASTNode>(
             }
         }
 
-        children[prefix + name] = ChildTransformationRule(prefix + name, get, set, childType)
+        children[prefix + name] = ChildTransformationRule(prefix + name, get, set, childType, lazy)
+        childPlans.clear()
         return this
     }
 
     fun withFinalizer(finalizer: (Output, TransformationContext) -> Unit): TransformationRule<Source, Output> {
+        checkNotFrozen()
         this.finalizer = finalizer
         return this
     }
 
     fun withFinalizer(finalizer: (Output) -> Unit): TransformationRule<Source, Output> {
+        checkNotFrozen()
         this.finalizer = { n, _ -> finalizer(n) }
         return this
     }
@@ -233,6 +318,7 @@ class TransformationRule<Source, Output : ASTNode>(
      * fail – or worse, it will map an unrelated node.
      */
     fun skipChildren(skip: Boolean = true): TransformationRule<Source, Output> {
+        checkNotFrozen()
         if (skip) {
             childrenPolicy = ChildrenPolicy.SKIP
         } else if (childrenPolicy == ChildrenPolicy.SKIP) {
@@ -241,10 +327,53 @@ class TransformationRule<Source, Output : ASTNode>(
         return this
     }
 
-    fun getter(path: String) =
-        { src: Source ->
+    /**
+     * Validates the rule and makes it immutable. When the target class is known, we record which of its properties are
+     * not children, so that the transformer never has to write that information lazily while transforming.
+     */
+    internal fun freeze() {
+        if (isFrozen) {
+            return
+        }
+        val target = this.target
+        val nodeType = this.nodeType
+        if (target != null && nodeType != null) {
+            if (target.isSealed) {
+                throw ConfigurationException("Unable to instantiate sealed class $target")
+            }
+            if (childrenPolicy == ChildrenPolicy.SET_AT_CONSTRUCTION) {
+                target.preferredConstructor().parameters.forEach { parameter ->
+                    if (!parameter.isOptional &&
+                        getChildTransformationRule<Any, ASTNode, Any>(nodeType, parameter.name!!) == null
+                    ) {
+                        throw ConfigurationException(
+                            "We do not know how to produce parameter ${parameter.name} for $target",
+                        )
+                    }
+                }
+            }
+            target.nodeProperties.forEach { property ->
+                if (getChildTransformationRule<Any, ASTNode, Any>(nodeType, property.name) == null) {
+                    children[getChildKey(nodeType, property.name)] =
+                        NO_CHILD_NODE as ChildTransformationRule<Source, *, *>
+                }
+            }
+        }
+        children = Collections.unmodifiableMap(LinkedHashMap(children))
+        isFrozen = true
+    }
+
+    private fun checkNotFrozen() {
+        if (isFrozen) {
+            throw IllegalStateException("The transformer has been frozen, its rules cannot be changed")
+        }
+    }
+
+    fun getter(path: String): (Source) -> Any? {
+        val elements = path.split('.')
+        return { src: Source ->
             var sub: Any? = src
-            for (elem in path.split('.')) {
+            for (elem in elements) {
                 if (sub == null) {
                     break
                 }
@@ -252,6 +381,7 @@ class TransformationRule<Source, Output : ASTNode>(
             }
             sub
         }
+    }
 
     private fun getSubExpression(
         src: Any,
@@ -260,18 +390,69 @@ class TransformationRule<Source, Output : ASTNode>(
         if (src is Collection<*>) {
             src.map { getSubExpression(it!!, elem) }
         } else {
-            val sourceProp = src::class.memberProperties.find { it.name == elem }
-            if (sourceProp == null) {
-                val sourceMethod =
-                    src::class.memberFunctions.find { it.name == elem && it.parameters.size == 1 }
-                        ?: throw Error("$elem not found in $src (${src::class})")
-                sourceMethod.call(src)
-            } else {
-                (sourceProp as KProperty1<Any, Any>).get(src)
-            }
+            val accessor =
+                memberAccessors.get(src.javaClass).computeIfAbsent(elem) { memberAccessor(src.javaClass.kotlin, it) }
+                    ?: throw Error("$elem not found in $src (${src::class})")
+            accessor(src)
+        }
+}
+
+/**
+ * For each source class, the functions to read its members by name, as used by [TransformationRule.getter]. The
+ * functions are null for the names that are not members of the class.
+ */
+private val memberAccessors =
+    object : ClassValue<ConcurrentHashMap<String, ((Any) -> Any?)?>>() {
+        override fun computeValue(type: Class<*>): ConcurrentHashMap<String, ((Any) -> Any?)?> = ConcurrentHashMap()
+    }
+
+private fun memberAccessor(
+    kClass: KClass<*>,
+    name: String,
+): ((Any) -> Any?)? {
+    val property = kClass.memberProperties.find { it.name == name }
+    if (property != null) {
+        val getter = property.javaGetter?.let { compile(it) } ?: property.javaField?.let { compile(it) }
+        return if (getter != null) {
+            { src -> getter.invoke(src) }
+        } else {
+            { src -> (property as KProperty1<Any, Any?>).get(src) }
         }
+    }
+    val function = kClass.memberFunctions.find { it.name == name && it.parameters.size == 1 } ?: return null
+    val method = function.javaMethod?.let { compile(it) }
+    return if (method != null) {
+        { src -> method.invoke(src) }
+    } else {
+        { src -> function.call(src) }
+    }
 }
 
+private fun compile(member: AccessibleObject): MethodHandle? =
+    try {
+        member.trySetAccessible()
+        val handle =
+            when (member) {
+                is Method -> MethodHandles.lookup().unreflect(member)
+                is Field -> MethodHandles.lookup().unreflectGetter(member)
+                else -> null
+            }
+        handle?.asType(handle.type().generic())
+    } catch (e: IllegalAccessException) {
+        null
+    } catch (e: SecurityException) {
+        null
+    }
+
+/**
+ * A child to set after the construction of a node, see [ASTTransformer.setChildren]. The property description is
+ * detached from any node: it describes the property, but it has no value.
+ */
+internal class ChildPlan(
+    val rule: ChildTransformationRule<*, *, *>,
+    val property: PropertyDescription,
+)
+
 /**
  * Information on how to retrieve a child node.
  *
@@ -279,12 +460,14 @@ class TransformationRule<Source, Output : ASTNode>(
  * must necessarily be passed when constructing the parent.
  *
  * @param type the property type if single, the collection's element type if multiple
+ * @param lazy whether the child is transformed only when it's first accessed, see [LazyChild]
  */
 data class ChildTransformationRule<Source, Target, Child : Any>(
     val name: String,
     val get: (Source) -> Any?,
     val setter: ((Target, Child?) -> Unit)?,
     val type: KClass<out ASTNode>,
+    val lazy: Boolean = false,
 ) {
     fun set(
         node: Target,
@@ -344,13 +527,69 @@ open class ASTTransformer
         )? = null,
     ) {
         /**
-         * Factories that map from source tree node to target tree node.
+         * Factories that map from source tree node to target tree node. Its [entries][MutableMap.entries],
+         * [keys][MutableMap.keys] and [values][MutableMap.values] views are read-only: the rules are changed through
+         * the map itself, so that the transformer knows when to forget the rules it has already looked up.
+         */
+        val rules: MutableMap<KClass<*>, TransformationRule<*, *>> =
+            RuleMap(onChange = {
+                rulesGeneration.incrementAndGet()
+                dispatchCache.clear()
+            })
+
+        /**
+         * If not null, lists of children are transformed concurrently, as configured. See [ParallelTransformation].
+         */
+        @Volatile
+        var parallelTransformation: ParallelTransformation? = null
+
+        /**
+         * If not null, it records statistics about the invocations of each rule. See [TransformationProfiler].
+         */
+        @Volatile
+        var profiler: TransformationProfiler? = null
+
+        /**
+         * Whether [freeze] has been called.
+         */
+        var isFrozen: Boolean = false
+            private set
+
+        /**
+         * The rule to use for each source class, as found by [getTransformationRule], including the classes without a
+         * rule ([NO_RULE]). It is cleared whenever [rules] changes; since a lookup may race with the change, each entry
+         * also records the [rulesGeneration] it was computed in, and it's ignored if the rules have changed since.
+         */
+        private val dispatchCache = ConcurrentHashMap<Class<*>, CachedRule>()
+
+        /**
+         * Incremented whenever [rules] changes.
          */
-        val rules = mutableMapOf<KClass<*>, TransformationRule<*, *>>()
+        private val rulesGeneration = AtomicInteger()
 
         private val _knownClasses = mutableMapOf<String, MutableSet<KClass<*>>>()
         val knownClasses: Map<String, Set<KClass<*>>> = _knownClasses
 
+        /**
+         * Validates the configuration of this transformer and makes it immutable: no more rules can be registered,
+         * existing rules cannot be changed, and everything the transformer would otherwise compute lazily about the
+         * children of the nodes that it instantiates is computed now. A frozen transformer can be shared by any number
+         * of threads, as long as its subclasses don't keep mutable state of their own.
+         *
+         * @throws ConfigurationException if a rule cannot work, e.g., because a constructor parameter of its target
+         * class has no corresponding child.
+         */
+        fun freeze(): ASTTransformer {
+            synchronized(this) {
+                if (!isFrozen) {
+                    rules.values.forEach { it.freeze() }
+                    (rules as RuleMap).isFrozen = true
+                    isFrozen = true
+                }
+            }
+            return this
+        }
+
         /**
          * This ensures that the generated value is a single ASTNode or null.
          */
@@ -390,7 +629,33 @@ open class ASTTransformer
             if (source is Collection<*>) {
                 throw Error("Mapping error: received collection when value was expected")
             }
-            val transform = getTransformationRule<Any, ASTNode>(source::class as KClass<Any>)
+            context.cancellationToken?.checkCancelled()
+            val transform = getCachedTransformationRule<Any, ASTNode>(source)
+            val profiler = this.profiler ?: return applyRule(transform, source, context, expectedType)
+            val frame = profiler.enter()
+            var nodes: List<ASTNode>? = null
+            try {
+                nodes = applyRule(transform, source, context, expectedType)
+                return nodes
+            } finally {
+                val name =
+                    if (transform != null) {
+                        profiler.ruleName(transform) {
+                            rules.entries.find { it.value === transform }?.key?.qualifiedName ?: transform.toString()
+                        }
+                    } else {
+                        "<missing ${source::class.qualifiedName}>"
+                    }
+                profiler.exit(frame, name, nodes)
+            }
+        }
+
+        private fun applyRule(
+            transform: TransformationRule<Any, ASTNode>?,
+            source: Any,
+            context: TransformationContext,
+            expectedType: KClass<out ASTNode>,
+        ): List<ASTNode> {
             val nodes: List<ASTNode>
             if (transform != null) {
                 nodes = makeNodes(transform, source, context)
@@ -413,7 +678,8 @@ open class ASTTransformer
                     )
                 }
                 nodes = defaultNodes(source, context, expectedType)
-                nodes.filter { it.origin == null }.forEach { node ->
+                // A default transformation may return the source itself, which we must not alter
+                nodes.filter { it.origin == null && it !== source }.forEach { node ->
                     node.origin = MissingASTTransformation(asOrigin(source, context), source, expectedType)
                 }
             }
@@ -445,22 +711,35 @@ open class ASTTransformer
                     )
                 }
 
+        /**
+         * Sets the children of the node in `context.parent`. Which properties have a child rule is computed only the
+         * first time a node of a given class is produced by the rule, assuming that all the nodes of a class have the
+         * same [ASTNode.nodeType].
+         */
         protected open fun setChildren(
             rule: TransformationRule<Any, ASTNode>,
             source: Any,
             context: TransformationContext,
         ) {
             val node = context.parent!!
+            val plans = rule.childPlans.computeIfAbsent(node.javaClass) { childPlans(rule, node) }
+            for (plan in plans) {
+                setChild(plan.rule, source, context, plan.property)
+            }
+        }
+
+        private fun childPlans(
+            rule: TransformationRule<Any, ASTNode>,
+            node: ASTNode,
+        ): Array<ChildPlan> {
+            val plans = mutableListOf<ChildPlan>()
             node.processProperties { pd ->
                 val childTransform = rule.getChildTransformationRule<Any, ASTNode, Any>(node, pd.name)
-                if (childTransform != null) {
-                    if (childTransform != NO_CHILD_NODE) {
-                        setChild(childTransform, source, context, pd)
-                    }
-                } else {
-                    rule.children[getChildKey(node.nodeType, pd.name)] = NO_CHILD_NODE
+                if (childTransform != null && childTransform != NO_CHILD_NODE) {
+                    plans.add(ChildPlan(childTransform, pd.copy()))
                 }
             }
+            return plans.toTypedArray()
         }
 
         open fun asOrigin(
@@ -477,15 +756,11 @@ open class ASTTransformer
             val node = context.parent!!
             val childFactory = childTransformationRule as ChildTransformationRule<Any, Any, Any>
             val childrenSource = childFactory.get(getSource(node, source))
-            val child: Any? =
-                if (pd.multiple) {
-                    (childrenSource as List<*>?)
-                        ?.map {
-                            transformIntoNodes(it, context, childFactory.type)
-                        }?.flatten() ?: listOf<ASTNode>()
-                } else {
-                    transform(childrenSource, context)
-                }
+            if (childFactory.lazy) {
+                deferChild(childFactory, childrenSource, context, pd)
+                return
+            }
+            val child = transformChild(childFactory, childrenSource, context, pd)
             try {
                 childTransformationRule.set(node, child)
             } catch (e: IllegalArgumentException) {
@@ -493,11 +768,95 @@ open class ASTTransformer
             }
         }
 
+        private fun transformChild(
+            childFactory: ChildTransformationRule<Any, Any, Any>,
+            childrenSource: Any?,
+            context: TransformationContext,
+            pd: PropertyDescription,
+        ): Any? =
+            if (pd.multiple) {
+                (childrenSource as List<*>?)?.let { transformAll(it, context, childFactory.type) }
+                    ?: listOf<ASTNode>()
+            } else {
+                transform(childrenSource, context)
+            }
+
+        /**
+         * Stores the source of a lazy child in the [LazyChild] delegate of its property, to be transformed on first
+         * access. The transformation then uses a new [TransformationContext], whose issues are added to the original
+         * one.
+         */
+        private fun deferChild(
+            childFactory: ChildTransformationRule<Any, Any, Any>,
+            childrenSource: Any?,
+            context: TransformationContext,
+            pd: PropertyDescription,
+        ) {
+            val node = context.parent!!
+            val lazyChild =
+                node.lazyChild(pd.name) as LazyChild<Any?>?
+                    ?: throw IllegalStateException(
+                        "Child ${pd.name} of ${node.nodeType} is lazy, but it is not delegated to a LazyChild",
+                    )
+            val issues = context.issues
+            val source = context.source
+            val cancellationToken = context.cancellationToken
+            lazyChild.defer {
+                val lazyContext = TransformationContext(mutableListOf(), node, source, cancellationToken)
+                val child = transformChild(childFactory, childrenSource, lazyContext, pd)
+                synchronized(issues) {
+                    issues.addAll(lazyContext.issues)
+                }
+                child
+            }
+        }
+
         protected open fun getSource(
             node: ASTNode,
             source: Any,
         ): Any = source
 
+        /**
+         * Transforms a list of sources, e.g., the sources of the children of a node, concatenating the resulting nodes.
+         * If [parallelTransformation] is set and enough of the sources are fork points, they're transformed
+         * concurrently.
+         */
+        protected fun transformAll(
+            sources: List<*>,
+            context: TransformationContext,
+            expectedType: KClass<out ASTNode>,
+        ): List<ASTNode> {
+            val parallel = parallelTransformation
+            if (parallel == null ||
+                context.javaClass != TransformationContext::class.java ||
+                sources.count { it != null && parallel.isForkPoint(it) } < parallel.minForks
+            ) {
+                return sources.map { transformIntoNodes(it, context, expectedType) }.flatten()
+            }
+            // Each source gets its own context, so that the issues can be merged in order
+            val contexts =
+                sources.map {
+                    TransformationContext(mutableListOf(), context.parent, context.source, context.cancellationToken)
+                }
+            val tasks =
+                sources.mapIndexed { i, source ->
+                    if (source != null && parallel.isForkPoint(source)) {
+                        val task =
+                            ForkJoinTask.adapt(Callable { transformIntoNodes(source, contexts[i], expectedType) })
+                        if (ForkJoinTask.inForkJoinPool()) task.fork() else parallel.pool.execute(task)
+                        task
+                    } else {
+                        null
+                    }
+                }
+            val results =
+                sources.mapIndexed { i, source ->
+                    tasks[i]?.join() ?: transformIntoNodes(source, contexts[i], expectedType)
+                }
+            contexts.forEach { context.issues.addAll(it.issues) }
+            return results.flatten()
+        }
+
         protected open fun <S : Any, T : ASTNode> makeNodes(
             rule: TransformationRule<S, T>,
             source: S,
@@ -512,6 +871,24 @@ open class ASTTransformer
             return nodes
         }
 
+        /**
+         * The rule to transform the given source, as found by [getTransformationRule] for its class. The result is
+         * computed once per class, so that sources without a rule don't walk their superclasses again and again.
+         */
+        protected fun <S : Any, T : ASTNode> getCachedTransformationRule(source: S): TransformationRule<S, T>? {
+            val generation = rulesGeneration.get()
+            val cached = dispatchCache[source.javaClass]
+            val rule =
+                if (cached != null && cached.generation == generation) {
+                    cached.rule
+                } else {
+                    (getTransformationRule<S, T>(source::class as KClass<S>) ?: NO_RULE).also {
+                        dispatchCache[source.javaClass] = CachedRule(generation, it)
+                    }
+                }
+            return if (rule === NO_RULE) null else rule as TransformationRule<S, T>
+        }
+
         protected open fun <S : Any, T : ASTNode> getTransformationRule(kClass: KClass<S>): TransformationRule<S, T>? {
             val rule = rules[kClass]
             if (rule != null) {
@@ -586,6 +963,8 @@ open class ASTTransformer
                     } else {
                         throw RuntimeException("Failed to transform $input into $kclass", t)
                     }
+                } catch (e: OperationCancelledException) {
+                    throw e
                 } catch (e: Exception) {
                     if (faultTolerance != FaultTolerance.STRICT) {
                         val node = T::class.dummyInstance()
@@ -631,12 +1010,7 @@ open class ASTTransformer
                 }
 
                 is List<*> -> {
-                    PresentParameterValue(
-                        childSource
-                            .map { transformIntoNodes(it, context) }
-                            .flatten()
-                            .toMutableList(),
-                    )
+                    PresentParameterValue(transformAll(childSource, context, ASTNode::class).toMutableList())
                 }
 
                 is String -> {
@@ -674,10 +1048,13 @@ open class ASTTransformer
             target: KClass<T>,
             nodeType: String = target.qualifiedName!!,
         ): TransformationRule<S, T> {
+            checkNotFrozen()
             registerKnownClass(target)
             // We are looking for any constructor with does not take parameters or have default
             // values for all its parameters
             val emptyLikeConstructor = target.constructors.find { it.parameters.all { param -> param.isOptional } }
+            val constructorPlan by lazy { NodeConstructorPlan.of(target.preferredConstructor()) }
+            val emptyLikeConstructorPlan by lazy { emptyLikeConstructor?.let { NodeConstructorPlan.of(it) } }
             val transformationRule =
                 TransformationRule.single(
                     { source: S, context, _, thisTransform ->
@@ -702,6 +1079,8 @@ open class ASTTransformer
                                 } else {
                                     return parameterValue(kParameter, source, childTransform, context)
                                 }
+                            } catch (e: OperationCancelledException) {
+                                throw e
                             } catch (t: Throwable) {
                                 throw RuntimeException(
                                     "Issue while populating parameter ${kParameter.name} in " +
@@ -716,34 +1095,40 @@ open class ASTTransformer
                         // the factory.
                         val instance =
                             if (thisTransform.childrenPolicy == ChildrenPolicy.SET_AT_CONSTRUCTION) {
-                                val constructor = target.preferredConstructor()
-                                val constructorParamValues =
-                                    constructor.parameters
-                                        .map { it to getConstructorParameterValue(it) }
-                                        .filter { it.second is PresentParameterValue }
-                                        .associate { it.first to (it.second as PresentParameterValue).value }
+                                val plan = constructorPlan
+                                val arguments = plan.newArguments()
+                                plan.parameters.forEachIndexed { i, parameter ->
+                                    val value = getConstructorParameterValue(parameter)
+                                    if (value is PresentParameterValue) {
+                                        arguments[i] = value.value
+                                    }
+                                }
                                 try {
-                                    val instance = constructor.callBy(constructorParamValues)
+                                    val instance = plan.newInstance(arguments)
                                     instance.children.forEach { child -> child.parent = instance }
                                     instance
+                                } catch (e: OperationCancelledException) {
+                                    throw e
                                 } catch (t: Throwable) {
                                     throw RuntimeException(
-                                        "Invocation of constructor $constructor failed. " +
+                                        "Invocation of constructor ${plan.constructor} failed. " +
                                             "We passed: ${
-                                                constructorParamValues.map { "${it.key.name}=${it.value}" }
-                                                    .joinToString(", ")
+                                                plan.parameters.indices
+                                                    .filter { arguments[it] !== NodeConstructorPlan.ABSENT }
+                                                    .joinToString(", ") {
+                                                        "${plan.parameters[it].name}=${arguments[it]}"
+                                                    }
                                             }",
                                         t,
                                     )
                                 }
                             } else {
-                                if (emptyLikeConstructor == null) {
-                                    throw RuntimeException(
+                                val plan =
+                                    emptyLikeConstructorPlan ?: throw RuntimeException(
                                         "childrenSetAtConstruction is not set but there is no empty like " +
                                             "constructor for $target",
                                     )
-                                }
-                                target.createInstance()
+                                plan.newInstance(plan.newArguments())
                             }
                         if (instance.nodeType != nodeType) {
                             throw RuntimeException(
@@ -764,6 +1149,8 @@ open class ASTTransformer
                         },
                 )
             transformationRule.customConstructor = false
+            transformationRule.target = target
+            transformationRule.nodeType = nodeType
             rules[source] = transformationRule
             return transformationRule
         }
@@ -775,6 +1162,12 @@ open class ASTTransformer
         inline fun <reified T : ASTNode> registerIdentityTransformation(nodeClass: KClass<T>) =
             registerRule(nodeClass) { node -> node }.skipChildren()
 
+        private fun checkNotFrozen() {
+            if (isFrozen) {
+                throw IllegalStateException("The transformer has been frozen, no more rules can be registered")
+            }
+        }
+
         private fun registerKnownClass(target: KClass<*>) {
             val qualifiedName = target.qualifiedName
             val packageName =
@@ -820,6 +1213,69 @@ private fun getChildKey(
     parameterName: String,
 ): String = "$nodeType#$parameterName"
 
+/**
+ * An entry of the dispatch cache of an [ASTTransformer]: the [rule] found for a source class when the rules of the
+ * transformer were at the given [generation].
+ */
+private class CachedRule(
+    val generation: Int,
+    val rule: TransformationRule<*, *>,
+)
+
+/**
+ * Sentinel value used to cache the information that a given source class has no transformation rule.
+ */
+private val NO_RULE = TransformationRule<Any, ASTNode>({ _, _, _, _ -> emptyList() })
+
+/**
+ * The map of the rules of an [ASTTransformer], which notifies every change so that the dispatch cache can be cleared.
+ */
+private class RuleMap(
+    private val delegate: MutableMap<KClass<*>, TransformationRule<*, *>> = LinkedHashMap(),
+    private val onChange: () -> Unit,
+) : MutableMap<KClass<*>, TransformationRule<*, *>> by delegate {
+    var isFrozen = false
+
+    private fun checkNotFrozen() {
+        if (isFrozen) {
+            throw IllegalStateException("The transformer has been frozen, no more rules can be registered")
+        }
+    }
+    override val entries: MutableSet<MutableMap.MutableEntry<KClass<*>, TransformationRule<*, *>>>
+        get() = Collections.unmodifiableSet(delegate.entries)
+
+    override val keys: MutableSet<KClass<*>>
+        get() = Collections.unmodifiableSet(delegate.keys)
+
+    override val values: MutableCollection<TransformationRule<*, *>>
+        get() = Collections.unmodifiableCollection(delegate.values)
+
+    override fun put(
+        key: KClass<*>,
+        value: TransformationRule<*, *>,
+    ): TransformationRule<*, *>? {
+        checkNotFrozen()
+        return delegate.put(key, value).also { onChange() }
+    }
+
+    override fun putAll(from: Map<out KClass<*>, TransformationRule<*, *>>) {
+        checkNotFrozen()
+        delegate.putAll(from)
+        onChange()
+    }
+
+    override fun remove(key: KClass<*>): TransformationRule<*, *>? {
+        checkNotFrozen()
+        return delegate.remove(key).also { onChange() }
+    }
+
+    override fun clear() {
+        checkNotFrozen()
+        delegate.clear()
+        onChange()
+    }
+}
+
 private sealed class ParameterValue
 
 private class PresentParameterValue(
@@ -3,6 +3,7 @@ package com.strumenta.starlasu.transformation
 import com.strumenta.starlasu.model.ASTNode
 import com.strumenta.starlasu.model.Position
 import com.strumenta.starlasu.model.Source
+import com.strumenta.starlasu.utils.CancellationToken
 import com.strumenta.starlasu.validation.Issue
 import com.strumenta.starlasu.validation.IssueSeverity
 
@@ -20,6 +21,8 @@ import com.strumenta.starlasu.validation.IssueSeverity
  *               Defaults to an empty list if not provided.
  * @param parent The parent [com.strumenta.starlasu.model.ASTNode] in the hierarchy, if available. Defaults to null.
  * @param source The [com.strumenta.starlasu.model.Source] object associated with this context, if any. Defaults to null.
+ * @param cancellationToken If not null, it is checked before transforming each node, so that the transformation can be
+ *                          stopped. Defaults to null.
  */
 open class TransformationContext
     @JvmOverloads
@@ -30,6 +33,7 @@ open class TransformationContext
         val issues: MutableList<Issue> = mutableListOf(),
         var parent: ASTNode? = null,
         var source: Source? = null,
+        val cancellationToken: CancellationToken? = null,
     ) {
         fun addIssue(
             message: String,
@@ -0,0 +1,201 @@
+package com.strumenta.starlasu.transformation
+
+import com.google.gson.GsonBuilder
+import com.strumenta.starlasu.model.ASTNode
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * The statistics of a [TransformationRule], collected by a [TransformationProfiler].
+ *
+ * @param rule the name of the rule, i.e., the qualified name of the source class it is registered for, or
+ * `<missing Foo>` for the sources of class `Foo` that have no rule.
+ * @param inclusiveNanos the time spent in the rule, including the transformation of the children, in nanoseconds.
+ * @param exclusiveNanos the time spent in the rule, excluding the transformation of the children.
+ * @param failures how many invocations threw an exception or produced a node with a [FailingASTTransformation] origin.
+ * @param placeholders how many nodes with a [MissingASTTransformation] or [FailingASTTransformation] origin the rule
+ * produced.
+ * @param allocatedBytes the bytes allocated by the rule, excluding the transformation of the children, if measured.
+ */
+data class RuleProfile(
+    val rule: String,
+    val calls: Long,
+    val inclusiveNanos: Long,
+    val exclusiveNanos: Long,
+    val nodes: Long,
+    val failures: Long,
+    val placeholders: Long,
+    val allocatedBytes: Long?,
+)
+
+/**
+ * Collects per-rule statistics of the transformations performed by an [ASTTransformer], when set as its
+ * [ASTTransformer.profiler]. Instances are thread-safe, and they can be shared by multiple transformers. The time and
+ * allocations of the subtrees transformed on other threads (see [ParallelTransformation]) are not subtracted from the
+ * exclusive figures of the rule that forked them.
+ *
+ * @param measureAllocations whether to also measure the bytes allocated by each rule, using the thread allocation
+ * counters of the JVM. This is only possible on JVMs that support them, such as HotSpot, and it adds some overhead.
+ */
+class TransformationProfiler
+    @JvmOverloads
+    constructor(
+        val measureAllocations: Boolean = false,
+    ) {
+        private class Counters {
+            val calls = LongAdder()
+            val inclusiveNanos = LongAdder()
+            val exclusiveNanos = LongAdder()
+            val nodes = LongAdder()
+            val failures = LongAdder()
+            val placeholders = LongAdder()
+            val allocatedBytes = LongAdder()
+        }
+
+        /**
+         * An invocation being measured. The time and allocations of the nested invocations are subtracted from the
+         * outer one, to compute the exclusive figures.
+         */
+        internal class Frame(
+            val startNanos: Long,
+            val startBytes: Long,
+        ) {
+            var childNanos = 0L
+            var childBytes = 0L
+        }
+
+        private val counters = ConcurrentHashMap<String, Counters>()
+        private val ruleNames = ConcurrentHashMap<TransformationRule<*, *>, String>()
+        private val frames = ThreadLocal.withInitial { ArrayDeque<Frame>() }
+        private val threadMXBean =
+            if (measureAllocations) {
+                (ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean)
+                    ?.takeIf { it.isThreadAllocatedMemorySupported }
+                    ?.also { it.isThreadAllocatedMemoryEnabled = true }
+            } else {
+                null
+            }
+
+        internal fun ruleName(
+            rule: TransformationRule<*, *>,
+            computeName: () -> String,
+        ): String = ruleNames.computeIfAbsent(rule) { computeName() }
+
+        internal fun enter(): Frame {
+            val frame = Frame(System.nanoTime(), allocatedBytes())
+            frames.get().addLast(frame)
+            return frame
+        }
+
+        /**
+         * @param nodes the nodes produced, or null if the invocation failed with an exception.
+         */
+        internal fun exit(
+            frame: Frame,
+            rule: String,
+            nodes: List<ASTNode>?,
+        ) {
+            val nanos = System.nanoTime() - frame.startNanos
+            val bytes = if (threadMXBean != null) allocatedBytes() - frame.startBytes else 0L
+            val stack = frames.get()
+            stack.removeLast()
+            stack.lastOrNull()?.let {
+                it.childNanos += nanos
+                it.childBytes += bytes
+            }
+            val c = counters.computeIfAbsent(rule) { Counters() }
+            c.calls.increment()
+            c.inclusiveNanos.add(nanos)
+            c.exclusiveNanos.add(nanos - frame.childNanos)
+            c.allocatedBytes.add(bytes - frame.childBytes)
+            if (nodes == null) {
+                c.failures.increment()
+            } else {
+                c.nodes.add(nodes.size.toLong())
+                if (nodes.any { it.origin is FailingASTTransformation }) {
+                    c.failures.increment()
+                }
+                c.placeholders.add(
+                    nodes
+                        .count {
+                            it.origin is MissingASTTransformation || it.origin is FailingASTTransformation
+                        }.toLong(),
+                )
+            }
+        }
+
+        private fun allocatedBytes(): Long = threadMXBean?.getThreadAllocatedBytes(Thread.currentThread().id) ?: 0L
+
+        /**
+         * The statistics of each rule that has been invoked, by decreasing exclusive time.
+         */
+        val profiles: List<RuleProfile>
+            get() =
+                counters
+                    .map { (rule, c) ->
+                        RuleProfile(
+                            rule,
+                            c.calls.sum(),
+                            c.inclusiveNanos.sum(),
+                            c.exclusiveNanos.sum(),
+                            c.nodes.sum(),
+                            c.failures.sum(),
+                            c.placeholders.sum(),
+                            if (threadMXBean != null) c.allocatedBytes.sum() else null,
+                        )
+                    }.sortedByDescending { it.exclusiveNanos }
+
+        /**
+         * Discards the statistics collected so far, and the names of the rules, so that the rules that are no longer
+         * used are not retained.
+         */
+        fun reset() {
+            counters.clear()
+            ruleNames.clear()
+        }
+
+        /**
+         * A human-readable table of the [profiles], sorted as specified, with times in microseconds.
+         */
+        @JvmOverloads
+        fun report(
+            sortBy: Comparator<RuleProfile> = compareByDescending { it.exclusiveNanos },
+            limit: Int = Int.MAX_VALUE,
+        ): String =
+            buildString {
+                append(
+                    String.format(
+                        "%10s %12s %12s %10s %8s %12s %14s  %s%n",
+                        "calls",
+                        "incl(us)",
+                        "excl(us)",
+                        "nodes",
+                        "failures",
+                        "placeholders",
+                        "alloc(bytes)",
+                        "rule",
+                    ),
+                )
+                profiles.sortedWith(sortBy).take(limit).forEach {
+                    append(
+                        String.format(
+                            "%10d %12.1f %12.1f %10d %8d %12d %14s  %s%n",
+                            it.calls,
+                            it.inclusiveNanos / 1000.0,
+                            it.exclusiveNanos / 1000.0,
+                            it.nodes,
+                            it.failures,
+                            it.placeholders,
+                            it.allocatedBytes?.toString() ?: "-",
+                            it.rule,
+                        ),
+                    )
+                }
+            }
+
+        /**
+         * The [profiles] as a JSON array, with times in nanoseconds.
+         */
+        fun toJson(): String = GsonBuilder().setPrettyPrinting().create().toJson(profiles)
+    }
@@ -1,10 +1,13 @@
 package com.strumenta.starlasu.traversing
 
 import com.strumenta.starlasu.model.ASTNode
+import com.strumenta.starlasu.model.LazyChild
 import com.strumenta.starlasu.model.Multiplicity
 import com.strumenta.starlasu.model.PropertyDescription.Companion.multiplicity
+import com.strumenta.starlasu.model.lazyChildField
 import com.strumenta.starlasu.model.nodeOriginalProperties
 import com.strumenta.starlasu.model.providesNodes
+import com.strumenta.starlasu.utils.CancellationToken
 import java.util.concurrent.ConcurrentHashMap
 import kotlin.reflect.KClass
 import kotlin.reflect.KProperty1
@@ -14,13 +17,26 @@ interface StarlasuTreeWalker {
 
     fun walk(node: ASTNode): Sequence<ASTNode>
 
+    /**
+     * Like [walk], but the given token is checked before each node is visited, so that a long traversal can be
+     * stopped.
+     *
+     * @throws com.strumenta.starlasu.utils.OperationCancelledException if the token is cancelled during the traversal.
+     */
+    fun walk(
+        node: ASTNode,
+        cancellationToken: CancellationToken,
+    ): Sequence<ASTNode> = walk(node).onEach { cancellationToken.checkCancelled() }
+
     fun <N : ASTNode> assignParents(node: N)
 }
 
 class CommonStarlasuTreeWalker : StarlasuTreeWalker {
     // Cache stores a factory that returns the children list directly (no Sequence/coroutine overhead).
     // We use java Class as key because they have faster hashCode/equals than KClass.
-    private val calculatorCaches = ConcurrentHashMap<Class<out ASTNode>, Function1<ASTNode, List<ASTNode>>>()
+    // The second argument tells whether to compute the pending values of lazy children (see LazyChild).
+    private val calculatorCaches =
+        ConcurrentHashMap<Class<out ASTNode>, Function2<ASTNode, Boolean, List<ASTNode>>>()
 
     // Tracks which classes override getOriginalProperties() (e.g. Java nodes that use
     // JavaBeans reflection instead of Kotlin memberProperties).
@@ -38,8 +54,14 @@ class CommonStarlasuTreeWalker : StarlasuTreeWalker {
     /**
      * Returns the direct children of [node] as a List.
      * Returns [emptyList] (singleton) for leaf nodes — no allocation.
+     *
+     * @param materializeLazyChildren if false, the [LazyChild] containments that have not been computed yet are
+     * skipped rather than computed.
      */
-    internal fun walkChildrenToList(node: ASTNode): List<ASTNode> {
+    internal fun walkChildrenToList(
+        node: ASTNode,
+        materializeLazyChildren: Boolean = true,
+    ): List<ASTNode> {
         // Given that determining how to calculate children for a given node requires examining the class,
         // we cache the examination part, and we get a lambda that, given a node will give us the children
         // We then invoke such lambda on a given node
@@ -48,9 +70,15 @@ class CommonStarlasuTreeWalker : StarlasuTreeWalker {
                 if (overridesOriginalProperties(javaClass)) {
                     // Fall back to the PropertyDescription path for classes that override
                     // getOriginalProperties() (e.g. Java nodes using JavaBeans reflection).
-                    return@computeIfAbsent { n ->
+                    return@computeIfAbsent { n, materializeLazyChildren ->
                         val result = ArrayList<ASTNode>()
                         n.originalProperties.forEach { property ->
+                            if (!materializeLazyChildren) {
+                                val lazyField = lazyChildField(javaClass, property.name)
+                                if (lazyField != null && !(lazyField.get(n) as LazyChild<*>).isMaterialized) {
+                                    return@forEach
+                                }
+                            }
                             when (val value = property.value) {
                                 is ASTNode -> result.add(value)
                                 is Collection<*> -> value.forEach { if (it is ASTNode) result.add(it) }
@@ -69,12 +97,20 @@ class CommonStarlasuTreeWalker : StarlasuTreeWalker {
                         BooleanArray(propsArray.size) { i ->
                             multiplicity(propsArray[i]) == Multiplicity.MANY
                         }
+                    val lazyArray = Array(propsArray.size) { i -> lazyChildField(javaClass, propsArray[i].name) }
 
-                    return@computeIfAbsent { n ->
+                    return@computeIfAbsent { n, materializeLazyChildren ->
                         // Defer ArrayList creation until we actually find a child.
                         // Leaf nodes pay zero allocation cost (returns emptyList singleton).
                         var result: ArrayList<ASTNode>? = null
                         for (i in propsArray.indices) {
+                            val lazyField = lazyArray[i]
+                            if (!materializeLazyChildren &&
+                                lazyField != null &&
+                                !(lazyField.get(n) as LazyChild<*>).isMaterialized
+                            ) {
+                                continue
+                            }
                             val value = propsArray[i].get(n)
                             if (value != null) {
                                 if (manyArray[i]) {
@@ -94,37 +130,54 @@ class CommonStarlasuTreeWalker : StarlasuTreeWalker {
                     }
                 }
             }
-        return calculator.invoke(node)
+        return calculator.invoke(node, materializeLazyChildren)
     }
 
     override fun <N : ASTNode> walkChildren(node: N): Sequence<ASTNode> = walkChildrenToList(node).asSequence()
 
-    override fun walk(node: ASTNode): Sequence<ASTNode> =
+    override fun walk(node: ASTNode): Sequence<ASTNode> = walk(node, materializeLazyChildren = true)
+
+    /**
+     * Like [walk], but if [materializeLazyChildren] is false the [LazyChild] containments that have not been computed
+     * yet are skipped rather than computed.
+     */
+    internal fun walk(
+        node: ASTNode,
+        materializeLazyChildren: Boolean,
+    ): Sequence<ASTNode> =
         sequence {
             val stack = ArrayDeque<ASTNode>()
             stack.addLast(node)
             while (stack.isNotEmpty()) {
                 val current = stack.removeLast()
                 yield(current)
-                val children = walkChildrenToList(current)
+                val children = walkChildrenToList(current, materializeLazyChildren)
                 for (i in children.size - 1 downTo 0) {
                     stack.addLast(children[i])
                 }
             }
         }
 
-    /** Post-order accumulation into [result]. Recursive but AST depth is bounded in practice. */
+    /**
+     * Post-order accumulation into [result]. Recursive but AST depth is bounded in practice. If a [cancellationToken]
+     * is given, it is checked before each node is visited.
+     */
     internal fun collectLeavesFirst(
         node: ASTNode,
         result: ArrayList<ASTNode>,
+        cancellationToken: CancellationToken? = null,
     ) {
+        cancellationToken?.checkCancelled()
         val children = walkChildrenToList(node)
-        for (child in children) collectLeavesFirst(child, result)
+        for (child in children) collectLeavesFirst(child, result, cancellationToken)
         result.add(node)
     }
 
+    /**
+     * Does not compute the pending [LazyChild] containments: their nodes get their parent when they're computed.
+     */
     override fun <N : ASTNode> assignParents(node: N) {
-        walkChildrenToList(node).forEach {
+        walkChildrenToList(node, materializeLazyChildren = false).forEach {
             if (it == node) throw IllegalStateException("A node cannot be parent of itself: $node")
             it.parent = node
             assignParents(it)
@@ -3,6 +3,7 @@
 package com.strumenta.starlasu.traversing
 
 import com.strumenta.starlasu.model.ASTNode
+import com.strumenta.starlasu.utils.CancellationToken
 import java.util.WeakHashMap
 import kotlin.reflect.KClass
 import kotlin.reflect.KFunction1
@@ -16,6 +17,14 @@ internal val defaultTreeWalker = CommonStarlasuTreeWalker()
  */
 fun ASTNode.walk(): Sequence<ASTNode> = defaultTreeWalker.walk(this)
 
+/**
+ * Like [walk], but the given token is checked before each node is visited, so that a long traversal can be stopped.
+ *
+ * @throws com.strumenta.starlasu.utils.OperationCancelledException if the token is cancelled during the traversal.
+ */
+fun ASTNode.walk(cancellationToken: CancellationToken): Sequence<ASTNode> =
+    defaultTreeWalker.walk(this, cancellationToken)
+
 /**
  * Performs a post-order (or leaves-first) node traversal starting with a given node.
  *
@@ -29,6 +38,18 @@ fun ASTNode.walkLeavesFirst(): Sequence<ASTNode> {
     return result.asSequence()
 }
 
+/**
+ * Like [walkLeavesFirst], but the given token is checked before each node is visited. As the nodes are collected
+ * before the sequence is returned, this is where the token is checked, rather than while iterating the sequence.
+ *
+ * @throws com.strumenta.starlasu.utils.OperationCancelledException if the token is cancelled during the traversal.
+ */
+fun ASTNode.walkLeavesFirst(cancellationToken: CancellationToken): Sequence<ASTNode> {
+    val result = ArrayList<ASTNode>(64)
+    defaultTreeWalker.collectLeavesFirst(this, result, cancellationToken)
+    return result.asSequence()
+}
+
 /**
  * @return the sequence of nodes from this.parent all the way up to the root node.
  * For this to work, assignParents() must have been called.
@@ -41,6 +62,14 @@ fun ASTNode.walkAncestors(): Sequence<ASTNode> {
     }
 }
 
+/**
+ * Like [walkAncestors], but the given token is checked before each ancestor is visited.
+ *
+ * @throws com.strumenta.starlasu.utils.OperationCancelledException if the token is cancelled during the traversal.
+ */
+fun ASTNode.walkAncestors(cancellationToken: CancellationToken): Sequence<ASTNode> =
+    walkAncestors().onEach { cancellationToken.checkCancelled() }
+
 /**
  * @return all direct children of this node.
  */
@@ -96,6 +125,19 @@ fun <N : Any> ASTNode.walkDescendants(
     walker: (ASTNode) -> Sequence<ASTNode> = ASTNode::walk,
 ): Sequence<N> = walkDescendants(walker).filterIsInstance(type.java)
 
+/**
+ * Like [walkDescendants], but the given token is checked before each node is visited.
+ *
+ * @throws com.strumenta.starlasu.utils.OperationCancelledException if the token is cancelled during the traversal.
+ */
+fun ASTNode.walkDescendants(cancellationToken: CancellationToken): Sequence<ASTNode> =
+    walkDescendants { it.walk(cancellationToken) }
+
+fun <N : Any> ASTNode.walkDescendants(
+    type: KClass<N>,
+    cancellationToken: CancellationToken,
+): Sequence<N> = walkDescendants(cancellationToken).filterIsInstance(type.java)
+
 /**
  * Note that type T is not strictly forced to be a Node. This is intended to support
  * interfaces like `Statement` or `Expression`. However, being an ancestor the returned
@@ -136,6 +178,26 @@ fun <T> ASTNode.collectByType(
     walker: KFunction1<ASTNode, Sequence<ASTNode>> = ASTNode::walk,
 ): List<T> = walker.invoke(this).filterIsInstance(klass).toList()
 
+/**
+ * Like [searchByType], walking the tree with [walk], but the given token is checked before each node is visited.
+ *
+ * @throws com.strumenta.starlasu.utils.OperationCancelledException if the token is cancelled during the traversal.
+ */
+fun <T> ASTNode.searchByType(
+    klass: Class<T>,
+    cancellationToken: CancellationToken,
+): Sequence<T> = walk(cancellationToken).filterIsInstance(klass)
+
+/**
+ * Like [collectByType], walking the tree with [walk], but the given token is checked before each node is visited.
+ *
+ * @throws com.strumenta.starlasu.utils.OperationCancelledException if the token is cancelled during the traversal.
+ */
+fun <T> ASTNode.collectByType(
+    klass: Class<T>,
+    cancellationToken: CancellationToken,
+): List<T> = searchByType(klass, cancellationToken).toList()
+
 /**
  * The FastWalker is a walker that implements a cache to speed up subsequent walks.
  * The first walk will take the same time of a normal walk.
@@ -0,0 +1,65 @@
+package com.strumenta.starlasu.utils
+
+import java.util.concurrent.CancellationException
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Thrown by [CancellationToken.checkCancelled] to interrupt a long-running operation.
+ */
+class OperationCancelledException(
+    message: String,
+) : CancellationException(message)
+
+/**
+ * Allows long-running operations, such as parsing, transformations, traversals and symbol resolution, to be stopped:
+ * explicitly, by calling [cancel], when a deadline expires, or when a budget of work units is exhausted. The
+ * operations check the token cooperatively, by calling [checkCancelled] at regular points (e.g., for each prediction
+ * made by the parser, or for each node); so, the operation stops at the first check after the cancellation.
+ *
+ * Tokens are thread-safe, and a single token can be shared by several operations, e.g., all the stages of a parser.
+ *
+ * @param timeoutMillis if not null, the token is cancelled when this time has elapsed since its creation.
+ * @param workBudget the number of checks after which the token is cancelled; each call to [checkCancelled] consumes one
+ * unit of work.
+ */
+class CancellationToken
+    @JvmOverloads
+    constructor(
+        timeoutMillis: Long? = null,
+        val workBudget: Long = Long.MAX_VALUE,
+    ) {
+        private val deadline: Long? = timeoutMillis?.let { System.nanoTime() + it * 1_000_000 }
+        private val work = AtomicLong()
+
+        @Volatile
+        private var reason: String? = null
+
+        val isCancelled: Boolean
+            get() = reason != null || (deadline != null && System.nanoTime() - deadline >= 0)
+
+        /**
+         * The amount of work consumed so far, i.e., the number of times [checkCancelled] has been called.
+         */
+        val workDone: Long
+            get() = work.get()
+
+        fun cancel(reason: String = "Operation cancelled") {
+            this.reason = reason
+        }
+
+        /**
+         * Consumes one unit of work, and throws [OperationCancelledException] if the token has been cancelled, its
+         * deadline has expired, or its work budget has been exhausted.
+         */
+        fun checkCancelled() {
+            reason?.let { throw OperationCancelledException(it) }
+            if (deadline != null && System.nanoTime() - deadline >= 0) {
+                cancel("Operation timed out")
+                throw OperationCancelledException(reason!!)
+            }
+            if (work.incrementAndGet() > workBudget) {
+                cancel("Work budget of $workBudget exhausted")
+                throw OperationCancelledException(reason!!)
+            }
+        }
+    }
@@ -0,0 +1,20 @@
+lexer grammar OutlineLangLexer;
+
+tokens {
+    SKIPPED_BODY
+}
+
+WS : [ \t\r\n]+ -> channel(HIDDEN);
+
+FUN : 'fun' ;
+
+LPAREN : '(' ;
+RPAREN : ')' ;
+LBRACE : '{' ;
+RBRACE : '}' ;
+EQUAL : '=' ;
+SEMI : ';' ;
+
+INT_LIT : [0-9]+ ;
+
+ID : [a-zA-Z][a-zA-Z_0-9]* ;
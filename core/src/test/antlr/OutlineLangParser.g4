@@ -0,0 +1,23 @@
+parser grammar OutlineLangParser;
+
+options { tokenVocab = OutlineLangLexer; }
+
+compilationUnit:
+    function* EOF;
+
+outlineCompilationUnit:
+    outlineFunction* EOF;
+
+function:
+    FUN name=ID LPAREN RPAREN body;
+
+outlineFunction:
+    FUN name=ID LPAREN RPAREN SKIPPED_BODY;
+
+body:
+    LBRACE statement* RBRACE;
+
+statement:
+      name=ID EQUAL value=INT_LIT SEMI #assignmentStmt
+    | body #blockStmt
+    ;
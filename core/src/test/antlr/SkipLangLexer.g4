@@ -0,0 +1,10 @@
+lexer grammar SkipLangLexer;
+
+// Newlines are skipped together with the indentation that follows them, so no token starts a line
+WS : [ \t\r\n]+ -> skip ;
+
+EQUAL : '=' ;
+
+INT_LIT : [0-9]+ ;
+
+ID : [a-zA-Z][a-zA-Z_0-9]* ;
@@ -196,6 +196,41 @@ class ParseTreeToASTTransformerTest {
         assertNull(transformedCU.invalidPositions().firstOrNull())
     }
 
+    @Test
+    fun testMemoizedTransformation() {
+        fun parse(code: String): SimpleLangParser.CompilationUnitContext =
+            SimpleLangParser(CommonTokenStream(SimpleLangLexer(CharStreams.fromString(code)))).compilationUnit()
+
+        val transformer = ParseTreeToASTTransformer()
+        configure(transformer)
+        val memo = TransformationMemo()
+        transformer.memo = memo
+        val before = transformer.transformParseTree(parse("set foo = 123\ndisplay 456"))!! as CU
+        assertEquals(0, memo.reusedSubtrees)
+
+        val pt = parse("set bar = 1\nset foo = 123\ndisplay 456")
+        val after = transformer.transformParseTree(pt)!! as CU
+        assertEquals(2, memo.reusedSubtrees)
+        assertSame(before.statements[0], after.statements[1])
+        assertSame(before.statements[1], after.statements[2])
+        val cu =
+            CU(
+                statements =
+                    listOf(
+                        SetStatement(variable = "bar", value = 1).withParseTreeNode(pt.statement(0)),
+                        SetStatement(variable = "foo", value = 123).withParseTreeNode(pt.statement(1)),
+                        DisplayIntStatement(value = 456).withParseTreeNode(pt.statement(2)),
+                    ),
+            ).withParseTreeNode(pt)
+        assertASTsAreEqual(cu, after, considerPosition = true)
+        assertTrue { after.hasValidParents() }
+
+        // A subtree is reused at most once
+        val repeated = transformer.transformParseTree(parse("display 456\ndisplay 456"))!! as CU
+        assertEquals(1, memo.reusedSubtrees)
+        assertTrue { repeated.statements[0] !== repeated.statements[1] }
+    }
+
     @Test
     fun testGenericASTTransformer() {
         val code = "set foo = 123\ndisplay 456"
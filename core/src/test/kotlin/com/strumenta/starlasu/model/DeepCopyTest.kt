@@ -0,0 +1,61 @@
+package com.strumenta.starlasu.model
+
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotSame
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+
+class ChainNode(
+    val next: ChainNode?,
+) : Node() {
+    var label: String? = null
+}
+
+class DeepCopyTest {
+    @Test
+    fun copyingNodesAndReferences() {
+        val external = VarDeclaration("X", IntLit("0"))
+        val declaration = VarDeclaration("A", IntLit("10"))
+        val original =
+            MiniCalcFile(
+                listOf(
+                    declaration,
+                    Assignment(ReferenceByName("A", declaration), IntLit("11")),
+                    Print(ValueReference(ReferenceByName("X", external))),
+                ),
+            )
+        original.assignParents()
+        original.id = "file"
+        val position = Position(Point(1, 0), Point(3, 10))
+        original.position = position
+
+        val copy = original.deepCopy()
+        assertEquals(original, copy)
+        assertNotSame(original.elements[0], copy.elements[0])
+        assertSame(copy.elements[0], (copy.elements[1] as Assignment).ref.referred)
+        assertSame(external, ((copy.elements[2] as Print).value as ValueReference).ref.referred)
+        assertNotSame((original.elements[1] as Assignment).ref, (copy.elements[1] as Assignment).ref)
+        assertSame(copy, copy.elements[1].parent)
+        assertSame(copy.elements[1], (copy.elements[1] as Assignment).value.parent)
+        assertEquals(position, copy.position)
+        assertNull(copy.id)
+        assertEquals("file", original.deepCopy(DeepCopyOptions(copyIds = true)).id)
+    }
+
+    @Test
+    fun copyingDeepTrees() {
+        var chain: ChainNode? = null
+        repeat(100_000) { chain = ChainNode(chain) }
+        chain!!.label = "root"
+        val copy = chain!!.deepCopy()
+        assertEquals("root", copy.label)
+        var depth = 0
+        var current: ChainNode? = copy
+        while (current != null) {
+            depth++
+            current = current.next
+        }
+        assertEquals(100_000, depth)
+    }
+}
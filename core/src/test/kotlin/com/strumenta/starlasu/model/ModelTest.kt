@@ -188,4 +188,25 @@ class ModelTest {
     fun nameIsProperty() {
         assertTrue { MyNode("").properties.map { it.name }.contains("name") }
     }
+
+    @test
+    fun attachments() {
+        val typeKey = AttachmentKey<String>("type")
+        val countKey = AttachmentKey<Int>("count")
+        val child = MyNode("child")
+        val parent = MyNode("parent")
+        child.parent = parent
+        assertNull(child.getAttachment(typeKey))
+        assertNull(child.putAttachment(countKey, 1))
+        assertEquals(1, child.putAttachment(countKey, 2))
+        assertEquals("int", child.getOrPutAttachment(typeKey) { "int" })
+        assertEquals("int", child.getOrPutAttachment(typeKey) { "string" })
+        assertEquals(2, child.getAttachment(countKey))
+        assertEquals(listOf("name"), child.properties.map { it.name })
+        child.putAttachment(countKey, null)
+        assertNull(child.getAttachment(countKey))
+        assertEquals("int", child.getAttachment(typeKey))
+        child.parent = null
+        assertNull(child.getAttachment(typeKey))
+    }
 }
@@ -0,0 +1,51 @@
+package com.strumenta.starlasu.model
+
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+
+data class WithDefaults(
+    val name: String,
+    val count: Int = 3,
+    val enabled: Boolean = true,
+    val child: A? = null,
+) : Node()
+
+class NodeConstructorPlanTest {
+    @Test
+    fun invokingWithAllArguments() {
+        val plan = NodeConstructorPlan.ofPrimaryConstructor(WithDefaults::class)
+        assertSame(plan, NodeConstructorPlan.ofPrimaryConstructor(WithDefaults::class))
+        val arguments = plan.newArguments()
+        arguments[plan.slotOf("name")] = "foo"
+        arguments[plan.slotOf("count")] = 5
+        arguments[plan.slotOf("enabled")] = false
+        arguments[plan.slotOf("child")] = A("bar")
+        assertEquals(WithDefaults("foo", 5, false, A("bar")), plan.newInstance(arguments))
+        // The array can be reused
+        arguments[plan.slotOf("name")] = "baz"
+        assertEquals(WithDefaults("baz", 5, false, A("bar")), plan.newInstance(arguments))
+    }
+
+    @Test
+    fun invokingWithDefaults() {
+        val plan = NodeConstructorPlan.ofPrimaryConstructor(WithDefaults::class)
+        val arguments = plan.newArguments()
+        arguments[plan.slotOf("name")] = "foo"
+        arguments[plan.slotOf("enabled")] = false
+        assertEquals(WithDefaults("foo", enabled = false), plan.newInstance(arguments))
+        assertEquals(-1, plan.slotOf("unknown"))
+        assertEquals(listOf("name", "count", "enabled", "child"), plan.properties.map { it?.name })
+    }
+
+    @Test
+    fun requiredArgumentsMustBeProvided() {
+        val plan = NodeConstructorPlan.ofPrimaryConstructor(WithDefaults::class)
+        assertFailsWith<IllegalArgumentException> { plan.newInstance(plan.newArguments()) }
+        val arguments = plan.newArguments()
+        arguments[0] = "foo"
+        assertNull(plan.newInstance(arguments).child)
+    }
+}
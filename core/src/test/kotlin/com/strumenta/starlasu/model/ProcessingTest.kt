@@ -2,6 +2,8 @@ package com.strumenta.starlasu.model
 
 import java.util.LinkedList
 import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNull
 import kotlin.test.assertSame
 import org.junit.Test as test
 
@@ -110,6 +112,27 @@ class ProcessingTest {
         assertEquals(BW(a1, mutableListOf(a4, a3)), b)
     }
 
+    @test
+    fun replaceDetachesTheOldNode() {
+        val key = AttachmentKey<String>("replaced")
+        val a1 = AW("1")
+        val a2 = AW("2")
+        val a3 = AW("3")
+        val a4 = AW("4")
+        val b = BW(a1, mutableListOf(a2))
+        b.assignParents()
+        a1.putAttachment(key, "a1")
+        a2.putAttachment(key, "a2")
+        a1.replaceWith(a3)
+        a2.replaceWith(a4)
+        assertSame(b, a3.parent)
+        assertSame(b, a4.parent)
+        assertNull(a1.parent)
+        assertNull(a2.parent)
+        assertNull(a1.getAttachment(key))
+        assertNull(a2.getAttachment(key))
+    }
+
     @test
     fun replaceSeveralInList() {
         val a1 = AW("1")
@@ -250,6 +273,30 @@ class ProcessingTest {
         )
     }
 
+    @test
+    fun transformTreeSharesUnchangedSubtrees() {
+        val unchanged = VarDeclaration("A", IntLit("10"))
+        val startTree = MiniCalcFile(listOf(unchanged, Print(IntLit("1"))))
+        val transformed =
+            startTree.transformTree(operation = {
+                if (it is IntLit && it.value == "1") IntLit("2") else it
+            }) as MiniCalcFile
+        assertEquals(MiniCalcFile(listOf(VarDeclaration("A", IntLit("10")), Print(IntLit("2")))), transformed)
+        assertSame(unchanged, transformed.elements[0])
+        assertEquals(Print(IntLit("1")), startTree.elements[1])
+        assertSame(startTree, startTree.transformTree(operation = { it }))
+    }
+
+    @test
+    fun transformTreeInPlace() {
+        val b = BW(AW("1"), mutableListOf(AW("2"), AW("3")))
+        val transformed =
+            b.transformTree(operation = { if (it is AW && it.s == "2") AW("two") else it }, inPlace = true)
+        assertSame(b, transformed)
+        assertEquals(listOf("two", "3"), b.manyAs.map { it.s })
+        assertSame(b, b.manyAs[0].parent)
+    }
+
     @test
     fun getNextAndPreviousSibling() {
         val a1 = AW("1")
@@ -353,4 +400,84 @@ class ProcessingTest {
         assertEquals(1, a3.indexInContainingProperty())
         assertEquals(2, a4.indexInContainingProperty())
     }
+
+    @test
+    fun editBatch() {
+        val a = AW("a")
+        val manyAs = (0 until 10).map { AW("$it") }
+        val b = BW(a, manyAs.toMutableList())
+        b.assignParents()
+        val newA = AW("newA")
+        val before = AW("before")
+        val after1 = AW("after1")
+        val after2 = AW("after2")
+        val replacement = AW("replacement")
+        val changes =
+            ASTEditBatch(recordChanges = true)
+                .replace(a, newA)
+                .remove(manyAs[1])
+                .addSeveralBefore(manyAs[3], listOf(before))
+                .addSeveralAfter(manyAs[3], listOf(after1))
+                .addSeveralAfter(manyAs[3], listOf(after2))
+                .replaceWithSeveral(manyAs[9], listOf(replacement, AW("other")))
+                .apply()
+        assertSame(newA, b.a)
+        assertEquals(
+            listOf("0", "2", "before", "3", "after1", "after2", "4", "5", "6", "7", "8", "replacement", "other"),
+            b.manyAs.map { it.s },
+        )
+        assertSame(b, newA.parent)
+        assertSame(b, before.parent)
+        assertSame(b, replacement.parent)
+        assertNull(a.parent)
+        assertNull(manyAs[1].parent)
+        assertEquals(5, changes.size)
+        val insertion = changes.single { it.added.contains(before) }
+        assertEquals("manyAs", insertion.containment)
+        assertEquals(2, insertion.index)
+        assertEquals(listOf(before), insertion.added)
+        assertEquals(emptyList<ASTNode>(), insertion.removed)
+        val insertionAfter = changes.single { it.added.contains(after1) }
+        assertEquals(4, insertionAfter.index)
+        assertEquals(listOf(after1, after2), insertionAfter.added)
+        assertEquals(listOf(manyAs[1]), changes.single { it.added.isEmpty() }.removed)
+        val replayed = manyAs.toMutableList<ASTNode>()
+        changes.filter { it.containment == "manyAs" }.forEach { change ->
+            repeat(change.removed.size) { replayed.removeAt(change.index) }
+            replayed.addAll(change.index, change.added)
+        }
+        assertEquals(b.manyAs, replayed)
+    }
+
+    @test
+    fun editBatchIsNotAppliedIfATargetIsMissing() {
+        val a1 = AW("1")
+        val a2 = AW("2")
+        val b1 = BW(a1, mutableListOf(a2))
+        val a3 = AW("3")
+        val a4 = AW("4")
+        val b2 = BW(a3, mutableListOf(a4))
+        b1.assignParents()
+        b2.assignParents()
+        val batch =
+            ASTEditBatch()
+                .remove(a2)
+                .addSeveralAfter(a4, listOf(AW("5")))
+        b2.manyAs.clear()
+        assertFailsWith<IllegalStateException> { batch.apply() }
+        assertEquals(listOf(a2), b1.manyAs)
+        assertSame(b1, a2.parent)
+        assertEquals(0, batch.size)
+    }
+
+    @test
+    fun editBatchWithMissingTarget() {
+        val a1 = AW("1")
+        val a2 = AW("2")
+        val b = BW(a1, mutableListOf(a2))
+        b.assignParents()
+        val batch = ASTEditBatch().remove(a2)
+        b.manyAs.clear()
+        assertFailsWith<IllegalStateException> { batch.apply() }
+    }
 }
@@ -0,0 +1,67 @@
+package com.strumenta.starlasu.parsing
+
+import com.strumenta.starlasu.ids.NodeIdProvider
+import com.strumenta.starlasu.model.A
+import com.strumenta.starlasu.model.ASTNode
+import com.strumenta.starlasu.model.B
+import com.strumenta.starlasu.model.StringSource
+import com.strumenta.starlasu.traversing.walk
+import com.strumenta.starlasu.validation.Issue
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+
+class ASTFinalizationTest {
+    @Test
+    fun performsAllTheOperationsInOneTraversal() {
+        val root = B(A("1"), listOf(A("2"), A("3")))
+        val source = StringSource("code")
+        var counter = 0
+        val idProvider =
+            object : NodeIdProvider {
+                override fun id(kNode: ASTNode): String = "id${counter++}"
+
+                override var parentProvider: NodeIdProvider? = null
+            }
+        val validation =
+            object : ASTFinalizationStep {
+                override val name: String = "validation"
+
+                override fun process(
+                    node: ASTNode,
+                    issues: MutableList<Issue>,
+                ) {
+                    if (node is A && node.s == "3") {
+                        issues.add(Issue.semantic("Unexpected 3", position = node.position))
+                    }
+                }
+            }
+        val issues = mutableListOf<Issue>()
+        val times =
+            ASTFinalization(
+                source = source,
+                idProvider = idProvider,
+                steps = listOf(validation),
+                measureTime = true,
+            ).finalize(root, issues)
+
+        assertNull(root.parent)
+        assertSame(root, root.a.parent)
+        root.manyAs.forEach { assertSame(root, it.parent) }
+        root.walk().forEach { assertSame(source, it.source) }
+        assertEquals(listOf("id0", "id1", "id2", "id3"), root.walk().map { it.id }.toList())
+        assertEquals(1, issues.size)
+        assertEquals(
+            setOf(ASTFinalization.TRAVERSAL, ASTFinalization.SET_SOURCE, ASTFinalization.ASSIGN_IDS, "validation"),
+            times.keys,
+        )
+    }
+
+    @Test
+    fun doesNotMeasureTimeByDefault() {
+        val root = B(A("1"), listOf(A("2")))
+        assertEquals(emptyMap(), ASTFinalization().finalize(root, mutableListOf()))
+        assertSame(root, root.a.parent)
+    }
+}
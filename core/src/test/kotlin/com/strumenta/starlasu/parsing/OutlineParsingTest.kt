@@ -0,0 +1,208 @@
+package com.strumenta.starlasu.parsing
+
+import com.strumenta.simplelang.OutlineLangLexer
+import com.strumenta.simplelang.OutlineLangParser
+import com.strumenta.starlasu.mapping.ParseTreeToASTTransformer
+import com.strumenta.starlasu.model.LazyChild
+import com.strumenta.starlasu.model.Node
+import com.strumenta.starlasu.model.Point
+import com.strumenta.starlasu.model.Position
+import com.strumenta.starlasu.model.Source
+import com.strumenta.starlasu.model.lazyChild
+import com.strumenta.starlasu.transformation.ASTTransformer
+import com.strumenta.starlasu.transformation.TransformationContext
+import com.strumenta.starlasu.validation.Issue
+import com.strumenta.starlasu.validation.IssueType
+import org.antlr.v4.runtime.CharStream
+import org.antlr.v4.runtime.CommonToken
+import org.antlr.v4.runtime.Lexer
+import org.antlr.v4.runtime.ListTokenSource
+import org.antlr.v4.runtime.Token
+import org.antlr.v4.runtime.TokenStream
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertIs
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+private const val OPEN = 1
+private const val CLOSE = 2
+private const val OTHER = 3
+private const val SKIPPED = 4
+
+data class OutlineFile(
+    var functions: List<OutlineFunction> = listOf(),
+) : Node()
+
+class OutlineFunction(
+    val name: String,
+) : Node() {
+    var body: OutlineBlock? by LazyChild(null)
+}
+
+data class OutlineBlock(
+    var statements: List<Node> = listOf(),
+) : Node()
+
+data class OutlineAssignment(
+    val variable: String,
+    val value: Int,
+) : Node()
+
+class OutlineLangStarlasuParser :
+    StarlasuParser<
+        Node,
+        OutlineLangParser,
+        OutlineLangParser.CompilationUnitContext,
+        StarlasuANTLRToken,
+    >(ANTLRTokenFactory()) {
+    override fun createANTLRLexer(charStream: CharStream): Lexer = OutlineLangLexer(charStream)
+
+    override fun createANTLRParser(tokenStream: TokenStream): OutlineLangParser = OutlineLangParser(tokenStream)
+
+    override val outlineSpecification =
+        OutlineSpecification(
+            "outlineCompilationUnit",
+            listOf(
+                SkippableRegion(
+                    OutlineLangLexer.LBRACE,
+                    OutlineLangLexer.RBRACE,
+                    OutlineLangLexer.SKIPPED_BODY,
+                    "body",
+                    precededBy = setOf(OutlineLangLexer.RPAREN),
+                ),
+            ),
+        )
+
+    override fun setupASTTransformer(): ASTTransformer {
+        val transformer = ParseTreeToASTTransformer()
+        transformer
+            .registerRule(OutlineLangParser.OutlineCompilationUnitContext::class, OutlineFile::class)
+            .withChild(OutlineFile::functions, OutlineLangParser.OutlineCompilationUnitContext::outlineFunction)
+        transformer.registerRule(
+            OutlineLangParser.OutlineFunctionContext::class,
+        ) { ctx, context: TransformationContext ->
+            OutlineFunction(ctx.name.text).also {
+                (context as OutlineTransformationContext).lazyRegion(it, OutlineFunction::body, ctx.SKIPPED_BODY())
+            }
+        }
+        transformer
+            .registerRule(OutlineLangParser.BodyContext::class, OutlineBlock::class)
+            .withChild(OutlineBlock::statements, OutlineLangParser.BodyContext::statement)
+        transformer.registerRule(OutlineLangParser.AssignmentStmtContext::class) { ctx ->
+            OutlineAssignment(ctx.name.text, ctx.value.text.toInt())
+        }
+        transformer.registerRule(OutlineLangParser.BlockStmtContext::class) { ctx, context, astTransformer ->
+            astTransformer.transform(ctx.body(), context) as OutlineBlock?
+        }
+        return transformer
+    }
+
+    override fun parseTreeToAst(
+        parseTreeRoot: OutlineLangParser.CompilationUnitContext,
+        considerPosition: Boolean,
+        issues: MutableList<Issue>,
+        source: Source?,
+    ): Node? = null
+}
+
+class OutlineParsingTest {
+    private fun tokens(vararg types: Int): ListTokenSource =
+        ListTokenSource(types.mapIndexed { i, type -> CommonToken(type, "t$i") })
+
+    private fun ListTokenSource.skipping(vararg regions: SkippableRegion): List<Token> {
+        val source = SkippingTokenSource(this, regions.toList())
+        val result = mutableListOf<Token>()
+        do {
+            val token = source.nextToken()
+            result.add(token)
+        } while (token.type != Token.EOF)
+        return result
+    }
+
+    @Test
+    fun skipsBalancedRegions() {
+        val result =
+            tokens(OTHER, OPEN, OTHER, OPEN, OTHER, CLOSE, CLOSE, OTHER)
+                .skipping(SkippableRegion(OPEN, CLOSE, SKIPPED, "body"))
+        assertEquals(listOf(OTHER, SKIPPED, OTHER, Token.EOF), result.map { it.type })
+        val skipped = assertIs<SkippedRegionToken>(result[1])
+        assertEquals(6, skipped.skippedTokens.size)
+    }
+
+    @Test
+    fun skipsOnlyRegionsPrecededByTheGivenTokens() {
+        val result =
+            tokens(OPEN, CLOSE, OTHER, OPEN, CLOSE)
+                .skipping(SkippableRegion(OPEN, CLOSE, SKIPPED, "body", precededBy = setOf(OTHER)))
+        assertEquals(listOf(OPEN, CLOSE, OTHER, SKIPPED, Token.EOF), result.map { it.type })
+    }
+
+    @Test
+    fun doesNotSkipUnclosedRegions() {
+        val result = tokens(OTHER, OPEN, OTHER).skipping(SkippableRegion(OPEN, CLOSE, SKIPPED, "body"))
+        assertEquals(listOf(OTHER, OPEN, OTHER, Token.EOF), result.map { it.type })
+    }
+
+    @Test
+    fun parsesSkippedRegionsOnAccess() {
+        val parser = OutlineLangStarlasuParser()
+        val code = "fun f() {\n  a = 1;\n  { b = 2; }\n}\nfun g() { c = 3; }"
+        val result = parser.parseOutline(code)
+        assertEquals(0, result.issues.size)
+        val functions = assertIs<OutlineFile>(result.root).functions
+        assertEquals(listOf("f", "g"), functions.map { it.name })
+        val body = functions[0].lazyChild("body")!!
+        assertFalse(body.isMaterialized)
+
+        val block = functions[0].body!!
+        assertTrue(body.isMaterialized)
+        assertEquals(0, result.issues.size)
+        assertSame(functions[0], block.parent)
+        assertSame(block, block.statements[0].parent)
+        assertEquals(Position(Point(1, 8), Point(4, 1)), block.position)
+        assertEquals(2, block.statements.size)
+        val assignment = assertIs<OutlineAssignment>(block.statements[0])
+        assertEquals(OutlineAssignment("a", 1), assignment)
+        assertEquals(Position(Point(2, 2), Point(2, 8)), assignment.position)
+        val nested = assertIs<OutlineBlock>(block.statements[1])
+        assertEquals(listOf(OutlineAssignment("b", 2)), nested.statements)
+        assertEquals(Position(Point(3, 2), Point(3, 12)), nested.position)
+        assertFalse(functions[1].lazyChild("body")!!.isMaterialized)
+
+        val other = functions[1].body!!
+        assertEquals(listOf(OutlineAssignment("c", 3)), other.statements)
+        assertEquals(Position(Point(5, 10), Point(5, 16)), other.statements[0].position)
+    }
+
+    @Test
+    fun reportsTheIssuesOfSkippedRegionsWhenTheyAreParsed() {
+        val parser = OutlineLangStarlasuParser()
+        val result = parser.parseOutline("fun f() { a = 1 2; }")
+        assertEquals(0, result.issues.size)
+        val function = assertIs<OutlineFile>(result.root).functions.single()
+        function.body
+        assertTrue(result.issues.isNotEmpty())
+        result.issues.forEach {
+            assertEquals(IssueType.SYNTACTIC, it.type)
+            assertEquals(Position(Point(1, 16), Point(1, 17)), it.position)
+        }
+    }
+
+    @Test
+    fun reportsMetricsOfOutlineParsing() {
+        val parser = OutlineLangStarlasuParser()
+        val metrics = HistogramParsingMetrics()
+        parser.metricsListener = metrics
+        parser.parseOutline("fun f() { a = 1; }\nfun g() { }")
+        listOf(
+            ParsingStage.PARSING,
+            ParsingStage.VERIFICATION,
+            ParsingStage.TRANSFORMATION,
+            ParsingStage.POST_PROCESSING,
+        ).forEach { assertEquals(1, metrics.histogram(it).count) }
+        assertEquals(0, metrics.histogram(ParsingStage.LEXING).count)
+        assertEquals(3, metrics.nodeCount)
+    }
+}
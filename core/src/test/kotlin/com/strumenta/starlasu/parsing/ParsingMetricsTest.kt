@@ -0,0 +1,29 @@
+package com.strumenta.starlasu.parsing
+
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class ParsingMetricsTest {
+    @Test
+    fun histogramPercentilesHaveBoundedError() {
+        val histogram = LatencyHistogram()
+        (1L..1000L).forEach { histogram.record(it * 1000) }
+        assertEquals(1000, histogram.count)
+        assertEquals(1_000_000, histogram.max)
+        assertEquals(500_500.0, histogram.mean)
+        listOf(50.0 to 500_000L, 90.0 to 900_000L, 99.0 to 990_000L).forEach { (percentage, expected) ->
+            val actual = histogram.percentile(percentage)
+            assertTrue(actual >= expected && actual <= expected * 1.125, "p$percentage was $actual")
+        }
+        assertEquals(1_000_000, histogram.percentile(100.0))
+    }
+
+    @Test
+    fun smallValuesAreExact() {
+        val histogram = LatencyHistogram()
+        listOf(0L, 3L, 7L, 15L).forEach { histogram.record(it) }
+        assertEquals(3, histogram.percentile(50.0))
+        assertEquals(15, histogram.percentile(100.0))
+    }
+}
@@ -2,17 +2,44 @@ package com.strumenta.starlasu.parsing
 
 import com.strumenta.simplelang.SimpleLangLexer
 import com.strumenta.simplelang.SimpleLangParser
+import com.strumenta.simplelang.SkipLangLexer
+import com.strumenta.starlasu.mapping.CU
+import com.strumenta.starlasu.mapping.DisplayIntStatement
+import com.strumenta.starlasu.mapping.ParseTreeToASTTransformer
+import com.strumenta.starlasu.mapping.SetStatement
+import com.strumenta.starlasu.mapping.TransformationMemo
+import com.strumenta.starlasu.model.ASTNode
+import com.strumenta.starlasu.model.LazyChild
 import com.strumenta.starlasu.model.Node
 import com.strumenta.starlasu.model.Point
 import com.strumenta.starlasu.model.Position
 import com.strumenta.starlasu.model.Source
+import com.strumenta.starlasu.model.lazyChild
+import com.strumenta.starlasu.testing.assertASTsAreEqual
+import com.strumenta.starlasu.transformation.ASTTransformer
+import com.strumenta.starlasu.transformation.TransformationContext
+import com.strumenta.starlasu.utils.CancellationToken
+import com.strumenta.starlasu.utils.OperationCancelledException
 import com.strumenta.starlasu.validation.Issue
 import org.antlr.v4.runtime.CharStream
+import org.antlr.v4.runtime.CharStreams
 import org.antlr.v4.runtime.Lexer
+import org.antlr.v4.runtime.ParserRuleContext
 import org.antlr.v4.runtime.TokenStream
 import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.ObjectInputStream
+import java.io.ObjectOutputStream
 import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertIs
 import kotlin.test.assertNotNull
+import kotlin.test.assertNotSame
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
 
 open class SimpleLangStarlasuParser :
     StarlasuParser<
@@ -40,6 +67,40 @@ open class SimpleLangStarlasuParser :
     public var cachesCounter = 0
 }
 
+open class SimpleLangIncrementalParser : SimpleLangStarlasuParser() {
+    override val reparseableRules: Set<Int> = setOf(SimpleLangParser.RULE_statement)
+
+    override fun setupASTTransformer(): ASTTransformer {
+        val transformer = ParseTreeToASTTransformer()
+        transformer
+            .registerRule(SimpleLangParser.CompilationUnitContext::class, CU::class)
+            .withChild(CU::statements, SimpleLangParser.CompilationUnitContext::statement)
+        transformer.registerRule(SimpleLangParser.DisplayStmtContext::class) { ctx ->
+            DisplayIntStatement(value = ctx.expression().text.toInt())
+        }
+        transformer.registerRule(SimpleLangParser.SetStmtContext::class) { ctx ->
+            SetStatement(variable = ctx.ID().text, value = ctx.expression().text.toInt())
+        }
+        return transformer
+    }
+
+    override fun parseTreeToAst(
+        parseTreeRoot: SimpleLangParser.CompilationUnitContext,
+        considerPosition: Boolean,
+        issues: MutableList<Issue>,
+        source: Source?,
+    ): Node? = setupASTTransformer().transform(parseTreeRoot, TransformationContext(issues = issues)) as Node?
+
+    override fun createASTFinalization(
+        considerPosition: Boolean,
+        source: Source?,
+    ): ASTFinalization = ASTFinalization(removeOrigins = !considerPosition)
+}
+
+class LazyCU : Node() {
+    var statements: MutableList<Node> by LazyChild(mutableListOf())
+}
+
 class StarlasuParserTest {
     @Test
     fun testLexing() {
@@ -59,6 +120,427 @@ class StarlasuParserTest {
         assertEquals(listOf("set", "a", "=", "10", "set", "b", "=", "\"\"", "display", "c", "<EOF>"), text)
     }
 
+    @Test
+    fun testLexingAsSequence() {
+        val parser = SimpleLangStarlasuParser()
+        val code =
+            """set a = 10
+            |set b = ""
+            |display c
+            """.trimMargin()
+        val text = parser.lexAsSequence(code).map { it.text }.toList()
+        assertEquals(listOf("set", "a", "=", "10", "set", "b", "=", "\"\"", "display", "c"), text)
+        assertEquals(
+            parser.lex(code).tokens.map { it.position },
+            parser.lexAsSequence(code).map { it.position }.toList(),
+        )
+    }
+
+    @Test
+    fun testLexingToConsumerCanStopEarly() {
+        val parser = SimpleLangStarlasuParser()
+        val tokens = mutableListOf<StarlasuANTLRToken>()
+        val completed =
+            parser.lexTo("set a = 10\nset b = 20") {
+                tokens.add(it)
+                tokens.size < 3
+            }
+        assertEquals(false, completed)
+        assertEquals(listOf("set", "a", "="), tokens.map { it.text })
+    }
+
+    @Test
+    fun testLexingToConsumerReportsIssues() {
+        val parser = SimpleLangStarlasuParser()
+        val issues = mutableListOf<Issue>()
+        val completed = parser.lexTo("set a = 10 %", onIssue = { issues.add(it) }) { true }
+        assertEquals(true, completed)
+        assertEquals(1, issues.size)
+    }
+
+    @Test
+    fun testLexingInParallel() {
+        val parser = SimpleLangStarlasuParser()
+        val code = (1..50).joinToString("\n") { "set variable$it = ${it * 10}" }
+        val expected = parser.lex(code).tokens.map { it.text to it.position }
+        val byLines = parser.lexInParallel(code, safeLexingPoints = SafeLexingPoints.LINE_STARTS, chunkSize = 40)
+        assertEquals(expected, byLines.tokens.map { it.text to it.position })
+        // Cutting in the middle of tokens forces re-lexing around the cuts, but the result must be the same
+        val anywhere = parser.lexInParallel(code, safeLexingPoints = { _, _ -> true }, chunkSize = 7)
+        assertEquals(expected, anywhere.tokens.map { it.text to it.position })
+    }
+
+    @Test
+    fun testIncrementalLexing() {
+        val parser = SimpleLangStarlasuParser()
+        val code = (1..10).joinToString("\n") { "set variable$it = ${it * 10}" }
+        val lexer = parser.incrementalLexer(code)
+        assertEquals(
+            parser.lex(code).tokens.map { it.text to it.position },
+            lexer.tokens.map { it.text to it.position },
+        )
+        val change = lexer.edit(listOf(TextEdit(Position(Point(5, 4), Point(5, 13)), "x = 1\nset y")))
+        assertEquals(1, change.lineDelta)
+        // We restart from the line before the edit and stop at the line after it
+        assertEquals(12, change.startIndex)
+        assertEquals(8, change.removedCount)
+        assertEquals(
+            listOf("set", "variable4", "=", "40", "set", "x", "=", "1", "set", "y", "=", "50"),
+            change.inserted.map { it.text },
+        )
+        assertEquals(
+            parser.lex(lexer.code).tokens.map { it.text to it.position },
+            lexer.tokens.map { it.text to it.position },
+        )
+        val joined = lexer.edit(listOf(TextEdit(Position(Point(1, 18), Point(2, 0)), " ")))
+        assertEquals(-1, joined.lineDelta)
+        assertEquals(0, joined.startIndex)
+        assertEquals(
+            parser.lex(lexer.code).tokens.map { it.text to it.position },
+            lexer.tokens.map { it.text to it.position },
+        )
+    }
+
+    @Test
+    fun testIncrementalLexingWithSkippedNewlines() {
+        val starlasuLexer =
+            object : StarlasuANTLRLexer<StarlasuANTLRToken>(ANTLRTokenFactory()) {
+                override fun createANTLRLexer(charStream: CharStream): Lexer = SkipLangLexer(charStream)
+            }
+        val code = (1..10).joinToString("\n") { "  variable$it = ${it * 10}" }
+        val lexer = starlasuLexer.incrementalLexer(code)
+        val change = lexer.edit(listOf(TextEdit(Position(Point(5, 14), Point(5, 16)), "55")))
+        // No token starts a line, so we restart after the first token of the line before the edit, and we stop after
+        // the first token of the line after it
+        assertEquals(10, change.startIndex)
+        assertEquals(6, change.removedCount)
+        assertEquals(listOf("=", "40", "variable5", "=", "55", "variable6"), change.inserted.map { it.text })
+        assertEquals(
+            starlasuLexer.lex(lexer.code).tokens.map { it.text to it.position },
+            lexer.tokens.map { it.text to it.position },
+        )
+        val added = lexer.edit(listOf(TextEdit(Position(Point(8, 0), Point(8, 0)), "  x = 1\n")))
+        assertEquals(1, added.lineDelta)
+        assertEquals(listOf("=", "70", "x", "=", "1", "variable8"), added.inserted.map { it.text })
+        assertEquals(
+            starlasuLexer.lex(lexer.code).tokens.map { it.text to it.position },
+            lexer.tokens.map { it.text to it.position },
+        )
+    }
+
+    @Test
+    fun testLexingPacked() {
+        val parser = SimpleLangStarlasuParser()
+        val code = "set a = 10\nset b = \"\"\ndisplay 5"
+        val expected = parser.lex(code).tokens
+        val packed = parser.lexPacked(code)
+        assertIs<PackedTokenList>(packed.tokens)
+        assertEquals(expected.map { it.category }, packed.tokens.map { it.category })
+        assertEquals(expected.map { it.text to it.position }, packed.tokens.map { it.text to it.position })
+        val withHidden = parser.lexPacked(code, onlyFromDefaultChannel = false)
+        assertEquals(parser.lex(code, onlyFromDefaultChannel = false).tokens.size, withHidden.tokens.size)
+    }
+
+    @Test
+    fun testSerializingPackedTokens() {
+        val parser = SimpleLangStarlasuParser()
+        val code = "set a = 10\nset b = \"\"\ndisplay 5"
+        val packed = parser.lexPacked(code).tokens
+        val bytes = ByteArrayOutputStream()
+        ObjectOutputStream(bytes).use { it.writeObject(packed) }
+        val deserialized = ObjectInputStream(ByteArrayInputStream(bytes.toByteArray())).use { it.readObject() }
+        assertIs<PackedTokenList>(deserialized)
+        assertEquals(
+            packed.map { Triple(it.category, it.text, it.position) },
+            deserialized.map { Triple(it.category, it.text, it.position) },
+        )
+        assertEquals("display", deserialized[8].text)
+    }
+
+    @Test
+    fun testParsingWithTokens() {
+        val parser = SimpleLangStarlasuParser()
+        val code = "set a = 10\nset b = \"\"\ndisplay 5"
+        val result = parser.parseWithTokens(code)
+        assertEquals(0, result.issues.size)
+        assertEquals(
+            parser.lex(code).tokens.map { it.text to it.position },
+            result.tokens.map { it.text to it.position },
+        )
+        val withHidden = parser.parseWithTokens(code, onlyFromDefaultChannel = false)
+        assertEquals(
+            parser.lex(code, onlyFromDefaultChannel = false).tokens.map { it.text to it.position },
+            withHidden.tokens.map { it.text to it.position },
+        )
+    }
+
+    @Test
+    fun testParsingIncrementally() {
+        val parser = SimpleLangIncrementalParser()
+        val previous = parser.parse("set foo = 1 set bar = 2\ndisplay 3")
+        val statements = (previous.root as CU).statements.toList()
+        val edit = TextEdit(Position(Point(1, 4), Point(1, 7)), "longerName")
+        val result = parser.parseIncrementally(previous, listOf(edit))
+        val expected = parser.parse("set longerName = 1 set bar = 2\ndisplay 3")
+        assertEquals(expected.code, result.code)
+        assertEquals(0, result.issues.size)
+        assertASTsAreEqual(expected.root!!, result.root!!, considerPosition = true)
+        // Only the edited statement is replaced
+        assertSame(previous.root, result.root)
+        val newStatements = (result.root as CU).statements
+        assertNotSame(statements[0], newStatements[0])
+        assertSame(statements[1], newStatements[1])
+        assertSame(statements[2], newStatements[2])
+        assertEquals(Position(Point(1, 19), Point(1, 30)), newStatements[1].position)
+        assertSame(result.root, newStatements[0].parent)
+        val tokenFactory = parser.tokenFactory as ANTLRTokenFactory
+        assertEquals(
+            tokenFactory.extractTokens(expected)!!.tokens.map { it.text to it.position },
+            tokenFactory.extractTokens(result)!!.tokens.map { it.text to it.position },
+        )
+    }
+
+    @Test
+    fun testParsingIncrementallyWithTransformationMemo() {
+        val parser =
+            object : SimpleLangIncrementalParser() {
+                val transformer =
+                    (super.setupASTTransformer() as ParseTreeToASTTransformer).apply { memo = TransformationMemo() }
+
+                override fun setupASTTransformer(): ASTTransformer = transformer
+
+                override fun parseTreeToAst(
+                    parseTreeRoot: SimpleLangParser.CompilationUnitContext,
+                    considerPosition: Boolean,
+                    issues: MutableList<Issue>,
+                    source: Source?,
+                ): Node? =
+                    transformer.transformParseTree(parseTreeRoot, TransformationContext(issues = issues)) as Node?
+            }
+        val previous = parser.parse("display 4\nset foo = 1\ndisplay 3")
+        val statements = (previous.root as CU).statements.toList()
+        // The reparsed statement is the same as the first one, which is still part of the AST
+        val edit = TextEdit(Position(Point(3, 8), Point(3, 9)), "4")
+        val result = parser.parseIncrementally(previous, listOf(edit))
+        val expected = SimpleLangIncrementalParser().parse("display 4\nset foo = 1\ndisplay 4")
+        assertASTsAreEqual(expected.root!!, result.root!!, considerPosition = true)
+        val newStatements = (result.root as CU).statements
+        assertSame(statements[0], newStatements[0])
+        assertNotSame(newStatements[0], newStatements[2])
+        assertSame(result.root, newStatements[0].parent)
+        assertEquals(Position(Point(1, 0), Point(1, 9)), newStatements[0].position)
+    }
+
+    @Test
+    fun testParsingIncrementallyFallsBackToFullParsing() {
+        val parser = SimpleLangIncrementalParser()
+        val previous = parser.parse("set foo = 1 set bar = 2")
+        // The edit touches the end of the statement, so it could change how it is lexed and parsed
+        val edit = TextEdit(Position(Point(1, 11), Point(1, 11)), "0 display 4")
+        val result = parser.parseIncrementally(previous, listOf(edit))
+        val expected = parser.parse("set foo = 10 display 4 set bar = 2")
+        assertASTsAreEqual(expected.root!!, result.root!!, considerPosition = true)
+        assertNotSame(previous.root, result.root)
+    }
+
+    @Test
+    fun testParsingDirectly() {
+        val parser = SimpleLangIncrementalParser()
+        val code = "set foo = 1 set bar = 2\ndisplay 3"
+        val result = parser.parseDirectly(code)
+        assertEquals(0, result.issues.size)
+        assertASTsAreEqual(parser.parse(code).root!!, result.root!!, considerPosition = true)
+        // The statements have been transformed as soon as they were parsed, so their subtrees have been discarded
+        val parseTree = result.firstStage!!.root as SimpleLangParser.CompilationUnitContext
+        assertNull(parseTree.statement(0).children)
+        assertSame(result.root, (result.root as CU).statements[0].parent)
+    }
+
+    @Test
+    fun testParsingDirectlyReportsErrorsInDiscardedSubtrees() {
+        val parser = SimpleLangIncrementalParser()
+        // The extraneous ID becomes an error node in the set statement, whose subtree is discarded while parsing
+        val code = "set a a = 1\ndisplay 2"
+        val expected = parser.parse(code).issues
+        assertTrue(expected.any { it.message == "Error node found (token: a)" })
+        val result = parser.parseDirectly(code)
+        assertEquals(expected, result.issues)
+        assertNull((result.firstStage!!.root as SimpleLangParser.CompilationUnitContext).statement(0).children)
+    }
+
+    @Test
+    fun testParsingOutlineFromAnotherEntryRule() {
+        val parser =
+            object : SimpleLangIncrementalParser() {
+                override val outlineSpecification = OutlineSpecification(entryRule = "statement")
+            }
+        val result = parser.parseOutline("display 5")
+        assertEquals(0, result.issues.size)
+        assertEquals(DisplayIntStatement(value = 5), result.root)
+        // The first stage is not a FirstStageParsingResult<CompilationUnitContext>: its root is a statement
+        val parseTreeRoot: ParserRuleContext? = result.firstStage!!.root
+        assertIs<SimpleLangParser.DisplayStmtContext>(parseTreeRoot)
+    }
+
+    @Test
+    fun testParsingWithCancellationToken() {
+        val parser = SimpleLangIncrementalParser()
+        val token = CancellationToken()
+        token.cancel()
+        val result = parser.parse("set a = 1", token)
+        assertNull(result.root)
+        assertEquals(listOf("Parsing stopped: Operation cancelled"), result.issues.map { it.message })
+
+        val code = "set a = 1 display 2 display 3"
+        assertEquals(listOf(), parser.parse(code, CancellationToken(workBudget = 1000)).issues)
+        val budget = CancellationToken(workBudget = 1)
+        val exhausted = parser.parse(code, budget)
+        assertNull(exhausted.root)
+        assertEquals(listOf("Parsing stopped: Work budget of 1 exhausted"), exhausted.issues.map { it.message })
+        assertTrue(budget.isCancelled)
+        assertFailsWith<OperationCancelledException> { budget.checkCancelled() }
+
+        val deadline = CancellationToken(timeoutMillis = 1)
+        Thread.sleep(10)
+        val expired = parser.parse(code, deadline)
+        assertNull(expired.root)
+        assertEquals(listOf("Parsing stopped: Operation timed out"), expired.issues.map { it.message })
+    }
+
+    @Test
+    fun testCancellingTheOtherParsingModes() {
+        val parser = SimpleLangIncrementalParser()
+        val token = CancellationToken()
+        token.cancel()
+        val cancelled = listOf("Parsing stopped: Operation cancelled")
+        assertEquals(cancelled, parser.parseDirectly("set a = 1", cancellationToken = token).issues.map { it.message })
+        assertEquals(cancelled, parser.parseOutline("set a = 1", cancellationToken = token).issues.map { it.message })
+        val withTokens = parser.parseWithTokens("set a = 1", cancellationToken = token)
+        assertNull(withTokens.root)
+        assertEquals(cancelled, withTokens.issues.map { it.message })
+
+        val previous = parser.parse("display 4\nset foo = 1\ndisplay 3")
+        val statements = (previous.root as CU).statements.toList()
+        val edit = TextEdit(Position(Point(3, 8), Point(3, 9)), "4")
+        val incremental = parser.parseIncrementally(previous, listOf(edit), cancellationToken = token)
+        assertNull(incremental.root)
+        assertEquals(cancelled, incremental.issues.map { it.message })
+        // The previous result has not been touched, so it can be used again
+        assertEquals(statements, (previous.root as CU).statements)
+        val reparsed = parser.parseIncrementally(previous, listOf(edit))
+        assertEquals(DisplayIntStatement(value = 4), (reparsed.root as CU).statements[2])
+    }
+
+    @Test
+    fun testCancellingWhileTransforming() {
+        val token = CancellationToken()
+        val parser =
+            object : SimpleLangIncrementalParser() {
+                override fun setupASTTransformer(): ASTTransformer {
+                    val transformer = super.setupASTTransformer()
+                    transformer.registerRule(SimpleLangParser.DisplayStmtContext::class) { ctx ->
+                        // The rule is running when the operation is cancelled, e.g., by another thread
+                        token.cancel()
+                        token.checkCancelled()
+                        DisplayIntStatement(value = ctx.expression().text.toInt())
+                    }
+                    return transformer
+                }
+
+                override fun parseTreeToAst(
+                    parseTreeRoot: SimpleLangParser.CompilationUnitContext,
+                    considerPosition: Boolean,
+                    issues: MutableList<Issue>,
+                    source: Source?,
+                ): Node? {
+                    val context = TransformationContext(issues = issues, cancellationToken = currentCancellationToken)
+                    return setupASTTransformer().transform(parseTreeRoot, context) as Node?
+                }
+            }
+        val result = parser.parse("set a = 1\ndisplay 2\nset b = 3", token)
+        assertNull(result.root)
+        assertEquals(listOf("Parsing stopped: Operation cancelled"), result.issues.map { it.message })
+    }
+
+    @Test
+    fun testParsingMetrics() {
+        val parser = SimpleLangIncrementalParser()
+        val metrics = HistogramParsingMetrics()
+        parser.metricsListener = metrics
+        parser.parse("set a = 1\ndisplay 2")
+        parser.parse("display 3")
+        listOf(ParsingStage.LEXING, ParsingStage.PARSING, ParsingStage.TRANSFORMATION, ParsingStage.FINALIZATION)
+            .forEach { assertEquals(2, metrics.histogram(it).count) }
+        // All the tokens in the stream, including whitespace and EOF
+        assertEquals(16, metrics.tokenCount)
+        assertEquals(5, metrics.nodeCount)
+        assertTrue(metrics.report().contains("PARSING"))
+    }
+
+    @Test
+    fun testLazyChildrenAreNotComputedByFinalizationAndMetrics() {
+        val finalized = mutableListOf<ASTNode>()
+        val parser =
+            object : SimpleLangIncrementalParser() {
+                override fun setupASTTransformer(): ASTTransformer {
+                    val transformer = super.setupASTTransformer()
+                    transformer
+                        .registerRule(SimpleLangParser.CompilationUnitContext::class) { _ -> LazyCU() }
+                        .withLazyChild(LazyCU::statements) { statement() }
+                    return transformer
+                }
+
+                override fun createASTFinalization(
+                    considerPosition: Boolean,
+                    source: Source?,
+                ): ASTFinalization =
+                    ASTFinalization(
+                        steps =
+                            listOf(
+                                object : ASTFinalizationStep {
+                                    override val name: String
+                                        get() = "record"
+
+                                    override fun process(
+                                        node: ASTNode,
+                                        issues: MutableList<Issue>,
+                                    ) {
+                                        finalized.add(node)
+                                        issues.add(Issue.semantic("Finalized ${node.nodeType}"))
+                                    }
+                                },
+                            ),
+                    )
+            }
+        val metrics = HistogramParsingMetrics()
+        parser.metricsListener = metrics
+        val result = parser.parse("set a = 1\ndisplay 2")
+        val root = assertIs<LazyCU>(result.root)
+        assertFalse(root.lazyChild("statements")!!.isMaterialized)
+        assertEquals(1, metrics.nodeCount)
+        assertEquals(listOf<ASTNode>(root), finalized)
+        assertEquals(1, result.issues.size)
+
+        val statements = root.statements
+        assertEquals(2, statements.size)
+        assertEquals(listOf(root) + statements, finalized)
+        statements.forEach { assertSame(root, it.parent) }
+        assertEquals(3, result.issues.size)
+    }
+
+    @Test
+    fun testProfilingDecisions() {
+        val parser = SimpleLangStarlasuParser()
+        val corpus = listOf("set a = 1 + 2 * 3", "display 4 - 5\nset b = 6").map { CharStreams.fromString(it) }
+        val profile = parser.profileDecisions(corpus)
+        assertEquals(2, profile.inputs)
+        val hotspots = profile.hotspots()
+        assertTrue(hotspots.isNotEmpty())
+        assertTrue(hotspots.any { it.rule == "expression" && it.kind == "left recursion" })
+        assertTrue(hotspots.zipWithNext().all { (a, b) -> a.timeInPrediction >= b.timeInPrediction })
+        assertTrue(profile.report().contains("expression, decision #"))
+    }
+
     @Test
     fun clearCache() {
         val parser = SimpleLangStarlasuParser()
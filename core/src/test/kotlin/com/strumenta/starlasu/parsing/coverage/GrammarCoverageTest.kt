@@ -0,0 +1,83 @@
+package com.strumenta.starlasu.parsing.coverage
+
+import com.strumenta.simplelang.SimpleLangLexer
+import com.strumenta.simplelang.SimpleLangParser
+import org.antlr.v4.runtime.CharStreams
+import org.antlr.v4.runtime.CommonTokenStream
+import org.junit.Test
+import kotlin.math.abs
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class GrammarCoverageTest {
+    private fun parser(code: String) =
+        SimpleLangParser(
+            CommonTokenStream(SimpleLangLexer(CharStreams.fromString(code))),
+        )
+
+    @Test
+    fun initiallyEmpty() {
+        val coverage = GrammarCoverage(parser(""))
+        assertTrue { coverage.paths().isEmpty() }
+        assertEquals(0.0, coverage.percentage())
+    }
+
+    @Test
+    fun coverageOfSimpleRule() {
+        val parser = parser("int")
+        val coverage = GrammarCoverage(parser)
+        coverage.listenTo(parser)
+        parser.type()
+        assertTrue {
+            coverage.uncoveredPathStrings().containsAll(listOf("type > DEC", "type > STRING", "type > BOOLEAN"))
+        }
+        assertEquals(57, coverage.uncoveredPathStrings().size)
+        assertEquals(59, coverage.paths().size)
+    }
+
+    @Test
+    fun sameCoverageAsCoverageListener() {
+        assertSameCoverage("int") { it.type() }
+        assertSameCoverage("set foo = 123") { it.compilationUnit() }
+        assertSameCoverage("set foo = 123 set bar = 1.23 display 12.3") { it.compilationUnit() }
+        assertSameCoverage("set foo = 123 + 124 + 125") { it.compilationUnit() }
+        assertSameCoverage("set foo = 123 + 124 + 125 set bar = 123 + 12.4 - 1.25") { it.compilationUnit() }
+    }
+
+    private fun assertSameCoverage(
+        code: String,
+        parse: (SimpleLangParser) -> Unit,
+    ) {
+        val parser = parser(code)
+        val listener = CoverageListener()
+        listener.listenTo(parser)
+        val coverage = GrammarCoverage(parser)
+        coverage.listenTo(parser)
+        parse(parser)
+        assertEquals(listener.pathStrings().toSet(), coverage.paths().keys.map { it.joinToString(" > ") }.toSet())
+        assertEquals(listener.uncoveredPathStrings().toSet(), coverage.uncoveredPathStrings().toSet())
+        assertEquals(listener.paths.size, coverage.paths().size)
+        assertTrue(abs(listener.percentage() - coverage.percentage()) < .00001)
+    }
+
+    @Test
+    fun mergingCollectors() {
+        val prototype = GrammarCoverage(parser(""))
+        val collectors =
+            listOf("set foo = 123", "display 1.5").map { code ->
+                val parser = parser(code)
+                val collector = prototype.newCollector()
+                collector.listenTo(parser)
+                parser.compilationUnit()
+                collector
+            }
+        val merged = prototype.newCollector()
+        collectors.forEach { merged.merge(it) }
+        val uncovered = merged.uncoveredPathStrings()
+        assertTrue(uncovered.contains("statement > INPUT"))
+        assertFalse(uncovered.contains("statement > SET"))
+        assertFalse(uncovered.contains("statement > DISPLAY"))
+        assertFalse(uncovered.contains("expression > DEC_LIT"))
+    }
+}
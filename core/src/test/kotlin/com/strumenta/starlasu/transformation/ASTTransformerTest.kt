@@ -3,9 +3,12 @@ package com.strumenta.starlasu.transformation
 import com.strumenta.starlasu.mapping.translateCasted
 import com.strumenta.starlasu.mapping.translateList
 import com.strumenta.starlasu.model.BaseASTNode
+import com.strumenta.starlasu.model.LazyChild
 import com.strumenta.starlasu.model.Node
+import com.strumenta.starlasu.model.assignParents
 import com.strumenta.starlasu.model.children
 import com.strumenta.starlasu.model.hasValidParents
+import com.strumenta.starlasu.model.lazyChild
 import com.strumenta.starlasu.model.withOrigin
 import com.strumenta.starlasu.testing.assertASTsAreEqual
 import com.strumenta.starlasu.traversing.walkDescendants
@@ -13,8 +16,12 @@ import com.strumenta.starlasu.validation.Issue
 import com.strumenta.starlasu.validation.IssueSeverity
 import org.junit.Assert.assertThrows
 import org.junit.Test
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
 import kotlin.test.assertEquals
+import kotlin.test.assertFalse
 import kotlin.test.assertIs
+import kotlin.test.assertSame
 import kotlin.test.assertTrue
 
 data class CU(
@@ -440,6 +447,149 @@ class ASTTransformerTest {
         assertIs<MissingASTTransformation>(bazRoot1.stmts[0].origin)
     }
 
+    @Test
+    fun testProfiler() {
+        val transformer = ASTTransformer()
+        transformer
+            .registerRule(BarRoot::class, BazRoot::class)
+            .withChild(BazRoot::stmts) { stmts }
+        transformer.profiler = TransformationProfiler(measureAllocations = true)
+        transformer.transform(BarRoot(stmts = mutableListOf(BarStmt("a"), BarStmt("b"))))
+        val profiles = transformer.profiler!!.profiles.associateBy { it.rule }
+        assertEquals(setOf(BarRoot::class.qualifiedName, "<missing ${BarStmt::class.qualifiedName}>"), profiles.keys)
+        val root = profiles.getValue(BarRoot::class.qualifiedName!!)
+        assertEquals(1, root.calls)
+        assertEquals(1, root.nodes)
+        assertEquals(0, root.placeholders)
+        assertTrue { root.exclusiveNanos <= root.inclusiveNanos }
+        val missing = profiles.getValue("<missing ${BarStmt::class.qualifiedName}>")
+        assertEquals(2, missing.calls)
+        assertEquals(2, missing.placeholders)
+        assertEquals(0, missing.failures)
+        assertTrue { root.inclusiveNanos >= missing.inclusiveNanos }
+        assertTrue { transformer.profiler!!.report(limit = 1).lines().size == 3 }
+        assertTrue { transformer.profiler!!.report().lines()[0].contains("placeholders") }
+        assertTrue { transformer.profiler!!.toJson().contains("\"placeholders\": 2") }
+        transformer.profiler!!.reset()
+        assertTrue { transformer.profiler!!.profiles.isEmpty() }
+    }
+
+    @Test
+    fun testLazyChildren() {
+        val transformed = AtomicInteger()
+        val transformer = ASTTransformer()
+        transformer
+            .registerRule(BarRoot::class) { _ -> LazyBazRoot() }
+            .withLazyChild(LazyBazRoot::stmts) { stmts }
+        transformer.registerRule(BarStmt::class) { stmt, context ->
+            transformed.incrementAndGet()
+            context.addIssue("Statement ${stmt.desc}")
+            BazStmt(stmt.desc)
+        }
+        val context = TransformationContext()
+        val root = transformer.transform(BarRoot(mutableListOf(BarStmt("a"), BarStmt("b"))), context) as LazyBazRoot
+        root.assignParents()
+        assertEquals(0, transformed.get())
+        assertFalse(root.lazyChild("stmts")!!.isMaterialized)
+        val threads = (1..4).map { thread { root.stmts } }
+        threads.forEach { it.join() }
+        assertEquals(2, transformed.get())
+        assertEquals(listOf("a", "b"), root.walkDescendants(BazStmt::class).map { it.desc }.toList())
+        assertTrue { root.hasValidParents() }
+        assertEquals(2, context.issues.size)
+        assertEquals(2, transformed.get())
+    }
+
+    @Test
+    fun testRuleRegisteredAfterTransforming() {
+        val transformer = ASTTransformer()
+        transformer
+            .registerRule(BarRoot::class, BazRoot::class)
+            .withChild(BazRoot::stmts) { stmts }
+        val original = BarRoot(stmts = mutableListOf(BarStmt("a")))
+        val before = transformer.transform(original) as BazRoot
+        assertIs<MissingASTTransformation>(before.stmts[0].origin)
+        // The lookup of the rule for BarStmt has been cached, but registering a rule must invalidate it
+        transformer.registerRule(BarStmt::class) { stmt -> BazStmt(stmt.desc) }
+        val after = transformer.transform(original) as BazRoot
+        assertASTsAreEqual(BazRoot(mutableListOf(BazStmt("a"))), after)
+    }
+
+    @Test
+    fun testGetterOfPath() {
+        val rule = ASTTransformer().registerRule(BarRoot::class, BazRoot::class)
+        val original = BarRoot(stmts = mutableListOf(BarStmt("a"), BarStmt("b")))
+        assertEquals(listOf("a", "b"), rule.getter("stmts.desc")(original))
+        assertEquals(listOf("a", "b"), rule.getter("stmts.desc")(original))
+        assertThrows(Error::class.java) { rule.getter("stmts.unknown")(original) }
+    }
+
+    @Test
+    fun testParallelTransformation() {
+        fun transformer(): ASTTransformer {
+            val transformer = ASTTransformer()
+            transformer
+                .registerRule(BarRoot::class, BazRoot::class)
+                .withChild(BazRoot::stmts) { stmts }
+            transformer.registerRule(BarStmt::class) { stmt, context ->
+                context.addIssue("Statement ${stmt.desc}")
+                BazStmt(stmt.desc)
+            }
+            return transformer
+        }
+        val original = BarRoot(stmts = (1..200).map { BarStmt("s$it") }.toMutableList())
+        val sequentialContext = TransformationContext()
+        val sequential = transformer().transform(original, sequentialContext)!!
+        val parallelTransformer = transformer()
+        parallelTransformer.parallelTransformation = ParallelTransformation(setOf(BarStmt::class))
+        val parallelContext = TransformationContext()
+        val parallel = parallelTransformer.transform(original, parallelContext)!!
+        assertASTsAreEqual(sequential, parallel)
+        assertTrue { parallel.hasValidParents() }
+        assertEquals(200, parallelContext.issues.size)
+        assertEquals(sequentialContext.issues, parallelContext.issues)
+    }
+
+    @Test
+    fun testFrozenTransformer() {
+        val transformer = ASTTransformer()
+        transformer
+            .registerRule(BarRoot::class, BazRoot::class)
+            .withChild(BazRoot::stmts) { stmts }
+        transformer.registerRule(BarStmt::class) { stmt -> BazStmt(stmt.desc) }
+        transformer.freeze()
+        assertTrue(transformer.isFrozen)
+        assertThrows(IllegalStateException::class.java) {
+            transformer.registerRule(FooRoot::class) { _ -> BazRoot() }
+        }
+        assertThrows(IllegalStateException::class.java) {
+            transformer.registerRule(FooRoot::class, BazStmt::class)
+        }
+        assertEquals(setOf(BazRoot::class), transformer.knownClasses.values.flatten().toSet())
+        val rule = transformer.rules[BarRoot::class] as TransformationRule<BarRoot, BazRoot>
+        assertThrows(IllegalStateException::class.java) { rule.withFinalizer { _ -> } }
+        assertThrows(IllegalStateException::class.java) { rule.childrenPolicy = ChildrenPolicy.SKIP }
+        assertThrows(IllegalStateException::class.java) { rule.customConstructor = true }
+        val original = BarRoot(stmts = (1..100).map { BarStmt("s$it") }.toMutableList())
+        val expected = BazRoot((1..100).map { BazStmt("s$it") }.toMutableList())
+        val results = arrayOfNulls<Node>(8)
+        results.indices
+            .map { i -> Thread { results[i] = transformer.transform(original) as Node } }
+            .onEach { it.start() }
+            .forEach { it.join() }
+        results.forEach { assertASTsAreEqual(expected, it!!) }
+    }
+
+    @Test
+    fun testFreezingValidatesRules() {
+        val transformer = ASTTransformer()
+        // FooRoot requires a desc, but no child provides it
+        transformer
+            .registerRule(BarRoot::class, FooRoot::class)
+            .withChild(FooRoot::stmts) { stmts }
+        assertThrows(ConfigurationException::class.java) { transformer.freeze() }
+    }
+
     @Test
     fun testIdentityTransformation() {
         val transformer = ASTTransformer(defaultTransformation = IDENTTITY_TRANSFORMATION)
@@ -459,6 +609,21 @@ class ASTTransformerTest {
         )
     }
 
+    @Test
+    fun testSharingIdentityTransformation() {
+        val transformer = ASTTransformer(defaultTransformation = SHARING_IDENTITY_TRANSFORMATION)
+        transformer.registerRule(BarStmt::class) { stmt -> BarStmt(stmt.desc.uppercase()) }
+        val original = BarBazRoot(BarRoot(mutableListOf(BarStmt("a"))), BazRoot(mutableListOf(BazStmt("b"))))
+        val transformed = transformer.transform(original) as BarBazRoot
+        assertASTsAreEqual(
+            BarBazRoot(BarRoot(mutableListOf(BarStmt("A"))), BazRoot(mutableListOf(BazStmt("b")))),
+            transformed,
+        )
+        assertSame(original.baz, transformed.baz)
+        assertEquals("a", original.bar.stmts[0].desc)
+        assertSame(original, transformed.origin)
+    }
+
     @Test
     fun testPartialIdentityTransformation() {
         val transformer1 = ASTTransformer(defaultTransformation = IDENTTITY_TRANSFORMATION)
@@ -718,6 +883,15 @@ data class BarStmt(
     val desc: String,
 ) : Node()
 
+class LazyBazRoot : Node() {
+    var stmts: MutableList<BazStmt> by LazyChild(mutableListOf())
+}
+
+data class BarBazRoot(
+    val bar: BarRoot,
+    val baz: BazRoot,
+) : Node()
+
 data class FooRoot(
     var desc: String,
     var stmts: MutableList<BarStmt> = mutableListOf(),
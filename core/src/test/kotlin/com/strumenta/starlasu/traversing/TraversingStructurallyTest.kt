@@ -5,11 +5,14 @@ import com.strumenta.starlasu.model.Node
 import com.strumenta.starlasu.model.Position
 import com.strumenta.starlasu.model.assignParents
 import com.strumenta.starlasu.model.pos
+import com.strumenta.starlasu.utils.CancellationToken
+import com.strumenta.starlasu.utils.OperationCancelledException
 import kotlin.system.measureTimeMillis
 import kotlin.test.Ignore
 import kotlin.test.Test
 import kotlin.test.assertContains
 import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
 import kotlin.test.fail
 
 internal class TraversingStructurallyTest {
@@ -93,6 +96,28 @@ internal class TraversingStructurallyTest {
         assertEquals("small, big, root", result)
     }
 
+    @Test
+    fun walkWithCancellationToken() {
+        testCase.assignParents()
+        val item4 = ((testCase.contents[2] as Box).contents[0] as Box).contents[1]
+        val descendants = testCase.walkDescendants(CancellationToken())
+        assertEquals("first, 1, 2, big, small, 3, 4, 5, 6", printSequence(descendants))
+        val leavesFirst = testCase.walkLeavesFirst(CancellationToken())
+        assertEquals("1, first, 2, 3, 4, 5, small, big, 6, root", printSequence(leavesFirst))
+        assertEquals("small, big, root", printSequence(item4.walkAncestors(CancellationToken())))
+        assertEquals(
+            listOf("1", "2", "3", "4", "5", "6"),
+            testCase.collectByType(Item::class.java, CancellationToken()).map { it.name },
+        )
+        // The token is checked once per node
+        val budget = CancellationToken(workBudget = 5)
+        assertFailsWith<OperationCancelledException> { testCase.walkLeavesFirst(budget) }
+        assertEquals(6, budget.workDone)
+        val cancelled = CancellationToken()
+        cancelled.cancel()
+        assertFailsWith<OperationCancelledException> { testCase.searchByType(Item::class.java, cancelled).first() }
+    }
+
     fun getRandomString(length: Int): String {
         val allowedChars = ('A'..'Z') + ('a'..'z') + ('0'..'9')
         return (1..length)
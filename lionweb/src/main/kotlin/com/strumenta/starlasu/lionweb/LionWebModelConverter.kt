@@ -11,6 +11,7 @@ import com.strumenta.starlasu.model.ASTNode
 import com.strumenta.starlasu.model.CompositeDestination
 import com.strumenta.starlasu.model.DroppedDestination
 import com.strumenta.starlasu.model.Multiplicity
+import com.strumenta.starlasu.model.NodeConstructorPlan
 import com.strumenta.starlasu.model.Position
 import com.strumenta.starlasu.model.PossiblyNamed
 import com.strumenta.starlasu.model.ReferenceByName
@@ -529,7 +530,8 @@ class LionWebModelConverter(
                 kc.primaryConstructor
                     ?: kc.constructors.firstOrNull()
                     ?: throw RuntimeException("No constructor for $kc")
-            val params = ctor.parameters
+            val plan = NodeConstructorPlan.of(ctor)
+            val params = plan.parameters
 
             // Capture ctor, params, and properties for post-construction
             val propertiesNotSetAtConstructionTime =
@@ -558,7 +560,7 @@ class LionWebModelConverter(
                 }
                 val instance =
                     try {
-                        ctor.call(*argsArray)
+                        plan.newInstance(argsArray)
                     } catch (e: Exception) {
                         throw RuntimeException(
                             "Issue instantiating using constructor ${kc.qualifiedName}.$ctor with params " +
@@ -1096,8 +1098,9 @@ class LionWebModelConverter(
                     TODO()
                 }
             }
-        val params = HashMap<KParameter, Any?>(constructor.parameters.size)
-        constructor.parameters.forEach { param ->
+        val plan = NodeConstructorPlan.of(constructor)
+        val arguments = plan.newArguments()
+        plan.parameters.forEachIndexed { i, param ->
             val feature = lwFeatureByName(data.classifier, param.name!!)
             if (feature == null) {
                 throw java.lang.IllegalStateException(
@@ -1114,7 +1117,7 @@ class LionWebModelConverter(
                                     "${param.name} of type ${param.type}",
                             )
                         }
-                        params[param] = value
+                        arguments[i] = value
                     }
                     is Reference -> {
                         val value = referenceValue(data, feature, referencesPostponer)
@@ -1123,7 +1126,7 @@ class LionWebModelConverter(
                                 "Cannot assign value $value to param ${param.name} of type ${param.type}",
                             )
                         }
-                        params[param] = value
+                        arguments[i] = value
                     }
                     is Containment -> {
                         val value = containmentValue(data, feature)
@@ -1132,7 +1135,7 @@ class LionWebModelConverter(
                                 "Cannot assign value $value to param ${param.name} of type ${param.type}",
                             )
                         }
-                        params[param] = value
+                        arguments[i] = value
                     }
                     else -> throw IllegalStateException()
                 }
@@ -1141,18 +1144,18 @@ class LionWebModelConverter(
 
         val kNode =
             try {
-                constructor.callBy(params) as T
+                plan.newInstance(arguments) as T
             } catch (e: Exception) {
                 throw RuntimeException(
                     "Issue instantiating using constructor ${kClass.qualifiedName}.$constructor with params " +
-                        "${params.map { "${it.key.name}=${it.value}" }}",
+                        "${plan.parameters.mapIndexed { i, p -> "${p.name}=${arguments[i]}" }}",
                     e,
                 )
             }
 
         val propertiesNotSetAtConstructionTime =
             kClass.nodeOriginalProperties.filter { prop ->
-                params.keys.none { param ->
+                plan.parameters.none { param ->
                     param.name == prop.name
                 }
             }
@@ -1310,7 +1313,7 @@ class LionWebModelConverter(
 
     fun exportParsingResultToLionweb(
         pr: ParsingResult<*>,
-        tokens: List<StarlasuToken> = listOf(),
+        tokens: List<StarlasuToken> = (pr as? ParsingResultWithTokens<*>)?.tokens ?: listOf(),
         nodeIdProvider: NodeIdProvider = this.nodeIdProvider,
         idCheck: Boolean = false,
     ): ParsingResultNode {
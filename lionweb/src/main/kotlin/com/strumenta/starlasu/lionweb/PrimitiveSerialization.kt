@@ -2,6 +2,7 @@ package com.strumenta.starlasu.lionweb
 
 import com.strumenta.starlasu.model.Point
 import com.strumenta.starlasu.model.Position
+import com.strumenta.starlasu.parsing.PackedTokenList
 import com.strumenta.starlasu.parsing.StarlasuToken
 import com.strumenta.starlasu.parsing.TokenCategory
 import io.lionweb.kotlin.DefaultMetamodelRegistry
@@ -99,29 +100,58 @@ val positionDeserializer =
 
 val tokensListDataTypeSerializer =
     DataTypeSerializer<TokensList?> { value: TokensList? ->
-        value?.tokens?.joinToString(";") { kt ->
-            kt.category.type + "$" + positionSerializer.serialize(kt.position)
+        when (val tokens = value?.tokens) {
+            null -> null
+            is PackedTokenList -> serializePackedTokens(tokens)
+            else ->
+                tokens.joinToString(";") { kt ->
+                    kt.category.type + "$" + positionSerializer.serialize(kt.position)
+                }
         }
     }
 
+/**
+ * Produces the same format as [tokensListDataTypeSerializer], reading directly from the packed arrays, without
+ * instantiating tokens and positions.
+ */
+private fun serializePackedTokens(tokens: PackedTokenList): String {
+    val sb = StringBuilder(tokens.size * 24)
+    for (i in tokens.indices) {
+        if (i > 0) {
+            sb.append(';')
+        }
+        sb
+            .append(tokens.categoryAt(i).type)
+            .append('$')
+            .append('L')
+            .append(tokens.startLineAt(i))
+            .append(':')
+            .append(tokens.startColumnAt(i))
+            .append("-L")
+            .append(tokens.endLineAt(i))
+            .append(':')
+            .append(tokens.endColumnAt(i))
+    }
+    return sb.toString()
+}
+
 val tokensListDataTypeDeserializer =
     DataTypeDeserializer<TokensList?> { serialized ->
         if (serialized == null) {
             return@DataTypeDeserializer null
         }
-        val tokens =
-            if (serialized.isEmpty()) {
-                mutableListOf()
-            } else {
-                serialized
-                    .split(";")
-                    .map {
-                        val parts = it.split("$")
-                        require(parts.size == 2)
-                        val category = parts[0]
-                        val position = positionDeserializer.deserialize(parts[1])
-                        StarlasuToken(TokenCategory(category), position!!)
-                    }.toMutableList()
-            }
+        val tokens = PackedTokenList()
+        if (serialized.isNotEmpty()) {
+            serialized
+                .split(";")
+                .forEach {
+                    val parts = it.split("$")
+                    require(parts.size == 2)
+                    val category = parts[0]
+                    val position = positionDeserializer.deserialize(parts[1])
+                    tokens.add(TokenCategory(category), position!!)
+                }
+            tokens.trimToSize()
+        }
         TokensList(tokens)
     }
@@ -8,6 +8,7 @@ import com.strumenta.starlasu.model.kReferenceByNameType
 import com.strumenta.starlasu.model.nodeProperties
 import com.strumenta.starlasu.semantics.scope.provider.ScopeProvider
 import com.strumenta.starlasu.transformation.isDirectlyPlaceholderASTTransformation
+import com.strumenta.starlasu.utils.CancellationToken
 import kotlin.reflect.KProperty1
 import kotlin.reflect.full.isSubtypeOf
 
@@ -51,14 +52,29 @@ open class SymbolResolver(
     fun resolve(
         node: ASTNode,
         entireTree: Boolean = false,
+    ) {
+        resolve(node, entireTree, null)
+    }
+
+    /**
+     * Attempts to resolve all reference properties of the
+     * given node and its children (if `entireTree` is `true`).
+     * If a `cancellationToken` is given, it is checked for each node,
+     * so that the resolution of a large tree can be stopped.
+     **/
+    fun resolve(
+        node: ASTNode,
+        entireTree: Boolean,
+        cancellationToken: CancellationToken?,
     ) {
         if (node.isDirectlyPlaceholderASTTransformation) {
             return
         }
+        cancellationToken?.checkCancelled()
         node.references().forEach { reference -> this.resolve(node, reference) }
         if (entireTree) {
             node.children.filter { !it.isDirectlyPlaceholderASTTransformation }.forEach {
-                this.resolve(it, entireTree)
+                this.resolve(it, entireTree, cancellationToken)
             }
         }
     }